@@ -0,0 +1,135 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of registering outcomes in, and reading the summary of, a shared {@link
+ * FixedWindowObserver} (or {@link EpochWindowObserver} or {@link StripedWindowObserver}) from 1
+ * to 128 threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FixedWindowObserverBenchmark {
+
+    @Param({"10", "60"})
+    public int slots;
+
+    @Param({"FIXED", "EPOCH", "STRIPED"})
+    public Window window;
+
+    private Observer observer;
+
+    public enum Window {
+        FIXED,
+        EPOCH,
+        STRIPED,
+    }
+
+    @Setup
+    public void setUp() {
+        // Short slots to make sure slot rolls are part of the measurement.
+        final Duration slotDuration = Duration.ofMillis(10);
+        switch (window) {
+            case FIXED:
+                observer = new FixedWindowObserver(Ticker.systemTicker(), slots, slotDuration);
+                break;
+            case EPOCH:
+                observer = new EpochWindowObserver(Ticker.systemTicker(), slots, slotDuration);
+                break;
+            case STRIPED:
+                observer = new StripedWindowObserver(Ticker.systemTicker(), slots, slotDuration);
+                break;
+            default:
+                throw new IllegalStateException("unknown window: " + window);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void registerSuccess01Thread() {
+        observer.registerSuccess();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void registerSuccess08Threads() {
+        observer.registerSuccess();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void registerSuccess64Threads() {
+        observer.registerSuccess();
+    }
+
+    @Benchmark
+    @Threads(128)
+    public void registerSuccess128Threads() {
+        observer.registerSuccess();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Summary getSummary01Thread() {
+        return observer.getSummary();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Summary getSummary08Threads() {
+        return observer.getSummary();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Summary getSummary64Threads() {
+        return observer.getSummary();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public double successRatio01Thread() {
+        return observer.successRatio();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public double successRatio08Threads() {
+        return observer.successRatio();
+    }
+
+    /** What a {@link CircuitBreakerFallbackDelegator} does: one read per registration. */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(32)
+    public void mixedRegister() {
+        observer.registerSuccess();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(32)
+    public double mixedSuccessRatio() {
+        return observer.successRatio();
+    }
+}
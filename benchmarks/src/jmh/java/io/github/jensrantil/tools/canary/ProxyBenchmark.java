@@ -0,0 +1,104 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.hash.HashCode;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of calling a method through the proxies constructed by the builders, compared to
+ * calling the implementation directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProxyBenchmark {
+
+    @Param({"GENERATED", "JDK_PROXY"})
+    public ProxyBackend backend;
+
+    private Storage direct;
+    private Storage weightedRoundRobin;
+    private Storage weightedSharded;
+    private Storage circuitBreakerFallback;
+    private Storage circuitBreakerFallbackSteadyState;
+    private long key;
+
+    public interface Storage {
+        long get(long key);
+    }
+
+    private static final class StorageImpl implements Storage {
+        @Override
+        public long get(long key) {
+            return key + 1;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        final Storage oldImplementation = new StorageImpl();
+        final Storage newImplementation = new StorageImpl();
+
+        direct = oldImplementation;
+        weightedRoundRobin =
+                new WeightedRoundRobinBuilder<Storage>()
+                        .add(99, oldImplementation)
+                        .add(1, newImplementation)
+                        .proxyBackend(backend)
+                        .build(Storage.class);
+        weightedSharded =
+                new WeightedShardedBuilder<Storage>()
+                        .add(99, oldImplementation)
+                        .add(1, newImplementation)
+                        .proxyBackend(backend)
+                        .build(Storage.class, HashCode.fromInt(42));
+        circuitBreakerFallback =
+                new CircuitBreakerFallbackBuilder()
+                        .proxyBackend(backend)
+                        .build(Storage.class, oldImplementation, newImplementation);
+        circuitBreakerFallbackSteadyState =
+                new CircuitBreakerFallbackBuilder()
+                        .evaluationInterval(Duration.ofSeconds(1))
+                        .proxyBackend(backend)
+                        .build(Storage.class, oldImplementation, newImplementation);
+    }
+
+    @Benchmark
+    public long direct() {
+        return direct.get(key++);
+    }
+
+    @Benchmark
+    public long weightedRoundRobin() {
+        return weightedRoundRobin.get(key++);
+    }
+
+    @Benchmark
+    public long weightedSharded() {
+        return weightedSharded.get(key++);
+    }
+
+    @Benchmark
+    public long circuitBreakerFallback() {
+        return circuitBreakerFallback.get(key++);
+    }
+
+    @Benchmark
+    public long circuitBreakerFallbackSteadyState() {
+        return circuitBreakerFallbackSteadyState.get(key++);
+    }
+}
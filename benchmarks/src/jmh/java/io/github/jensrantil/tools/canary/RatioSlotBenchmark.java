@@ -0,0 +1,68 @@
+package io.github.jensrantil.tools.canary;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Contention on a single {@link RatioSlot} that many threads register outcomes in. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RatioSlotBenchmark {
+    private final RatioSlot slot = new RatioSlot();
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public void uncontendedRegister() {
+        slot.registerSuccess();
+    }
+
+    @Benchmark
+    @Group("writers")
+    @GroupThreads(16)
+    public void writersRegister() {
+        slot.registerSuccess();
+    }
+
+    @Benchmark
+    @Group("readersAndWriters")
+    @GroupThreads(15)
+    public void readersAndWritersRegister() {
+        slot.registerSuccess();
+    }
+
+    @Benchmark
+    @Group("readersAndWriters")
+    @GroupThreads(1)
+    public Summary readersAndWritersGetSummary() {
+        return slot.getSummary();
+    }
+
+    /** Writers racing with a thread that continuously resets the slot, like a slot roll does. */
+    @Benchmark
+    @Group("resets")
+    @GroupThreads(15)
+    public void resetsRegister() {
+        slot.registerSuccess();
+    }
+
+    @Benchmark
+    @Group("resets")
+    @GroupThreads(1)
+    public void resetsReset() {
+        slot.reset();
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of picking a delegate with {@link WeightedRoundRobinSelector} and {@link
+ * SmoothWeightedRoundRobinSelector}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WeightedRoundRobinSelectorBenchmark {
+
+    @Param({"2", "8", "32"})
+    public int arms;
+
+    private WeightedRoundRobinSelector<Object> selector;
+    private SmoothWeightedRoundRobinSelector<Object> smoothSelector;
+
+    @Setup
+    public void setUp() {
+        final ImmutableList.Builder<WeightedImplementation<Object>> implementations =
+                ImmutableList.builder();
+        for (int i = 0; i < arms; i++) {
+            // Skewed weights, like a canary rollout.
+            implementations.add(new WeightedImplementation<>(i == 0 ? 1000 : 1, new Object()));
+        }
+        selector =
+                new WeightedRoundRobinSelector<>(
+                        RandomSource.threadLocal(), implementations.build());
+        smoothSelector = new SmoothWeightedRoundRobinSelector<>(implementations.build());
+    }
+
+    @Benchmark
+    public Object select() {
+        return selector.select(null, null);
+    }
+
+    @Benchmark
+    public Object selectSmooth() {
+        return smoothSelector.select(null, null);
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of picking a delegate with {@link WeightedShardedSelector} for different key types, hashed
+ * either using {@link Object#hashCode()} or using their typed {@link
+ * WeightedShardedBuilder.KeyType}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WeightedShardedSelectorBenchmark {
+    private static final int KEYS = 1024; // Power of two.
+
+    @Param({"STRING", "LONG", "UUID"})
+    public KeyType keyType;
+
+    @Param({"false", "true"})
+    public boolean typed;
+
+    private WeightedShardedSelector<KeyedInterface> selector;
+    private Method method;
+    private int ordinal;
+    private Object[][] arguments;
+    private int next;
+
+    public enum KeyType {
+        STRING(WeightedShardedBuilder.KeyType.CHAR_SEQUENCE) {
+            @Override
+            Object key(Random random) {
+                return "user-" + random.nextInt(1_000_000);
+            }
+        },
+        LONG(WeightedShardedBuilder.KeyType.LONG) {
+            @Override
+            Object key(Random random) {
+                return random.nextLong();
+            }
+        },
+        UUID(WeightedShardedBuilder.KeyType.UUID) {
+            @Override
+            Object key(Random random) {
+                return new java.util.UUID(random.nextLong(), random.nextLong());
+            }
+        };
+
+        final WeightedShardedBuilder.KeyType hashing;
+
+        KeyType(WeightedShardedBuilder.KeyType hashing) {
+            this.hashing = hashing;
+        }
+
+        abstract Object key(Random random);
+    }
+
+    public interface KeyedInterface {
+        void call(Object key);
+    }
+
+    /** Like the default selector, but without rejecting {@code Object} keys for typed hashing. */
+    private static class UncheckedFirstParamSelector
+            implements WeightedShardedSelector.ParameterSelector {
+        @Override
+        public Object pick(Method method, Object[] args) {
+            return args[0];
+        }
+
+        @Override
+        public void validateType(Class<?> clazz) {
+            // deliberately left empty.
+        }
+    }
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        final KeyedInterface implementation = key -> {};
+        selector =
+                new WeightedShardedSelector<>(
+                        KeyedInterface.class,
+                        HashCode.fromInt(42),
+                        new UncheckedFirstParamSelector(),
+                        typed ? keyType.hashing : WeightedShardedBuilder.KeyType.HASH_CODE,
+                        ImmutableList.of(
+                                new WeightedImplementation<>(1, implementation),
+                                new WeightedImplementation<>(99, implementation)));
+
+        method = KeyedInterface.class.getMethod("call", Object.class);
+        ordinal = ProxyMethods.of(KeyedInterface.class).ordinal(method);
+
+        final Random random = new Random(42);
+        arguments = new Object[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            arguments[i] = new Object[] {keyType.key(random)};
+        }
+    }
+
+    @Benchmark
+    public Object select() {
+        next = (next + 1) & (KEYS - 1);
+        return selector.select(ordinal, method, arguments[next]);
+    }
+}
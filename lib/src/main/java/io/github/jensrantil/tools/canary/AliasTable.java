@@ -0,0 +1,89 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Vose's alias method for picking an index with a probability proportional to its weight in O(1)
+ * time, regardless of the number of weights. See <a
+ * href="https://www.keithschwarz.com/darts-dice-coins/">Darts, Dice, and Coins</a>.
+ *
+ * <p>All arithmetic is done on integers, so the resulting distribution is exactly the one of the
+ * weights and not an approximation of it.
+ *
+ * <p>Immutable class.
+ */
+final class AliasTable {
+    private final int total;
+    // Column i is picked with probability threshold[i] / total, otherwise alias[i] is.
+    private final int[] threshold;
+    private final int[] alias;
+
+    /** @param weights strictly positive weights. Their sum must fit in an int. */
+    AliasTable(List<Integer> weights) {
+        Preconditions.checkArgument(!weights.isEmpty(), "at least one weight is needed");
+
+        final int n = weights.size();
+        long total = 0;
+        for (int weight : weights) {
+            Preconditions.checkArgument(weight > 0, "weight must be strictly larger than zero.");
+            total += weight;
+        }
+        Preconditions.checkArgument(total <= Integer.MAX_VALUE, "sum of weights is too large");
+
+        // Every column holds `total` units. Weight i is scaled to weights[i] * n units, so that all
+        // weights together fill all n columns exactly.
+        final long[] scaled = new long[n];
+        final Deque<Integer> small = new ArrayDeque<>();
+        final Deque<Integer> large = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            scaled[i] = (long) weights.get(i) * n;
+            (scaled[i] < total ? small : large).push(i);
+        }
+
+        this.total = (int) total;
+        this.threshold = new int[n];
+        this.alias = new int[n];
+        while (!small.isEmpty() && !large.isEmpty()) {
+            final int less = small.pop();
+            final int more = large.pop();
+
+            threshold[less] = (int) scaled[less];
+            alias[less] = more;
+
+            // `more` donates what's left of the column of `less`.
+            scaled[more] -= total - scaled[less];
+            (scaled[more] < total ? small : large).push(more);
+        }
+        // Whatever is left fills up its own column. Since integer arithmetic is exact, this is only
+        // ever columns that are exactly full.
+        for (int i : large) {
+            threshold[i] = this.total;
+            alias[i] = i;
+        }
+        for (int i : small) {
+            threshold[i] = this.total;
+            alias[i] = i;
+        }
+    }
+
+    int size() {
+        return threshold.length;
+    }
+
+    /** @return an index, picked with a probability proportional to its weight. */
+    int next(RandomSource random) {
+        return pick(random.nextInt(threshold.length), random.nextInt(total));
+    }
+
+    /**
+     * @param column a value in [0, size()).
+     * @param coin a value in [0, sum of weights).
+     * @return the index that column and coin maps to.
+     */
+    int pick(int column, int coin) {
+        return coin < threshold[column] ? column : alias[column];
+    }
+}
@@ -0,0 +1,243 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Splits a call whose shard key is a collection of keys into one call per implementation, each
+ * given the keys that map to it, and merges the results. Every key maps to the implementation that
+ * {@link WeightedShardedSelector} would pick for it as a single key. A call whose keys all map to
+ * the same implementation is passed on as is.
+ *
+ * <p>A method is split if its key parameter is a {@link List}, {@link Set} or {@link Collection}
+ * and it returns nothing, a {@link Map}, or one of those. Results are merged into a {@link
+ * LinkedHashMap}, a {@link LinkedHashSet} or an {@link ArrayList}. A {@link List} result is put
+ * back in the order of the keys if every implementation returned one element per key it was given,
+ * and otherwise concatenated.
+ *
+ * <p>Immutable class.
+ */
+final class BulkSharder implements InvocationHandler {
+    private final WeightedShardedSelector<?> selector;
+    private final ProxyMethods methods;
+    private final ShardKeyTable keys;
+    private final Executor executor;
+
+    BulkSharder(
+            WeightedShardedSelector<?> selector,
+            ProxyMethods methods,
+            ShardKeyTable keys,
+            Executor executor) {
+        this.selector = selector;
+        this.methods = methods;
+        this.keys = keys;
+        this.executor = executor;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("executor", executor).toString();
+    }
+
+    /** @return whether calls to the method at ordinal are split. */
+    static boolean isBulk(Method method, ShardKeyTable keys, int ordinal) {
+        if (!keys.isParameter(ordinal)) {
+            return false;
+        }
+        final Class<?> returnType = method.getReturnType();
+        return isCollection(keys.keyType(ordinal))
+                && (returnType == void.class
+                        || returnType == Map.class
+                        || isCollection(returnType));
+    }
+
+    private static boolean isCollection(Class<?> type) {
+        return type == List.class || type == Set.class || type == Collection.class;
+    }
+
+    /** @return the declared type of the keys of a bulk method, or {@code null} if unknown. */
+    static Class<?> elementType(Method method, ShardKeyTable keys, int ordinal) {
+        final Type type = method.getGenericParameterTypes()[keys.parameter(ordinal)];
+        if (type instanceof ParameterizedType) {
+            final Type element = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (element instanceof Class) {
+                return (Class<?>) element;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final int ordinal = methods.ordinal(method);
+        final int parameter = keys.parameter(ordinal);
+        final Collection<?> batch = (Collection<?>) args[parameter];
+
+        // The implementation of every key, in iteration order.
+        final int[] owners = new int[batch.size()];
+        boolean split = false;
+        int i = 0;
+        for (Object key : batch) {
+            owners[i] = selector.indexOf(key);
+            split |= owners[i] != owners[0];
+            i++;
+        }
+        if (!split) {
+            final Object target =
+                    owners.length == 0
+                            ? selector.defaultRoute()
+                            : selector.implementation(owners[0]);
+            return methods.invoke(ordinal, target, args);
+        }
+
+        final List<List<Object>> subBatches = new ArrayList<>(selector.implementationCount());
+        for (int index = 0; index < selector.implementationCount(); index++) {
+            subBatches.add(null);
+        }
+        i = 0;
+        for (Object key : batch) {
+            final int owner = owners[i++];
+            if (subBatches.get(owner) == null) {
+                subBatches.set(owner, new ArrayList<>());
+            }
+            subBatches.get(owner).add(key);
+        }
+
+        // Indexed like subBatches.
+        final List<FutureTask<Object>> calls = new ArrayList<>(subBatches.size());
+        FutureTask<Object> last = null;
+        for (int index = 0; index < subBatches.size(); index++) {
+            final List<Object> subBatch = subBatches.get(index);
+            if (subBatch == null) {
+                calls.add(null);
+                continue;
+            }
+            final Object[] subArgs = args.clone();
+            subArgs[parameter] =
+                    keys.keyType(ordinal) == Set.class ? new LinkedHashSet<>(subBatch) : subBatch;
+            final Object target = selector.implementation(index);
+            final FutureTask<Object> call =
+                    new FutureTask<>(() -> call(ordinal, target, subArgs));
+            calls.add(call);
+            if (last != null) {
+                execute(last);
+            }
+            last = call;
+        }
+        // The calling thread makes the last call itself, rather than just waiting.
+        last.run();
+
+        final List<Object> results = new ArrayList<>(calls.size());
+        try {
+            for (FutureTask<Object> call : calls) {
+                results.add(call != null ? call.get() : null);
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while waiting for a bulk call");
+        } finally {
+            for (FutureTask<Object> call : calls) {
+                if (call != null) {
+                    call.cancel(true);
+                }
+            }
+        }
+        return merge(method.getReturnType(), owners, subBatches, results);
+    }
+
+    private Object call(int ordinal, Object target, Object[] args) throws Exception {
+        try {
+            return methods.invoke(ordinal, target, args);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // Only other Throwable subclasses, which no sane implementation throws.
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    private void execute(FutureTask<Object> call) {
+        try {
+            executor.execute(call);
+        } catch (RejectedExecutionException e) {
+            call.run();
+        }
+    }
+
+    private static Object merge(
+            Class<?> returnType,
+            int[] owners,
+            List<List<Object>> subBatches,
+            List<Object> results) {
+        if (returnType == void.class) {
+            return null;
+        }
+        if (returnType == Map.class) {
+            final Map<Object, Object> merged = new LinkedHashMap<>();
+            for (Object result : results) {
+                if (result != null) {
+                    merged.putAll((Map<?, ?>) result);
+                }
+            }
+            return merged;
+        }
+        if (returnType == Set.class) {
+            final Set<Object> merged = new LinkedHashSet<>();
+            for (Object result : results) {
+                if (result != null) {
+                    merged.addAll((Collection<?>) result);
+                }
+            }
+            return merged;
+        }
+
+        final List<Object> merged = new ArrayList<>(owners.length);
+        if (returnType == List.class && isOnePerKey(subBatches, results)) {
+            final List<Iterator<?>> iterators = new ArrayList<>(results.size());
+            for (Object result : results) {
+                iterators.add(result != null ? ((List<?>) result).iterator() : null);
+            }
+            for (int owner : owners) {
+                merged.add(iterators.get(owner).next());
+            }
+            return merged;
+        }
+        for (Object result : results) {
+            if (result != null) {
+                merged.addAll((Collection<?>) result);
+            }
+        }
+        return merged;
+    }
+
+    private static boolean isOnePerKey(List<List<Object>> subBatches, List<Object> results) {
+        for (int index = 0; index < subBatches.size(); index++) {
+            final List<Object> subBatch = subBatches.get(index);
+            if (subBatch != null
+                    && (results.get(index) == null
+                            || ((List<?>) results.get(index)).size() != subBatch.size())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
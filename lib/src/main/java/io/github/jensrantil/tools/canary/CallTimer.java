@@ -0,0 +1,54 @@
+package io.github.jensrantil.tools.canary;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single daemon thread, shared by all proxies, that runs tasks once a call has been running for
+ * a while. This way a call can be made on the calling thread, and only calls that take too long
+ * involve another thread. Scheduling a task doesn't hop threads, but scheduling and cancelling it
+ * each take the lock of the timer queue, which every proxy in the JVM contends for.
+ *
+ * <p>Tasks must be short and never block, since they delay every other task. Anything else, such
+ * as user code, must be {@link #dispatch(Runnable) dispatched}.
+ */
+final class CallTimer {
+    private static final ScheduledThreadPoolExecutor EXECUTOR = createExecutor();
+    // Grows with the tasks dispatched at once, which are few since most calls return in time.
+    private static final ExecutorService DISPATCHER =
+            Executors.newCachedThreadPool(
+                    task -> {
+                        final Thread thread = new Thread(task, "canary-call-dispatcher");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+    private CallTimer() {}
+
+    private static ScheduledThreadPoolExecutor createExecutor() {
+        final ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(
+                        1,
+                        task -> {
+                            final Thread thread = new Thread(task, "canary-call-timer");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        // Most calls return in time, so most tasks are cancelled.
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /** @return cancel it once the task is no longer needed. */
+    static ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+        return EXECUTOR.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Runs the rest of a task on another thread, so that it can't delay other tasks. */
+    static void dispatch(Runnable task) {
+        DISPATCHER.execute(task);
+    }
+}
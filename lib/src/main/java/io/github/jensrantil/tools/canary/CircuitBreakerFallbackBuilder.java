@@ -3,10 +3,15 @@ package io.github.jensrantil.tools.canary;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
-import java.lang.reflect.Proxy;
+import com.google.common.base.Ticker;
+import java.lang.reflect.Method;
 import java.time.Clock;
 import java.time.Duration;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * {@link CircuitBreakerFallbackBuilder} allows you to do safe rollout of new Java `interface`
@@ -22,47 +27,234 @@ import java.util.Random;
 public class CircuitBreakerFallbackBuilder implements Cloneable {
     // The fields here are not private to be accessible by ExperimentInvocationHandler.
     final Observer observer;
+    final Observer oldObserver;
     final double epsilon;
-    final Random random;
-    final Clock clock;
+    final RoutingPolicy routingPolicy;
+    final RandomSource random;
+    final Ticker ticker;
+    final ProxyBackend proxyBackend;
+    // null if calls aren't hedged.
+    final Executor hedgingExecutor;
+    final double hedgingBudget;
+    final double hedgingPercentile;
+    final boolean hedgingOnCallingThread;
+    // null if all methods are observed together.
+    final Function<? super Method, ?> methodGroup;
+    final Supplier<? extends Observer> groupObservers;
+    // 0 if the routing policy is evaluated on every call.
+    final long evaluationIntervalNanos;
+    final double stateHysteresis;
+    // null if unlimited.
+    final ConcurrencyLimiter concurrencyLimiter;
+    final ConcurrencyLimiter oldConcurrencyLimiter;
+    // null if calls have no deadline.
+    final Executor deadlineExecutor;
+    final Function<? super Method, Duration> deadlines;
 
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
                 .add("observer", observer)
+                .add("oldObserver", oldObserver)
                 .add("epsilon", epsilon)
+                .add("routingPolicy", routingPolicy)
+                .add("proxyBackend", proxyBackend)
+                .add("hedgingExecutor", hedgingExecutor)
+                .add("hedgingBudget", hedgingBudget)
+                .add("hedgingPercentile", hedgingPercentile)
+                .add("hedgingOnCallingThread", hedgingOnCallingThread)
+                .add("methodGroup", methodGroup)
+                .add("evaluationIntervalNanos", evaluationIntervalNanos)
+                .add("stateHysteresis", stateHysteresis)
+                .add("concurrencyLimiter", concurrencyLimiter)
+                .add("oldConcurrencyLimiter", oldConcurrencyLimiter)
+                .add("deadlineExecutor", deadlineExecutor)
                 .toString();
     }
 
+    /**
+     * The fields of a builder, while a copy is being made.
+     *
+     * <p>Mutable class.
+     */
+    private static final class Params {
+        Observer observer;
+        Observer oldObserver;
+        double epsilon;
+        RoutingPolicy routingPolicy;
+        RandomSource random;
+        Ticker ticker;
+        ProxyBackend proxyBackend;
+        Executor hedgingExecutor;
+        double hedgingBudget;
+        double hedgingPercentile;
+        boolean hedgingOnCallingThread;
+        Function<? super Method, ?> methodGroup;
+        Supplier<? extends Observer> groupObservers;
+        long evaluationIntervalNanos;
+        double stateHysteresis;
+        ConcurrencyLimiter concurrencyLimiter;
+        ConcurrencyLimiter oldConcurrencyLimiter;
+        Executor deadlineExecutor;
+        Function<? super Method, Duration> deadlines;
+
+        /** The defaults. */
+        Params() {
+            this.ticker = Ticker.systemTicker();
+            // The same ticker for this class as well as the FixedWindowObserver.
+            this.observer = new FixedWindowObserver(ticker, 10, Duration.ofSeconds(30));
+            this.oldObserver = Observer.EMPTY_OBSERVER;
+            this.epsilon = 0.01;
+            this.routingPolicy = RoutingPolicy.SUCCESS_RATIO;
+            this.random = RandomSource.threadLocal();
+            this.proxyBackend = ProxyBackend.GENERATED;
+            this.hedgingPercentile = 95;
+            this.stateHysteresis = 0.05;
+        }
+
+        Params(CircuitBreakerFallbackBuilder builder) {
+            this.observer = builder.observer;
+            this.oldObserver = builder.oldObserver;
+            this.epsilon = builder.epsilon;
+            this.routingPolicy = builder.routingPolicy;
+            this.random = builder.random;
+            this.ticker = builder.ticker;
+            this.proxyBackend = builder.proxyBackend;
+            this.hedgingExecutor = builder.hedgingExecutor;
+            this.hedgingBudget = builder.hedgingBudget;
+            this.hedgingPercentile = builder.hedgingPercentile;
+            this.hedgingOnCallingThread = builder.hedgingOnCallingThread;
+            this.methodGroup = builder.methodGroup;
+            this.groupObservers = builder.groupObservers;
+            this.evaluationIntervalNanos = builder.evaluationIntervalNanos;
+            this.stateHysteresis = builder.stateHysteresis;
+            this.concurrencyLimiter = builder.concurrencyLimiter;
+            this.oldConcurrencyLimiter = builder.oldConcurrencyLimiter;
+            this.deadlineExecutor = builder.deadlineExecutor;
+            this.deadlines = builder.deadlines;
+        }
+    }
+
     /** Instantiates a new {@link CircuitBreakerFallbackBuilder} with defaults. */
     public CircuitBreakerFallbackBuilder() {
-        this(0.01, new Random(), Clock.systemUTC());
+        this(new Params());
     }
 
-    // Constructor needed mostly to use the same clock for this class as well as as the
-    // FixedWindowObserver.
-    private CircuitBreakerFallbackBuilder(
-            double epsilon, Random random, Clock clock) {
+    private CircuitBreakerFallbackBuilder(Params params) {
+        this.observer = params.observer;
+        this.oldObserver = params.oldObserver;
+        this.epsilon = params.epsilon;
+        this.routingPolicy = params.routingPolicy;
+        this.random = params.random;
+        this.ticker = params.ticker;
+        this.proxyBackend = params.proxyBackend;
+        this.hedgingExecutor = params.hedgingExecutor;
+        this.hedgingBudget = params.hedgingBudget;
+        this.hedgingPercentile = params.hedgingPercentile;
+        this.hedgingOnCallingThread = params.hedgingOnCallingThread;
+        this.methodGroup = params.methodGroup;
+        this.groupObservers = params.groupObservers;
+        this.evaluationIntervalNanos = params.evaluationIntervalNanos;
+        this.stateHysteresis = params.stateHysteresis;
+        this.concurrencyLimiter = params.concurrencyLimiter;
+        this.oldConcurrencyLimiter = params.oldConcurrencyLimiter;
+        this.deadlineExecutor = params.deadlineExecutor;
+        this.deadlines = params.deadlines;
+    }
 
-        this(
-                new FixedWindowObserver(clock, 10, Duration.ofSeconds(30)),
-                epsilon,
-                random,
-                clock);
+    /** @return a copy of this builder, with the changes made by change. */
+    private CircuitBreakerFallbackBuilder copy(Consumer<Params> change) {
+        final Params params = new Params(this);
+        change.accept(params);
+        return new CircuitBreakerFallbackBuilder(params);
     }
 
-    private CircuitBreakerFallbackBuilder(
-            Observer observer, double epsilon, Random random, Clock clock) {
+    /**
+     * @param b observes the calls made to the new implementation. Its success ratio decides how
+     *     many calls go to the new implementation. Defaults to a {@link FixedWindowObserver} of ten
+     *     30 second slots.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder observer(Observer b) {
+        return copy(params -> params.observer = b);
+    }
 
-        this.observer = observer;
-        this.epsilon = epsilon;
-        this.random = random;
-        this.clock = clock;
+    /**
+     * @param oldObserver observes the calls made to the old implementation, for example a {@link
+     *     LatencyObserver} to compare the latencies of both implementations. Doesn't affect
+     *     routing. Defaults to {@link Observer#EMPTY_OBSERVER}.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder oldObserver(Observer oldObserver) {
+        return copy(params -> params.oldObserver = Preconditions.checkNotNull(oldObserver));
     }
 
-    public CircuitBreakerFallbackBuilder observer(Observer b) {
-        return new CircuitBreakerFallbackBuilder(
-                b, this.epsilon, this.random, this.clock);
+    /**
+     * Observe and route every method of the interface on its own, so that a method failing in the
+     * new implementation only rolls back calls to that method. Shorthand for {@link
+     * #observerPerGroup(Function, Supplier)} with every method in a group of its own.
+     *
+     * @param observers creates the observer of the new implementation of every method.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder observerPerMethod(Supplier<? extends Observer> observers) {
+        return observerPerGroup(method -> method, observers);
+    }
+
+    /**
+     * Observe and route groups of methods on their own. Methods are grouped by their group key,
+     * once when the proxy is built, so routing a call looks its group up by index. Every group
+     * has an observer of its own, from observers, and a {@link RoutingPolicy#copy() copy} of the
+     * routing policy. The observer set by {@link #observer(Observer)} only observes methods
+     * declared by {@link Object}. Latencies of the old implementation are recorded per group
+     * unless {@link #oldObserver(Observer)} records them itself.
+     *
+     * <pre>{@code
+     * new CircuitBreakerFallbackBuilder()
+     *     .observerPerGroup(
+     *         method -> method.getName().startsWith("get") ? "reads" : "writes",
+     *         () -> new FixedWindowObserver(Ticker.systemTicker(), 10, Duration.ofSeconds(30)))
+     * }</pre>
+     *
+     * @param group maps every method of the interface to its group key. Keys are compared using
+     *     {@link Object#equals(Object)}.
+     * @param observers creates the observer of the new implementation of every group. Must return
+     *     a new observer every call.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder observerPerGroup(
+            Function<? super Method, ?> group, Supplier<? extends Observer> observers) {
+        return copy(
+                params -> {
+                    params.methodGroup = Preconditions.checkNotNull(group);
+                    params.groupObservers = Preconditions.checkNotNull(observers);
+                });
+    }
+
+    /**
+     * Limit the number of concurrent calls to the new implementation. Calls beyond the limit spill
+     * over to the old implementation rather than queue up, so that a new implementation that
+     * slows down doesn't hold on to the calling threads. If both implementations are at their
+     * limits, the call fails with a {@link java.util.concurrent.RejectedExecutionException}, which
+     * isn't registered with the observers. By default, calls aren't limited.
+     *
+     * @param limiter adapts the limit to the latencies of the new implementation.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder concurrencyLimiter(ConcurrencyLimiter limiter) {
+        return copy(params -> params.concurrencyLimiter = Preconditions.checkNotNull(limiter));
+    }
+
+    /**
+     * Limit the number of concurrent calls to the old implementation, see {@link
+     * #concurrencyLimiter(ConcurrencyLimiter)}. Calls beyond the limit spill over to the new
+     * implementation. By default, calls aren't limited.
+     *
+     * @param limiter adapts the limit to the latencies of the old implementation.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder oldConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        return copy(params -> params.oldConcurrencyLimiter = Preconditions.checkNotNull(limiter));
     }
 
     /**
@@ -77,20 +269,200 @@ public class CircuitBreakerFallbackBuilder implements Cloneable {
         Preconditions.checkArgument(epsilon >= 0, "epsilon must be in range [0,1]");
         Preconditions.checkArgument(epsilon <= 1, "epsilon must be in range [0,1]");
 
-        return new CircuitBreakerFallbackBuilder(
-                this.observer, epsilon, this.random, this.clock);
+        return copy(params -> params.epsilon = epsilon);
+    }
+
+    /**
+     * @param routingPolicy decides the share of the calls that are routed to the new
+     *     implementation. Defaults to {@link RoutingPolicy#SUCCESS_RATIO}. See {@link
+     *     LatencyBudgetPolicy} to also take latency into account.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder routingPolicy(RoutingPolicy routingPolicy) {
+        return copy(params -> params.routingPolicy = Preconditions.checkNotNull(routingPolicy));
+    }
+
+    /**
+     * Evaluate the routing policy once per interval rather than on every call. Routing is then
+     * CLOSED while the new implementation gets all calls, OPEN while the old one does, and
+     * DEGRADED in between. While CLOSED or OPEN, a call is routed without drawing random numbers
+     * or summarizing the observers, and exploration is replaced by probing the other
+     * implementation every {@code 2 / epsilon}:th call. The price is that the proxy reacts to a
+     * failing new implementation up to an interval later. Consider a {@link CoarseTicker} as
+     * {@link #ticker(Ticker)}, which is read by every DEGRADED call and every 16th other call. See
+     * {@link #stateHysteresis(double)} for when routing leaves CLOSED or OPEN. By default, the
+     * policy is evaluated on every call.
+     *
+     * @param interval how often the routing policy is evaluated. {@link Duration#ZERO} evaluates
+     *     it on every call.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder evaluationInterval(Duration interval) {
+        Preconditions.checkArgument(!interval.isNegative(), "interval must not be negative");
+        return copy(params -> params.evaluationIntervalNanos = interval.toNanos());
+    }
+
+    /**
+     * How far the share of the new implementation must move before routing leaves CLOSED or OPEN,
+     * see {@link #evaluationInterval(Duration)}. Routing becomes CLOSED once the share is 1, and
+     * stays CLOSED until the share drops below {@code 1 - band}. Likewise, it becomes OPEN once the
+     * share is 0, and stays OPEN until the share rises above {@code band}. Without a band, a single
+     * failure among thousands of successes makes routing flap. Has no effect unless an evaluation
+     * interval is set.
+     *
+     * @param band a value between 0 <= band < 0.5. Defaults to 0.05.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder stateHysteresis(double band) {
+        Preconditions.checkArgument(band >= 0, "band must be in range [0,0.5)");
+        Preconditions.checkArgument(band < 0.5, "band must be in range [0,0.5)");
+        return copy(params -> params.stateHysteresis = band);
     }
 
     @VisibleForTesting
     public CircuitBreakerFallbackBuilder random(Random random) {
-        return new CircuitBreakerFallbackBuilder(
-                this.observer, this.epsilon, random, this.clock);
+        return randomSource(RandomSource.of(random));
+    }
+
+    /**
+     * @param random the source of randomness used to route calls. Defaults to {@link
+     *     RandomSource#threadLocal()}.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder randomSource(RandomSource random) {
+        return copy(params -> params.random = Preconditions.checkNotNull(random));
     }
 
     @VisibleForTesting
     public CircuitBreakerFallbackBuilder clock(Clock clock) {
-        return new CircuitBreakerFallbackBuilder(
-                this.observer, this.epsilon, this.random, clock);
+        return ticker(new ClockTicker(clock));
+    }
+
+    /**
+     * @param ticker the time source of the builder, used to time calls for observers that {@link
+     *     Observer#recordsLatency()}. Defaults to {@link Ticker#systemTicker()}. Note that an
+     *     observer has its own time source, see {@link #observer(Observer)}.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder ticker(Ticker ticker) {
+        return copy(params -> params.ticker = Preconditions.checkNotNull(ticker));
+    }
+
+    /**
+     * @param proxyBackend how the proxy should be implemented. Defaults to {@link
+     *     ProxyBackend#GENERATED}.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder proxyBackend(ProxyBackend proxyBackend) {
+        return copy(params -> params.proxyBackend = Preconditions.checkNotNull(proxyBackend));
+    }
+
+    /**
+     * Hedge calls: call the implementation picked by the routing first and, if it hasn't returned
+     * within the {@link #hedgingPercentile(double) usual duration} of its calls to the method, also
+     * call the other implementation. The first successful result is returned and the other call is
+     * interrupted. A call fails only if every implementation called failed. Both calls are
+     * registered with the observer of their implementation. Since both implementations may be
+     * called, only hedge interfaces whose methods are idempotent.
+     *
+     * <p>Both calls are made on executor while the calling thread waits for the first successful
+     * result, so the caller never waits for the slower call, even if it ignores interrupts. To
+     * save the thread hop, see {@link #hedgingOnCallingThread(boolean)}. Hedging trades extra load
+     * on the implementations for lower tail latency, so budget limits the ratio of calls that are
+     * hedged. Methods returning a {@link java.util.concurrent.CompletionStage} are never hedged.
+     * By default, calls aren't hedged.
+     *
+     * @param executor runs the calls. Must not run them on the submitting thread, or they can't
+     *     be hedged. If it rejects the first call, the call is made on the calling thread without
+     *     a hedge. If it rejects a hedge, the call isn't hedged.
+     * @param budget the maximum ratio of calls that are hedged, a value between 0 <= budget <= 1.
+     *     For example, 0.05 for at most 5% more calls to the implementations.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder hedging(Executor executor, double budget) {
+        Preconditions.checkArgument(budget >= 0 && budget <= 1, "budget must be in range [0,1]");
+        return copy(
+                params -> {
+                    params.hedgingExecutor = Preconditions.checkNotNull(executor);
+                    params.hedgingBudget = budget;
+                });
+    }
+
+    /**
+     * @param onCallingThread whether to make the first call of a {@link #hedging(Executor, double)
+     *     hedged} call on the calling thread rather than on the hedging executor. Saves a thread
+     *     hop per call, but a hedge that wins can only abandon the first call by interrupting the
+     *     calling thread. If the implementation ignores interrupts, the caller waits for the
+     *     slower call anyway. Only use it for implementations that respond to interrupts. The
+     *     hedge is started by a timer task, which every call schedules and cancels, taking the
+     *     lock of a timer queue shared by all proxies in the JVM twice. Defaults to false.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder hedgingOnCallingThread(boolean onCallingThread) {
+        return copy(params -> params.hedgingOnCallingThread = onCallingThread);
+    }
+
+    /**
+     * @param percentile the percentile of the recent durations of the calls to a method of an
+     *     implementation after which those calls are hedged, a value between 0 < percentile <=
+     *     100. Recomputed every second from 20 or more calls, per method. Until then, calls to the
+     *     method aren't hedged. Defaults to 95.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder hedgingPercentile(double percentile) {
+        Preconditions.checkArgument(
+                percentile > 0 && percentile <= 100, "percentile must be in range (0,100]");
+        return copy(params -> params.hedgingPercentile = percentile);
+    }
+
+    /**
+     * Give calls to the new implementation a deadline. A call that misses it is registered as a
+     * failure with the observer and made to the old implementation instead, so a hung new
+     * implementation is rolled back like a failing one. The call to the new implementation is
+     * interrupted, but keeps its {@link #concurrencyLimiter(ConcurrencyLimiter) permit} until it
+     * returns. Calls to the old implementation have no deadline.
+     *
+     * <p>Calls to the new implementation are made on executor while the calling thread waits for
+     * at most the deadline. Once 100 calls of a method in a row have returned within half their
+     * deadline, the next calls of the method are made on the calling thread to save the thread
+     * hop, and a shared timer thread interrupts those that miss their deadline. Every such call
+     * schedules and cancels a timer task, taking the lock of a timer queue shared by all proxies
+     * in the JVM twice. The fallback of such a call is only made once the interrupted call
+     * returns, which is late if the implementation ignores interrupts. So as soon as a call of a
+     * method misses its deadline or takes more than half of it, the next calls of the method are
+     * made on executor again, but the calls already running on calling threads still wait for
+     * the implementation. Methods returning a {@link java.util.concurrent.CompletionStage} and
+     * methods that are {@link #hedging(Executor, double) hedged} have no deadline. By default,
+     * calls have no deadline.
+     *
+     * @param executor runs the calls to the new implementation. Must not run them on the
+     *     submitting thread, or the caller can't stop waiting at the deadline. If it rejects a
+     *     call, the call is made on the calling thread.
+     * @param deadline the time a call to the new implementation may take.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder deadline(Executor executor, Duration deadline) {
+        Preconditions.checkArgument(
+                !deadline.isNegative() && !deadline.isZero(), "deadline must be positive");
+        return deadline(executor, method -> deadline);
+    }
+
+    /**
+     * Give calls to the new implementation a deadline per method, see {@link #deadline(Executor,
+     * Duration)}.
+     *
+     * @param executor runs the calls to the new implementation.
+     * @param deadlines the deadline of every method, or {@code null} for none. Called once per
+     *     method when the proxy is built.
+     * @return a new copy of a {@link CircuitBreakerFallbackBuilder}.
+     */
+    public CircuitBreakerFallbackBuilder deadline(
+            Executor executor, Function<? super Method, Duration> deadlines) {
+        return copy(
+                params -> {
+                    params.deadlineExecutor = Preconditions.checkNotNull(executor);
+                    params.deadlines = Preconditions.checkNotNull(deadlines);
+                });
     }
 
     /**
@@ -109,10 +481,11 @@ public class CircuitBreakerFallbackBuilder implements Cloneable {
             T oldImplementation,
             T newImplementation) {
         Preconditions.checkArgument(type.isInterface(), "T must be an interface");
-        return (T)
-                Proxy.newProxyInstance(
-                        this.getClass().getClassLoader(),
-                        new Class[] {type},
-                        new CircuitBreakerFallbackDelegator(this, oldImplementation, newImplementation));
+        return ProxyFactory.create(
+                type,
+                new CircuitBreakerFallbackDelegator<>(
+                        type, this, oldImplementation, newImplementation),
+                proxyBackend,
+                this.getClass().getClassLoader());
     }
 }
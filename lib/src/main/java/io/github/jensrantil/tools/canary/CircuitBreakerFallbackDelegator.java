@@ -1,50 +1,160 @@
 package io.github.jensrantil.tools.canary;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * An InvocationHandler that delegates calls to the old implementation or new implementations. If
+ * A {@link ProxyRouter} that delegates calls to the old implementation or new implementations. If
  * new implementations start to throw exceptions, calls will instead of regulated to be delegated to
  * the old implementation instead. In essence, this class acts as a circuit breaker allowing for
  * quick automated rollback to old interface implementation without operator intervention.
  *
+ * <p>Optionally, methods are observed and routed per group, see {@link
+ * CircuitBreakerFallbackBuilder#observerPerGroup}. The group of every method is resolved once and
+ * looked up by ordinal.
+ *
  * <p>To create a new experiment, use {@link CircuitBreakerFallbackBuilder}.
  *
  * @param <T> the interface that the implementations are implementing.
  */
-class CircuitBreakerFallbackDelegator<T> implements InvocationHandler {
+class CircuitBreakerFallbackDelegator<T> extends ProxyRouter {
+    // The maximum number of hedges saved up by the budget.
+    private static final int HEDGE_BURST = 10;
+
     private final CircuitBreakerFallbackBuilder params;
-    private final ImplementationWithFeedback oldImplementation;
-    private final ImplementationWithFeedback newImplementation;
+    // null unless calls are hedged.
+    private final HedgeBudget hedgeBudget;
+    // Indexed by ordinal.
+    private final boolean[] hedged;
+    // Indexed by ordinal. 0 if calls to the method have no deadline.
+    private final long[] deadlineNanos;
+    // Observes methods declared by Object, and every method unless methods are grouped.
+    private final MethodGroup defaultGroup;
+    // Indexed by ordinal. Methods of the same group share an instance.
+    private final MethodGroup[] groups;
 
     public CircuitBreakerFallbackDelegator(
+            Class<T> type,
             CircuitBreakerFallbackBuilder params,
             T oldImplementation,
             T newImplementation) {
 
+        super(type);
         this.params = params;
-        this.oldImplementation =
-                new ImplementationWithFeedback(
+
+        this.hedged = new boolean[methods.size()];
+        if (params.hedgingExecutor != null) {
+            this.hedgeBudget = new HedgeBudget(params.hedgingBudget, HEDGE_BURST);
+            for (int ordinal = 0; ordinal < hedged.length; ordinal++) {
+                // Awaiting a CompletionStage would block the caller, which it didn't ask for.
+                hedged[ordinal] =
+                        methods.get(ordinal).getDeclaringClass() != Object.class
+                                && !methods.returnsCompletionStage(ordinal);
+            }
+        } else {
+            this.hedgeBudget = null;
+        }
+
+        this.deadlineNanos = new long[methods.size()];
+        if (params.deadlineExecutor != null) {
+            for (int ordinal = 0; ordinal < deadlineNanos.length; ordinal++) {
+                final Method method = methods.get(ordinal);
+                if (hedged[ordinal]
+                        || method.getDeclaringClass() == Object.class
+                        || methods.returnsCompletionStage(ordinal)) {
+                    continue;
+                }
+                final Duration deadline = params.deadlines.apply(method);
+                if (deadline != null) {
+                    Preconditions.checkArgument(
+                            !deadline.isNegative() && !deadline.isZero(),
+                            "deadline of %s must be positive",
+                            method);
+                    deadlineNanos[ordinal] = deadline.toNanos();
+                }
+            }
+        }
+
+        this.defaultGroup =
+                new MethodGroup(
+                        type,
                         oldImplementation,
-                        Observer.EMPTY_OBSERVER);
-        this.newImplementation =
-                new ImplementationWithFeedback(
-                        newImplementation, params.observer);
+                        newImplementation,
+                        params.observer,
+                        params.routingPolicy);
+        @SuppressWarnings("unchecked")
+        final MethodGroup[] groups =
+                (MethodGroup[]) new CircuitBreakerFallbackDelegator.MethodGroup[methods.size()];
+        this.groups = groups;
+        final Map<Object, MethodGroup> groupsByKey = new HashMap<>();
+        for (int ordinal = 0; ordinal < groups.length; ordinal++) {
+            final Method method = methods.get(ordinal);
+            if (params.methodGroup == null || method.getDeclaringClass() == Object.class) {
+                groups[ordinal] = defaultGroup;
+                continue;
+            }
+            groups[ordinal] =
+                    groupsByKey.computeIfAbsent(
+                            params.methodGroup.apply(method),
+                            key ->
+                                    new MethodGroup(
+                                            type,
+                                            oldImplementation,
+                                            newImplementation,
+                                            Preconditions.checkNotNull(
+                                                    params.groupObservers.get(),
+                                                    "observer of %s",
+                                                    key),
+                                            params.routingPolicy.copy()));
+        }
+    }
+
+    private static Observer withLatencies(CircuitBreakerFallbackBuilder params, Observer observer) {
+        if (params.routingPolicy.usesLatencies() && !observer.recordsLatency()) {
+            return new LatencyObserver(observer);
+        }
+        return observer;
     }
 
     // Immutable.
     private class ImplementationWithFeedback {
         public final T implementation;
         public final Observer observer;
+        // null if unlimited.
+        public final ConcurrencyLimiter limiter;
+        public final boolean timed;
 
-        public ImplementationWithFeedback(T implementation, Observer observer) {
+        public ImplementationWithFeedback(
+                T implementation, Observer observer, ConcurrencyLimiter limiter) {
 
             this.implementation = implementation;
             this.observer = observer;
+            this.limiter = limiter;
+            // Hedged calls are timed for their hedge delays.
+            this.timed =
+                    observer.recordsLatency()
+                            || limiter != null
+                            || params.hedgingExecutor != null;
         }
 
         @Override
@@ -52,16 +162,765 @@ class CircuitBreakerFallbackDelegator<T> implements InvocationHandler {
             return MoreObjects.toStringHelper(this)
                     .add("implementation", implementation)
                     .add("observer", observer)
+                    .add("limiter", limiter)
+                    .toString();
+        }
+
+        boolean tryAcquire() {
+            return limiter == null || limiter.tryAcquire();
+        }
+
+        boolean hasCapacity() {
+            return limiter == null || limiter.hasCapacity();
+        }
+    }
+
+    /**
+     * The observers and routing of a group of methods, see {@link
+     * CircuitBreakerFallbackBuilder#observerPerGroup}. Every group has its own routing policy.
+     *
+     * <p>Immutable class.
+     */
+    private final class MethodGroup {
+        final ImplementationWithFeedback oldImplementation;
+        final ImplementationWithFeedback newImplementation;
+        final RoutingPolicy routingPolicy;
+        // null if the routing policy is evaluated on every call.
+        final RoutingStateMachine stateMachine;
+        // null unless calls are hedged.
+        final Hedger preferOld;
+        final Hedger preferNew;
+        // null unless calls have deadlines.
+        final Deadliner deadliner;
+
+        MethodGroup(
+                Class<T> type,
+                T oldImplementation,
+                T newImplementation,
+                Observer observer,
+                RoutingPolicy routingPolicy) {
+            // Wrapped per group, if at all, so that latencies are compared per group.
+            this.oldImplementation =
+                    new ImplementationWithFeedback(
+                            oldImplementation,
+                            withLatencies(params, params.oldObserver),
+                            params.oldConcurrencyLimiter);
+            this.newImplementation =
+                    new ImplementationWithFeedback(
+                            newImplementation,
+                            withLatencies(params, observer),
+                            params.concurrencyLimiter);
+            this.routingPolicy = routingPolicy;
+            this.stateMachine =
+                    params.evaluationIntervalNanos > 0
+                            ? new RoutingStateMachine(
+                                    routingPolicy,
+                                    this.oldImplementation.observer,
+                                    this.newImplementation.observer,
+                                    params.ticker,
+                                    params.evaluationIntervalNanos,
+                                    params.epsilon,
+                                    params.stateHysteresis)
+                            : null;
+            if (params.hedgingExecutor != null) {
+                this.preferOld =
+                        new Hedger(type, this.oldImplementation, this.newImplementation);
+                this.preferNew =
+                        new Hedger(type, this.newImplementation, this.oldImplementation);
+            } else {
+                this.preferOld = null;
+                this.preferNew = null;
+            }
+            this.deadliner = params.deadlineExecutor != null ? new Deadliner(type, this) : null;
+        }
+
+        ImplementationWithFeedback other(ImplementationWithFeedback implementation) {
+            return implementation == newImplementation ? oldImplementation : newImplementation;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("oldImplementation", oldImplementation)
+                    .add("newImplementation", newImplementation)
+                    .add("routingPolicy", routingPolicy)
+                    .add("stateMachine", stateMachine)
+                    .toString();
+        }
+    }
+
+    /**
+     * A route that makes the call itself, through its own proxy, and registers the outcome of
+     * every implementation it calls.
+     */
+    private abstract class Interceptor implements InvocationHandler {
+        // Routed to by the proxy, see #target(Object). Calls #invoke.
+        final T proxy;
+
+        Interceptor(Class<T> type) {
+            this.proxy =
+                    type.cast(
+                            Proxy.newProxyInstance(
+                                    type.getClassLoader(), new Class<?>[] {type}, this));
+        }
+    }
+
+    /**
+     * Makes a hedged call: calls the preferred implementation and, if it hasn't returned within
+     * the hedge delay of the method and the budget allows, the other one too. The first successful
+     * result wins and the other call is interrupted. Every call registers its own outcome.
+     *
+     * <p>By default, both calls are made on the hedging executor while the calling thread waits,
+     * so the caller never waits for a losing call. If {@link
+     * CircuitBreakerFallbackBuilder#hedgingOnCallingThread}, the preferred call is made on the
+     * calling thread instead, and a {@link CallTimer} task starts the hedge. A call that returns
+     * within its hedge delay then never hops threads, but a losing call that ignores interrupts
+     * holds the caller until it returns.
+     *
+     * <p>Immutable class.
+     */
+    private final class Hedger extends Interceptor {
+        final ImplementationWithFeedback preferred;
+        final ImplementationWithFeedback other;
+        // Indexed by ordinal, null for methods that aren't hedged. Methods differ too much in
+        // duration to share a delay.
+        final HedgeDelay[] delays;
+
+        Hedger(
+                Class<T> type,
+                ImplementationWithFeedback preferred,
+                ImplementationWithFeedback other) {
+            super(type);
+            this.preferred = preferred;
+            this.other = other;
+            this.delays = new HedgeDelay[methods.size()];
+            for (int ordinal = 0; ordinal < delays.length; ordinal++) {
+                if (hedged[ordinal]) {
+                    delays[ordinal] = new HedgeDelay(params.ticker, params.hedgingPercentile);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("preferred", preferred)
+                    .add("delays", Arrays.toString(delays))
+                    .toString();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final int ordinal = methods.ordinal(method);
+            hedgeBudget.deposit();
+
+            final ImplementationWithFeedback implementation;
+            if (preferred.tryAcquire()) {
+                implementation = preferred;
+            } else if (other.tryAcquire()) {
+                implementation = other;
+            } else {
+                throw new RejectedExecutionException(
+                        "both implementations are at their concurrency limits");
+            }
+            if (implementation != preferred) {
+                return call(implementation, ordinal, args);
+            }
+            final long delayNanos = delays[ordinal].nanos();
+            if (delayNanos < 0) {
+                return callPreferred(ordinal, args);
+            }
+            if (params.hedgingOnCallingThread) {
+                return hedgeOnCallingThread(ordinal, args, delayNanos);
+            }
+            return hedgeOnExecutor(ordinal, args, delayNanos);
+        }
+
+        private Object hedgeOnExecutor(int ordinal, Object[] args, long delayNanos)
+                throws Throwable {
+            final Race race = new Race(ordinal, args);
+            final Attempt first = new Attempt(race, preferred);
+            if (!first.start()) {
+                return callPreferred(ordinal, args);
+            }
+            Attempt second = null;
+            try {
+                try {
+                    return race.get(delayNanos, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (hedgeBudget.tryWithdraw() && other.tryAcquire()) {
+                        second = new Attempt(race, other);
+                        if (!second.start()) {
+                            // Not a failure of the implementation.
+                            release(other, second.token);
+                            race.leave();
+                            second = null;
+                        }
+                    }
+                }
+                return race.get();
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted while waiting for a hedged call");
+            } finally {
+                first.abandon();
+                if (second != null) {
+                    second.abandon();
+                }
+            }
+        }
+
+        private Object hedgeOnCallingThread(int ordinal, Object[] args, long delayNanos)
+                throws Throwable {
+            final HedgedCall call = new HedgedCall(ordinal, args);
+            final ScheduledFuture<?> timer = CallTimer.schedule(call, delayNanos);
+            final long token = begin(ordinal, preferred);
+            Object result = null;
+            Throwable failure = null;
+            try {
+                result = methods.invoke(ordinal, preferred.implementation, args);
+            } catch (Throwable e) {
+                failure = e;
+            }
+
+            if (call.compareAndSet(HedgedCall.RUNNING, HedgedCall.DONE)) {
+                // Not hedged, the common case.
+                timer.cancel(false);
+                registerPreferred(ordinal, token, failure == null);
+                if (failure != null) {
+                    throw failure;
+                }
+                return result;
+            }
+
+            if (call.compareAndSet(HedgedCall.HEDGING, HedgedCall.DONE)) {
+                registerPreferred(ordinal, token, failure == null);
+                if (failure == null) {
+                    call.hedge.cancel(true);
+                    return result;
+                }
+                try {
+                    return call.hedgeOutcome.get();
+                } catch (ExecutionException e) {
+                    throw failure;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    call.hedge.cancel(true);
+                    throw new CancellationException("interrupted while waiting for a hedged call");
+                }
+            }
+
+            // The hedge won and interrupts this thread, if it hasn't already. Don't leak the
+            // interrupt to the caller.
+            while (call.get() != HedgedCall.INTERRUPTED) {
+                Thread.onSpinWait();
+            }
+            Thread.interrupted();
+            if (failure == null) {
+                registerPreferred(ordinal, token, true);
+            } else {
+                // Most likely interrupted by the hedge, which isn't a failure of the
+                // implementation.
+                release(preferred, token);
+            }
+            return call.hedgeOutcome.getNow(null);
+        }
+
+        private Object callPreferred(int ordinal, Object[] args) throws Throwable {
+            final long token = begin(ordinal, preferred);
+            final Object result;
+            try {
+                result = methods.invoke(ordinal, preferred.implementation, args);
+            } catch (Throwable e) {
+                registerPreferred(ordinal, token, false);
+                throw e;
+            }
+            registerPreferred(ordinal, token, true);
+            return result;
+        }
+
+        private void registerAttempt(
+                ImplementationWithFeedback implementation,
+                int ordinal,
+                long token,
+                boolean success) {
+            if (implementation == preferred) {
+                registerPreferred(ordinal, token, success);
+            } else {
+                register(implementation, token, success);
+            }
+        }
+
+        /** Like {@link #register}, and also records the duration for the hedge delay. */
+        private void registerPreferred(int ordinal, long token, boolean success) {
+            final long nanos = release(preferred, token);
+            delays[ordinal].record(nanos);
+            observe(preferred, nanos, success);
+        }
+
+        /**
+         * The calls of a hedged call made on the hedging executor. Completes with the first
+         * successful result or, once every call failed, with the first failure.
+         */
+        private final class Race extends CompletableFuture<Object> {
+            final int ordinal;
+            final Object[] args;
+            // The calls that haven't failed yet.
+            private final AtomicInteger pending = new AtomicInteger();
+            private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+            Race(int ordinal, Object[] args) {
+                this.ordinal = ordinal;
+                this.args = args;
+            }
+
+            void enter() {
+                pending.incrementAndGet();
+            }
+
+            /** Leaves the race without a failure, for a call that never ran. */
+            void leave() {
+                if (pending.decrementAndGet() == 0) {
+                    completeExceptionally(failure.get());
+                }
+            }
+
+            void fail(Throwable e) {
+                failure.compareAndSet(null, e);
+                leave();
+            }
+        }
+
+        /**
+         * A call of a {@link Race}, holding a permit of its implementation. Its state is the value
+         * of the integer.
+         */
+        private final class Attempt extends AtomicInteger implements Runnable {
+            static final int PENDING = 0;
+            static final int RUNNING = 1;
+            static final int DONE = 2;
+            // The caller no longer waits for the call.
+            static final int ABANDONED = 3;
+
+            final Race race;
+            final ImplementationWithFeedback implementation;
+            final long token;
+            // Interrupts the call when cancelled.
+            private final FutureTask<Void> task = new FutureTask<>(this, null);
+
+            Attempt(Race race, ImplementationWithFeedback implementation) {
+                this.race = race;
+                this.implementation = implementation;
+                this.token = begin(race.ordinal, implementation);
+                race.enter();
+            }
+
+            /** @return false if the executor rejected the call, which then never runs. */
+            boolean start() {
+                try {
+                    params.hedgingExecutor.execute(task);
+                    return true;
+                } catch (RejectedExecutionException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public void run() {
+                if (!compareAndSet(PENDING, RUNNING)) {
+                    return;
+                }
+                final Object result;
+                try {
+                    result = methods.invoke(race.ordinal, implementation.implementation, race.args);
+                } catch (Throwable e) {
+                    // A call failing after the race was decided was most likely interrupted by
+                    // the winner, which isn't a failure of the implementation.
+                    if (compareAndSet(RUNNING, DONE) && !race.isDone()) {
+                        registerAttempt(implementation, race.ordinal, token, false);
+                    } else {
+                        release(implementation, token);
+                    }
+                    race.fail(e);
+                    return;
+                }
+                set(DONE);
+                registerAttempt(implementation, race.ordinal, token, true);
+                race.complete(result);
+            }
+
+            void abandon() {
+                if (compareAndSet(PENDING, ABANDONED)) {
+                    // Never runs, so it won't release its permit.
+                    release(implementation, token);
+                } else if (compareAndSet(RUNNING, ABANDONED)) {
+                    task.cancel(true);
+                }
+            }
+        }
+
+        /**
+         * The state of a hedged call made on the calling thread, as the value of the integer. Also
+         * starts the hedge, when run by the {@link CallTimer}.
+         */
+        private final class HedgedCall extends AtomicInteger implements Runnable {
+            // The preferred call is running on the calling thread, without a hedge.
+            static final int RUNNING = 0;
+            // The hedge has been started.
+            static final int HEDGING = 1;
+            // The preferred call returned first.
+            static final int DONE = 2;
+            // The hedge succeeded first and is about to interrupt the calling thread.
+            static final int HEDGE_WON = 3;
+            // The hedge succeeded first and has interrupted the calling thread.
+            static final int INTERRUPTED = 4;
+
+            final int ordinal;
+            final Object[] args;
+            final Thread caller = Thread.currentThread();
+            // Set before the state becomes HEDGING, and read after.
+            FutureTask<Void> hedge;
+            CompletableFuture<Object> hedgeOutcome;
+
+            HedgedCall(int ordinal, Object[] args) {
+                this.ordinal = ordinal;
+                this.args = args;
+            }
+
+            @Override
+            public void run() {
+                if (get() == RUNNING) {
+                    // The executor is user code.
+                    CallTimer.dispatch(this::hedge);
+                }
+            }
+
+            private void hedge() {
+                if (get() != RUNNING || !hedgeBudget.tryWithdraw()) {
+                    return;
+                }
+                hedgeOutcome = new CompletableFuture<>();
+                hedge = new FutureTask<>(this::callOther, null);
+                if (!compareAndSet(RUNNING, HEDGING)) {
+                    return;
+                }
+                try {
+                    params.hedgingExecutor.execute(hedge);
+                } catch (RejectedExecutionException e) {
+                    hedgeOutcome.completeExceptionally(e);
+                }
+            }
+
+            private void callOther() {
+                if (!other.tryAcquire()) {
+                    hedgeOutcome.completeExceptionally(
+                            new RejectedExecutionException(
+                                    "the implementation is at its concurrency limit"));
+                    return;
+                }
+                final long token = begin(ordinal, other);
+                final Object result;
+                try {
+                    result = methods.invoke(ordinal, other.implementation, args);
+                } catch (Throwable e) {
+                    // A call failing after the race was decided was most likely interrupted by
+                    // the winner, which isn't a failure of the implementation.
+                    if (get() == HEDGING) {
+                        register(other, token, false);
+                    } else {
+                        release(other, token);
+                    }
+                    hedgeOutcome.completeExceptionally(e);
+                    return;
+                }
+                register(other, token, true);
+                hedgeOutcome.complete(result);
+                if (compareAndSet(HEDGING, HEDGE_WON)) {
+                    caller.interrupt();
+                    set(INTERRUPTED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls the new implementation with a deadline, see {@link
+     * CircuitBreakerFallbackBuilder#deadline}. A call that misses it is registered as a failure
+     * right away and made to the old implementation instead. The permit of the new implementation
+     * has been acquired when routed.
+     *
+     * <p>Calls are made on the deadline executor, while the calling thread waits for at most the
+     * deadline. Once {@link #INLINE_AFTER} calls of a method in a row have returned within half
+     * their deadline, the next calls of the method are made on the calling thread instead, and a
+     * {@link CallTimer} task interrupts a call that misses its deadline. Such a call costs
+     * scheduling and cancelling a timer task, and never hops threads, but only returns once the
+     * implementation responds to the interrupt. So calls go back to the executor as soon as a
+     * call misses its deadline or comes close to it. Calls on the calling thread at that moment
+     * still wait for the implementation.
+     *
+     * <p>Thread-safe.
+     */
+    private final class Deadliner extends Interceptor {
+        // The number of calls of a method in a row that must return within half their deadline
+        // before the next calls are made on the calling thread.
+        private static final int INLINE_AFTER = 100;
+
+        // The states of an offloaded call.
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int TIMED_OUT = 3;
+        // The caller was interrupted while waiting.
+        private static final int ABANDONED = 4;
+
+        final MethodGroup group;
+        // Indexed by ordinal. The number of calls in a row that returned within half their
+        // deadline, up to INLINE_AFTER.
+        private final AtomicIntegerArray fastCalls;
+
+        Deadliner(Class<T> type, MethodGroup group) {
+            super(type);
+            this.group = group;
+            this.fastCalls = new AtomicIntegerArray(deadlineNanos.length);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("newImplementation", group.newImplementation)
+                    .add("fastCalls", fastCalls)
                     .toString();
         }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final int ordinal = methods.ordinal(method);
+            if (fastCalls.get(ordinal) >= INLINE_AFTER) {
+                return callInline(ordinal, args);
+            }
+            return offload(ordinal, args);
+        }
+
+        /** Counts a call that started at start, or resets the count if it came close. */
+        private void count(int ordinal, long start) {
+            if (params.ticker.read() - start > deadlineNanos[ordinal] / 2) {
+                fastCalls.set(ordinal, 0);
+            } else if (fastCalls.get(ordinal) < INLINE_AFTER) {
+                fastCalls.incrementAndGet(ordinal);
+            }
+        }
+
+        private Object callInline(int ordinal, Object[] args) throws Throwable {
+            final ImplementationWithFeedback implementation = group.newImplementation;
+            final long start = params.ticker.read();
+            final long token = implementation.timed ? start : 0;
+            final InlineCall call = new InlineCall(ordinal, implementation, token);
+            final ScheduledFuture<?> timer = CallTimer.schedule(call, deadlineNanos[ordinal]);
+            Object result = null;
+            Throwable failure = null;
+            try {
+                result = methods.invoke(ordinal, implementation.implementation, args);
+            } catch (Throwable e) {
+                failure = e;
+            }
+
+            if (call.compareAndSet(InlineCall.RUNNING, InlineCall.DONE)) {
+                // Returned in time, the common case.
+                timer.cancel(false);
+                count(ordinal, start);
+                register(implementation, token, failure == null);
+                if (failure != null) {
+                    throw failure;
+                }
+                return result;
+            }
+
+            // The timer registered the failure and interrupts this thread, if it hasn't already.
+            // Don't leak the interrupt to the caller.
+            while (call.get() != InlineCall.INTERRUPTED) {
+                Thread.onSpinWait();
+            }
+            Thread.interrupted();
+            release(implementation, token);
+            return fallBack(ordinal, args);
+        }
+
+        /**
+         * The state of a call made on the calling thread, as the value of the integer. Also times
+         * the call out, when run by the {@link CallTimer}.
+         */
+        private final class InlineCall extends AtomicInteger implements Runnable {
+            // The call is running on the calling thread.
+            static final int RUNNING = 0;
+            // The call returned in time.
+            static final int DONE = 1;
+            // The call missed its deadline, and the calling thread is about to be interrupted.
+            static final int TIMED_OUT = 2;
+            // The call missed its deadline, and the calling thread has been interrupted.
+            static final int INTERRUPTED = 3;
+
+            final int ordinal;
+            final ImplementationWithFeedback implementation;
+            final long token;
+            final Thread caller = Thread.currentThread();
+
+            InlineCall(int ordinal, ImplementationWithFeedback implementation, long token) {
+                this.ordinal = ordinal;
+                this.implementation = implementation;
+                this.token = token;
+            }
+
+            @Override
+            public void run() {
+                if (compareAndSet(RUNNING, TIMED_OUT)) {
+                    // Right away, since the call may not return for long.
+                    fastCalls.set(ordinal, 0);
+                    // The observer is user code, and so is whatever handles the interrupt.
+                    CallTimer.dispatch(this::timeOut);
+                }
+            }
+
+            private void timeOut() {
+                // The permit is released once the call returns.
+                observe(
+                        implementation,
+                        implementation.timed ? params.ticker.read() - token : 0,
+                        false);
+                caller.interrupt();
+                set(INTERRUPTED);
+            }
+        }
+
+        private Object offload(int ordinal, Object[] args) throws Throwable {
+            final ImplementationWithFeedback implementation = group.newImplementation;
+            final long start = params.ticker.read();
+            final long token = implementation.timed ? start : 0;
+
+            final CompletableFuture<Object> outcome = new CompletableFuture<>();
+            // Decides whether the call or the deadline registers the outcome.
+            final AtomicInteger state = new AtomicInteger(PENDING);
+            final FutureTask<Void> call =
+                    new FutureTask<>(
+                            () -> {
+                                if (!state.compareAndSet(PENDING, RUNNING)) {
+                                    return null;
+                                }
+                                final Object result;
+                                try {
+                                    result =
+                                            methods.invoke(
+                                                    ordinal, implementation.implementation, args);
+                                } catch (Throwable e) {
+                                    if (end(implementation, token, state, false)) {
+                                        count(ordinal, start);
+                                    }
+                                    outcome.completeExceptionally(e);
+                                    return null;
+                                }
+                                if (end(implementation, token, state, true)) {
+                                    count(ordinal, start);
+                                }
+                                outcome.complete(result);
+                                return null;
+                            });
+            try {
+                params.deadlineExecutor.execute(call);
+            } catch (RejectedExecutionException e) {
+                return callInline(ordinal, args);
+            }
+
+            try {
+                try {
+                    return outcome.get(deadlineNanos[ordinal], TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (!timeOut(implementation, token, state)) {
+                        // Returned just in time.
+                        return outcome.get();
+                    }
+                    fastCalls.set(ordinal, 0);
+                    call.cancel(true);
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon(implementation, token, state);
+                call.cancel(true);
+                throw new CancellationException("interrupted while waiting for a call");
+            }
+            return fallBack(ordinal, args);
+        }
+
+        private void abandon(
+                ImplementationWithFeedback implementation, long token, AtomicInteger state) {
+            if (state.compareAndSet(PENDING, ABANDONED)) {
+                // Never runs, so it won't release its permit. Not a failure of the implementation.
+                release(implementation, token);
+            } else {
+                // Released once interrupted, unless done already.
+                state.compareAndSet(RUNNING, ABANDONED);
+            }
+        }
+
+        /** @return whether the call returned while the caller was still waiting for it. */
+        private boolean end(
+                ImplementationWithFeedback implementation,
+                long token,
+                AtomicInteger state,
+                boolean success) {
+            if (state.compareAndSet(RUNNING, DONE)) {
+                register(implementation, token, success);
+                return true;
+            }
+            // The failure was registered when the deadline passed, or the caller gave up.
+            release(implementation, token);
+            return false;
+        }
+
+        /** @return whether the call missed its deadline, rather than just returned. */
+        private boolean timeOut(
+                ImplementationWithFeedback implementation, long token, AtomicInteger state) {
+            if (state.compareAndSet(PENDING, TIMED_OUT)) {
+                // Never started, so it won't release its permit.
+                register(implementation, token, false);
+                return true;
+            }
+            if (state.compareAndSet(RUNNING, TIMED_OUT)) {
+                observe(
+                        implementation,
+                        implementation.timed ? params.ticker.read() - token : 0,
+                        false);
+                return true;
+            }
+            return false;
+        }
+
+        private Object fallBack(int ordinal, Object[] args) throws Throwable {
+            final ImplementationWithFeedback implementation = group.oldImplementation;
+            if (!implementation.tryAcquire()) {
+                throw new RejectedExecutionException(
+                        "the old implementation is at its concurrency limit");
+            }
+            final long token = begin(ordinal, implementation);
+            final Object result;
+            try {
+                result = methods.invoke(ordinal, implementation.implementation, args);
+            } catch (Throwable e) {
+                register(implementation, token, false);
+                throw e;
+            }
+            register(implementation, token, true);
+            return result;
+        }
     }
 
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
                 .add("params", params)
-                .add("newImplementation", newImplementation)
-                .add("oldImplementation", oldImplementation)
+                .add("defaultGroup", defaultGroup)
                 .toString();
     }
 
@@ -74,49 +933,163 @@ class CircuitBreakerFallbackDelegator<T> implements InvocationHandler {
     }
 
     @Override
-    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        final ImplementationWithFeedback implementation = pickImplementation();
+    public Object route(int ordinal, Object[] args) {
+        final MethodGroup group = groups[ordinal];
+        final ImplementationWithFeedback implementation = pickImplementation(group);
+        if (hedged[ordinal]) {
+            // A hedged call acquires its own permits, see Hedger.
+            final ImplementationWithFeedback preferred =
+                    implementation.hasCapacity() ? implementation : group.other(implementation);
+            return preferred == group.newImplementation ? group.preferNew : group.preferOld;
+        }
 
-        Object result;
-        try {
-            result = method.invoke(implementation.implementation, args);
-        } catch (InvocationTargetException e) {
-            implementation.observer.registerFailure();
+        // Spill over rather than queue up on a slow implementation.
+        final ImplementationWithFeedback acquired;
+        if (implementation.tryAcquire()) {
+            acquired = implementation;
+        } else if (group.other(implementation).tryAcquire()) {
+            acquired = group.other(implementation);
+        } else {
+            throw new RejectedExecutionException(
+                    "both implementations are at their concurrency limits");
+        }
+        if (acquired == group.newImplementation && deadlineNanos[ordinal] > 0) {
+            return group.deadliner;
+        }
+        return acquired;
+    }
 
-            final Throwable actualUnwrappedException = e.getTargetException();
-            throw actualUnwrappedException;
+    @Override
+    public Object target(Object route) {
+        if (route instanceof CircuitBreakerFallbackDelegator.Interceptor) {
+            return ((Interceptor) route).proxy;
         }
+        return ((ImplementationWithFeedback) route).implementation;
+    }
+
+    // Intercepted calls are registered by the Interceptor, per implementation called.
+
+    @Override
+    public long begin(int ordinal, Object route) {
+        if (route instanceof CircuitBreakerFallbackDelegator.Interceptor) {
+            return 0;
+        }
+        return ((ImplementationWithFeedback) route).timed ? params.ticker.read() : 0;
+    }
+
+    @Override
+    public void success(int ordinal, Object route, long token, Object result) {
+        if (route instanceof CircuitBreakerFallbackDelegator.Interceptor) {
+            return;
+        }
+        final ImplementationWithFeedback implementation = (ImplementationWithFeedback) route;
+        if (result != null && methods.returnsCompletionStage(ordinal)) {
+            // The call isn't done until the stage completes. Never blocks: the outcome is
+            // registered by the thread completing the stage, or right away if already completed.
+            // Cancellations are failures.
+            ((CompletionStage<?>) result)
+                    .whenComplete(
+                            (value, exception) ->
+                                    register(implementation, token, exception == null));
+            return;
+        }
+        register(implementation, token, true);
+    }
 
-        implementation.observer.registerSuccess();
+    @Override
+    public void failure(int ordinal, Object route, long token, Throwable exception) {
+        if (route instanceof CircuitBreakerFallbackDelegator.Interceptor) {
+            return;
+        }
+        register((ImplementationWithFeedback) route, token, false);
+    }
 
+    /** Calls an implementation on the calling thread. Its permit must have been acquired. */
+    private Object call(ImplementationWithFeedback implementation, int ordinal, Object[] args)
+            throws Throwable {
+        final long token = begin(ordinal, implementation);
+        final Object result;
+        try {
+            result = methods.invoke(ordinal, implementation.implementation, args);
+        } catch (Throwable e) {
+            register(implementation, token, false);
+            throw e;
+        }
+        register(implementation, token, true);
         return result;
     }
 
-    private ImplementationWithFeedback pickImplementation() {
+    private void register(ImplementationWithFeedback implementation, long token, boolean success) {
+        observe(implementation, release(implementation, token), success);
+    }
+
+    /** Registers the outcome of a call with the observer, without ending it. */
+    private void observe(ImplementationWithFeedback implementation, long nanos, boolean success) {
+        if (implementation.timed) {
+            if (success) {
+                implementation.observer.registerSuccess(nanos);
+            } else {
+                implementation.observer.registerFailure(nanos);
+            }
+        } else if (success) {
+            implementation.observer.registerSuccess();
+        } else {
+            implementation.observer.registerFailure();
+        }
+    }
+
+    /**
+     * Ends a call without registering its outcome.
+     *
+     * @return the duration of the call, if timed.
+     */
+    private long release(ImplementationWithFeedback implementation, long token) {
+        if (!implementation.timed) {
+            return 0;
+        }
+        final long now = params.ticker.read();
+        if (implementation.limiter != null) {
+            implementation.limiter.release(token, now);
+        }
+        return now - token;
+    }
+
+    @Override
+    boolean capturesArguments(int ordinal) {
+        return false;
+    }
+
+    private ImplementationWithFeedback pickImplementation(MethodGroup group) {
+        if (group.stateMachine != null) {
+            return group.stateMachine.routeToNew(params.random)
+                    ? group.newImplementation
+                    : group.oldImplementation;
+        }
         final boolean shouldExplore = params.random.nextDouble() < params.epsilon;
         if (shouldExplore) {
-            return pickFullyRandomly();
+            return pickFullyRandomly(group);
         }
-        return pickWeightedRandomly();
+        return pickWeightedRandomly(group);
     }
 
-    private ImplementationWithFeedback pickWeightedRandomly() {
-        final Summary summary = newImplementation.observer.getSummary();
-        if (summary.total == 0) {
-            return pickFullyRandomly();
+    private ImplementationWithFeedback pickWeightedRandomly(MethodGroup group) {
+        final double ratio =
+                group.routingPolicy.newImplementationShare(
+                        group.oldImplementation.observer, group.newImplementation.observer);
+        if (Double.isNaN(ratio)) {
+            return pickFullyRandomly(group);
         }
 
-        final double ratio = summary.calculateSuccessRatio();
         if (params.random.nextDouble() < ratio) {
-            return newImplementation;
+            return group.newImplementation;
         }
-        return oldImplementation;
+        return group.oldImplementation;
     }
 
-    private ImplementationWithFeedback pickFullyRandomly() {
+    private ImplementationWithFeedback pickFullyRandomly(MethodGroup group) {
         if (params.random.nextBoolean()) {
-            return this.newImplementation;
+            return group.newImplementation;
         }
-        return this.oldImplementation;
+        return group.oldImplementation;
     }
 }
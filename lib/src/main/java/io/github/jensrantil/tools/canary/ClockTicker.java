@@ -0,0 +1,22 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Ticker;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts a {@link Clock} to a {@link Ticker}, with millisecond precision. Only used to keep
+ * supporting the builder methods and constructors that take a {@link Clock}.
+ */
+final class ClockTicker extends Ticker {
+    private final Clock clock;
+
+    ClockTicker(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public long read() {
+        return TimeUnit.MILLISECONDS.toNanos(clock.millis());
+    }
+}
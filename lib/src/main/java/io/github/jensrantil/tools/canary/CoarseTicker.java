@@ -0,0 +1,62 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link Ticker} that caches {@link System#nanoTime()}, updated by a background (daemon) thread
+ * roughly once every resolution. Reading it is a single volatile read, which is cheaper than {@link
+ * System#nanoTime()} on platforms where the latter is slow, at the cost of precision. Good enough
+ * for slots of seconds, but not for measuring latencies.
+ *
+ * <p>Thread-safe. Call {@link #close()} to stop the background thread.
+ */
+public final class CoarseTicker extends Ticker implements AutoCloseable {
+    private final Duration resolution;
+    private final Thread updater;
+    private volatile long nanos;
+    private volatile boolean closed;
+
+    public CoarseTicker(Duration resolution) {
+        Preconditions.checkArgument(
+                !resolution.isNegative() && !resolution.isZero(), "resolution must be positive");
+        this.resolution = resolution;
+        this.nanos = System.nanoTime();
+
+        final long resolutionNanos = resolution.toNanos();
+        this.updater =
+                new Thread(
+                        () -> {
+                            while (!closed) {
+                                LockSupport.parkNanos(resolutionNanos);
+                                nanos = System.nanoTime();
+                            }
+                        },
+                        "canary-coarse-ticker");
+        this.updater.setDaemon(true);
+        this.updater.start();
+    }
+
+    @Override
+    public long read() {
+        return nanos;
+    }
+
+    /** Stop updating the ticker. It keeps returning the last read time. */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(updater);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("resolution", resolution)
+                .add("closed", closed)
+                .toString();
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An adaptive limit on the number of concurrent calls to an implementation, see {@link
+ * CircuitBreakerFallbackBuilder#concurrencyLimiter(ConcurrencyLimiter)}. The limit is additive
+ * increase, multiplicative decrease (AIMD): a call slower than the latency threshold cuts the
+ * limit by 10%, and every call within it raises the limit by {@code 1 / limit}, that is by about
+ * one per limit's worth of calls. Calls made while less than half the limit was in use don't raise
+ * it, since they didn't test it.
+ *
+ * <p>The limit is cut at most once per round trip, like TCP does: a slow call that started before
+ * the latest cut was admitted under the old limit, so it says nothing about the new one. Otherwise
+ * a burst of slow calls that completes together would collapse the limit to 1.
+ *
+ * <p>Pass an instance to a builder and read {@link #limit()} and {@link #inFlight()} at any time.
+ * An instance limits a single implementation, also if it's shared by several proxies. Proxies
+ * sharing an instance must use the same {@link
+ * CircuitBreakerFallbackBuilder#ticker(com.google.common.base.Ticker) ticker}.
+ *
+ * <p>Thread-safe and lock-free.
+ */
+public final class ConcurrencyLimiter {
+    private static final double BACKOFF = 0.9;
+    // A ticker value, as ticker values may be any long. At worst, it allows an extra cut.
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+
+    // A double, to add fractions.
+    private final AtomicLong limitBits;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // When the limit was last cut, by the ticker of the proxies.
+    private final AtomicLong lastCut = new AtomicLong(NEVER);
+
+    /**
+     * @param initialLimit the limit to start from.
+     * @param maxLimit the limit never grows beyond this.
+     * @param latencyThreshold calls slower than this cut the limit.
+     */
+    public ConcurrencyLimiter(int initialLimit, int maxLimit, Duration latencyThreshold) {
+        Preconditions.checkArgument(initialLimit > 0, "initialLimit must be strictly positive");
+        Preconditions.checkArgument(maxLimit >= initialLimit, "maxLimit must be >= initialLimit");
+        Preconditions.checkArgument(
+                !latencyThreshold.isNegative() && !latencyThreshold.isZero(),
+                "latencyThreshold must be positive");
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThreshold.toNanos();
+        this.limitBits = new AtomicLong(Double.doubleToRawLongBits(initialLimit));
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("limit", limit())
+                .add("inFlight", inFlight())
+                .add("maxLimit", maxLimit)
+                .add("latencyThresholdNanos", latencyThresholdNanos)
+                .toString();
+    }
+
+    /** @return the current limit, at least 1. */
+    public int limit() {
+        return (int) Double.longBitsToDouble(limitBits.get());
+    }
+
+    /** @return the number of calls in flight. */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /** @return whether a call may be made. If so, {@link #release(long)} must be called after. */
+    boolean tryAcquire() {
+        final int limit = limit();
+        while (true) {
+            final int inFlight = this.inFlight.get();
+            if (inFlight >= limit) {
+                return false;
+            }
+            if (this.inFlight.compareAndSet(inFlight, inFlight + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** @return whether a call could be made right now, without acquiring it. */
+    boolean hasCapacity() {
+        return inFlight.get() < limit();
+    }
+
+    /**
+     * @param startNanos when the call started, by the ticker of the proxy.
+     * @param endNanos when the call ended, by the same ticker.
+     */
+    void release(long startNanos, long endNanos) {
+        // Including this call.
+        final int inFlight = this.inFlight.getAndDecrement();
+        final boolean slow = endNanos - startNanos > latencyThresholdNanos;
+        if (slow) {
+            final long lastCut = this.lastCut.get();
+            // Ticker values must only be compared by their difference, they may overflow.
+            if (lastCut != NEVER && startNanos - lastCut < 0) {
+                return;
+            }
+            // Lost to a concurrent cut.
+            if (!this.lastCut.compareAndSet(lastCut, endNanos)) {
+                return;
+            }
+        }
+        while (true) {
+            final long bits = limitBits.get();
+            final double limit = Double.longBitsToDouble(bits);
+            final double next;
+            if (slow) {
+                next = Math.max(1, limit * BACKOFF);
+            } else if (2 * inFlight >= limit) {
+                next = Math.min(maxLimit, limit + 1 / limit);
+            } else {
+                return;
+            }
+            if (next == limit || limitBits.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Observes outcomes with exponentially decaying weights: an outcome registered one half-life ago
+ * weighs half as much as one registered now. There are no slots, so there are no window boundaries
+ * and no rolls, and a sudden burst of failures shows up in the success ratio immediately instead of
+ * being diluted by a whole window of older outcomes.
+ *
+ * <p>Rather than decaying the counts on every registration, an outcome is weighed by {@code
+ * 2^(t / half-life)} when registered, where t is the time since a landmark, and the sums are
+ * decayed to now when read. Time is counted in ticks of a 1/1024th of a half-life. The successes
+ * and the total are each a {@code double} in an {@link AtomicLong}, updated by compare-and-set, so
+ * a registration never allocates and no outcome is lost to rounding until the decayed counts reach
+ * 2^53. The landmark is moved every 512 half-lives, before the weights overflow, which may drop
+ * registrations made at the same time, one per thread at most.
+ */
+public class DecayingObserver implements Observer {
+    private static final int TICK_BITS = 10;
+    private static final int TICKS_PER_HALF_LIFE = 1 << TICK_BITS;
+    // Weights stay below 2^512, far from overflowing a double.
+    private static final int LANDMARK_TICKS = 512 * TICKS_PER_HALF_LIFE;
+    // POWERS[i] is 2^(i / TICKS_PER_HALF_LIFE).
+    private static final double[] POWERS = new double[TICKS_PER_HALF_LIFE];
+
+    static {
+        for (int i = 0; i < TICKS_PER_HALF_LIFE; i++) {
+            POWERS[i] = Math.pow(2, (double) i / TICKS_PER_HALF_LIFE);
+        }
+    }
+
+    /** The weighed sums of the outcomes since a landmark. Only the sums are mutable. */
+    private static final class Counts {
+        final int landmark;
+        // Doubles, as raw long bits.
+        final AtomicLong successes;
+        final AtomicLong total;
+
+        Counts(int landmark, double successes, double total) {
+            this.landmark = landmark;
+            this.successes = new AtomicLong(Double.doubleToRawLongBits(successes));
+            this.total = new AtomicLong(Double.doubleToRawLongBits(total));
+        }
+    }
+
+    private final Ticker ticker;
+    private final Duration halfLife;
+    private final long tickNanos;
+    private final AtomicReference<Counts> counts;
+
+    /**
+     * @param halfLife the time it takes for the weight of an outcome to halve. Must be at least a
+     *     millisecond.
+     */
+    public DecayingObserver(Ticker ticker, Duration halfLife) {
+        Preconditions.checkArgument(
+                halfLife.compareTo(Duration.ofMillis(1)) >= 0,
+                "halfLife must be at least a millisecond");
+
+        this.ticker = ticker;
+        this.halfLife = halfLife;
+        this.tickNanos = halfLife.toNanos() / TICKS_PER_HALF_LIFE;
+        this.counts = new AtomicReference<>(new Counts(tick(), 0, 0));
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("summary", getSummary())
+                .add("halfLife", halfLife)
+                .toString();
+    }
+
+    @Override
+    public void registerFailure() {
+        final int tick = tick();
+        final Counts counts = counts(tick);
+        add(counts.total, weight(tick - counts.landmark));
+    }
+
+    @Override
+    public void registerSuccess() {
+        final int tick = tick();
+        final Counts counts = counts(tick);
+        final double weight = weight(tick - counts.landmark);
+        // Total before successes, see #successRatio.
+        add(counts.total, weight);
+        add(counts.successes, weight);
+    }
+
+    private int tick() {
+        // Ticks wrap around. Only counts that haven't been touched for close to a multiple of 2^32
+        // ticks (four million half-lives) can be mistaken for recent ones.
+        return (int) Math.floorDiv(ticker.read(), tickNanos);
+    }
+
+    /** @return the counts to register an outcome at tick in, moving the landmark if needed. */
+    private Counts counts(int tick) {
+        while (true) {
+            final Counts counts = this.counts.get();
+            if (tick - counts.landmark <= LANDMARK_TICKS) {
+                return counts;
+            }
+            // Registrations made to the old counts while moving are dropped.
+            final double decay = weight(counts.landmark - tick);
+            final Counts moved =
+                    new Counts(tick, get(counts.successes) * decay, get(counts.total) * decay);
+            if (this.counts.compareAndSet(counts, moved)) {
+                return moved;
+            }
+        }
+    }
+
+    private static void add(AtomicLong sum, double weight) {
+        while (true) {
+            final long current = sum.get();
+            final long next = Double.doubleToRawLongBits(Double.longBitsToDouble(current) + weight);
+            if (sum.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    private static double get(AtomicLong sum) {
+        return Double.longBitsToDouble(sum.get());
+    }
+
+    /** @return {@code 2^(ticks / TICKS_PER_HALF_LIFE)}. Negative ticks decay. */
+    private static double weight(int ticks) {
+        return Math.scalb(POWERS[ticks & (TICKS_PER_HALF_LIFE - 1)], ticks >> TICK_BITS);
+    }
+
+    /**
+     * The decayed counts, rounded to the closest integer. Prefer {@link #successRatio()}, which
+     * doesn't round.
+     */
+    @Override
+    public Summary getSummary() {
+        final Counts counts = this.counts.get();
+        final double decay = weight(counts.landmark - tick());
+        final double successes = get(counts.successes) * decay;
+        final double total = get(counts.total) * decay;
+        return new Summary(Math.round(Math.min(successes, total)), Math.round(total));
+    }
+
+    @Override
+    public double successRatio() {
+        final Counts counts = this.counts.get();
+        final double decay = weight(counts.landmark - tick());
+        // Successes before total. Every success is added to the total first.
+        final double successes = get(counts.successes) * decay;
+        final double total = get(counts.total) * decay;
+        if (total == 0) {
+            return Double.NaN;
+        }
+        // Rounding might make the successes slightly larger than the total.
+        return Math.min(1, successes / total);
+    }
+}
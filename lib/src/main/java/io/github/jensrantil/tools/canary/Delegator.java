@@ -1,8 +1,6 @@
 package io.github.jensrantil.tools.canary;
 
 import com.google.common.base.Preconditions;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 
@@ -12,34 +10,83 @@ import java.lang.reflect.Proxy;
  *
  * @param <T> the Java interface that the Delegator wraps.
  */
-class Delegator<T> implements InvocationHandler {
+class Delegator<T> extends ProxyRouter {
 
     private final DelegateSelector<T> selector;
 
     interface DelegateSelector<T> {
         T select(Method method, Object[] args);
+
+        /**
+         * @return false if {@link #select(Method, Object[])} never looks at its arguments. Allows
+         *     generated proxies to not allocate an argument array.
+         */
+        default boolean usesArguments() {
+            return true;
+        }
+
+        /**
+         * Like {@link #select(Method, Object[])}, but also given the ordinal of method in {@link
+         * ProxyMethods}, for selectors that index per-method state by it.
+         */
+        default T select(int ordinal, Method method, Object[] args) {
+            return select(method, args);
+        }
+
+        /**
+         * @return the index of an {@code int} or {@code long} parameter of method that {@link
+         *     #select(int, Method, long)} can select on, or -1.
+         */
+        default int keyParameter(int ordinal, Method method) {
+            return -1;
+        }
+
+        /**
+         * Select using only the value of the parameter returned by {@link #keyParameter(int,
+         * Method)}. Must select the same delegate as {@link #select(Method, Object[])}. By
+         * default, calls {@link #select(int, Method, Object[])} with the key as the only non-null
+         * argument.
+         */
+        default T select(int ordinal, Method method, long key) {
+            return select(
+                    ordinal,
+                    method,
+                    ProxyMethods.keyArguments(method, keyParameter(ordinal, method), key));
+        }
     }
 
-    public Delegator(DelegateSelector<T> selector) {
+    public Delegator(Class<T> type, DelegateSelector<T> selector) {
+        super(type);
         this.selector = selector;
     }
 
     @Override
-    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        final T delegate = selector.select(method, args);
-
-        try {
-            return method.invoke(delegate, args);
-        } catch (InvocationTargetException e) {
-            final Throwable actualUnwrappedException = e.getTargetException();
-            throw actualUnwrappedException;
-        }
+    public Object route(int ordinal, Object[] args) {
+        return selector.select(ordinal, methods.get(ordinal), args);
+    }
+
+    @Override
+    public Object route(int ordinal, long key) {
+        return selector.select(ordinal, methods.get(ordinal), key);
+    }
+
+    @Override
+    boolean capturesArguments(int ordinal) {
+        return selector.usesArguments();
+    }
+
+    @Override
+    int routingKeyParameter(int ordinal) {
+        return selector.keyParameter(ordinal, methods.get(ordinal));
     }
 
     public static <T> T build(Class<T> type, DelegateSelector selector) {
+        return build(type, selector, ProxyBackend.JDK_PROXY);
+    }
+
+    public static <T> T build(Class<T> type, DelegateSelector selector, ProxyBackend backend) {
         Preconditions.checkArgument(type.isInterface(), "T must be an interface");
-        return (T)
-                Proxy.newProxyInstance(
-                        type.getClassLoader(), new Class[] {type}, new Delegator<T>(selector));
+        return ProxyFactory.create(
+                type, new Delegator<T>(type, selector), backend, type.getClassLoader());
     }
 }
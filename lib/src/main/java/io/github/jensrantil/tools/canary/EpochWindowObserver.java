@@ -0,0 +1,151 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Observes outcomes over a sliding window made up of a fixed number of slots, without ever dropping
+ * a registration made within the window. Unlike {@link FixedWindowObserver}, slots are never reset
+ * by a roll. Instead, every counter is stamped with the epoch (the number of slot durations since
+ * the origin of the ticker) that it counts. A registration that finds a counter stamped with an
+ * older epoch resets it with the same compare-and-set that counts the registration, and counters
+ * with a stamp outside of the window are ignored when reading.
+ *
+ * <p>Every slot has two counters, the total and the successes, each packed with its stamp into a
+ * {@code long}: 24 bits of stamp and 40 bits of count. Reading is allocation-free, but has to look
+ * at every slot.
+ */
+public class EpochWindowObserver implements Observer {
+    private static final int COUNT_BITS = 40;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    // Stamps wrap around. Only a counter that hasn't been touched for exactly a multiple of 2^24
+    // epochs can be mistaken for a current one.
+    private static final long STAMP_MASK = (1L << (Long.SIZE - COUNT_BITS)) - 1;
+
+    private final Ticker ticker;
+    private final int slots;
+    private final long slotNanos;
+    // Slot i has its total at index 2 * i and its successes at index 2 * i + 1.
+    private final AtomicLongArray counters;
+
+    /**
+     * @param slotDuration the duration of a slot. Must be at least a millisecond, since the clock
+     *     only has millisecond precision.
+     */
+    public EpochWindowObserver(Clock clock, int slots, Duration slotDuration) {
+        this(new ClockTicker(clock), slots, slotDuration);
+        Preconditions.checkArgument(
+                slotDuration.toMillis() > 0, "slotDuration must be at least a millisecond");
+    }
+
+    public EpochWindowObserver(Ticker ticker, int slots, Duration slotDuration) {
+        Preconditions.checkArgument(slots > 0, "slots must be strictly positive");
+        Preconditions.checkArgument(
+                slots < STAMP_MASK, "slots must be smaller than %s", STAMP_MASK);
+        Preconditions.checkArgument(
+                slotDuration.toNanos() > 0, "slotDuration must be strictly positive");
+
+        this.ticker = ticker;
+        this.slots = slots;
+        this.slotNanos = slotDuration.toNanos();
+        this.counters = new AtomicLongArray(2 * slots);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("summary", getSummary())
+                .add("slots", slots)
+                .add("slotNanos", slotNanos)
+                .toString();
+    }
+
+    @Override
+    public void registerFailure() {
+        final long epoch = epoch();
+        increment(totalIndex(epoch), epoch);
+    }
+
+    @Override
+    public void registerSuccess() {
+        final long epoch = epoch();
+        // Total before successes, see #getSummary.
+        increment(totalIndex(epoch), epoch);
+        increment(totalIndex(epoch) + 1, epoch);
+    }
+
+    private long epoch() {
+        return Math.floorDiv(ticker.read(), slotNanos);
+    }
+
+    private int totalIndex(long epoch) {
+        return 2 * (int) Math.floorMod(epoch, (long) slots);
+    }
+
+    private void increment(int index, long epoch) {
+        final long stamp = epoch & STAMP_MASK;
+        while (true) {
+            final long current = counters.get(index);
+            final long currentStamp = current >>> COUNT_BITS;
+            final long next;
+            if (currentStamp == stamp) {
+                next = current + 1;
+            } else if (epoch() - epoch >= slots) {
+                // This registration was made by a thread that stalled for at least a full window.
+                // It is outside of the window and the slot might already be counting a later
+                // epoch.
+                return;
+            } else {
+                next = stamp << COUNT_BITS | 1;
+            }
+            if (counters.compareAndSet(index, current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the count at index if it was counted in the given epoch, otherwise 0.
+     */
+    private long count(int index, long epoch) {
+        final long value = counters.get(index);
+        return value >>> COUNT_BITS == (epoch & STAMP_MASK) ? value & COUNT_MASK : 0;
+    }
+
+    @Override
+    public Summary getSummary() {
+        final long epoch = epoch();
+        long successes = 0;
+        long total = 0;
+        for (long e = epoch - slots + 1; e <= epoch; e++) {
+            final int index = totalIndex(e);
+            // Successes before total. Every success is counted in the total first, but the total
+            // of the oldest slot may be reset for the next epoch in between, so clamp per slot.
+            final long slotSuccesses = count(index + 1, e);
+            final long slotTotal = count(index, e);
+            successes += Math.min(slotSuccesses, slotTotal);
+            total += slotTotal;
+        }
+        return new Summary(successes, total);
+    }
+
+    @Override
+    public double successRatio() {
+        final long epoch = epoch();
+        long successes = 0;
+        long total = 0;
+        for (long e = epoch - slots + 1; e <= epoch; e++) {
+            final int index = totalIndex(e);
+            // See #getSummary.
+            final long slotSuccesses = count(index + 1, e);
+            final long slotTotal = count(index, e);
+            successes += Math.min(slotSuccesses, slotTotal);
+            total += slotTotal;
+        }
+        return total == 0 ? Double.NaN : (double) successes / total;
+    }
+}
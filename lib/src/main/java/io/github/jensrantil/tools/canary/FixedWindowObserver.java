@@ -2,33 +2,63 @@ package io.github.jensrantil.tools.canary;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import java.time.Clock;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Observes outcomes over a sliding window made up of a fixed number of slots. The counts of the
+ * slots that aren't current are summed up once per slot roll, so reading the summary only has to
+ * add the current slot to it, regardless of the number of slots.
+ */
 public class FixedWindowObserver implements Observer {
     private final ImmutableList<RatioSlot> slots;
-    private final Duration slotDuration;
-    private final Clock clock;
+    private final long slotNanos;
+    private final Ticker ticker;
 
     private final AtomicLong slotIncrementer = new AtomicLong();
-    private final AtomicReference<Instant> nextRoll;
-    private final Duration totalSlotDuration;
+    // In ticker nanos.
+    private final AtomicLong nextRoll;
+    private final long totalSlotNanos;
+    private final AtomicReference<Window> window;
+
+    /**
+     * The current slot and the sum of all other slots, as of the last roll.
+     *
+     * <p>Immutable class.
+     */
+    private final class Window {
+        final long slot;
+        final int cursor;
+        final long completedSuccesses;
+        final long completedTotal;
+
+        Window(long slot, long completedSuccesses, long completedTotal) {
+            this.slot = slot;
+            this.cursor = getCursor(slot);
+            this.completedSuccesses = completedSuccesses;
+            this.completedTotal = completedTotal;
+        }
+    }
 
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
                 .add("summary", getSummary())
-                .add("slotDuration", slotDuration)
+                .add("slotNanos", slotNanos)
                 .add("slotIncrementer", slotIncrementer)
                 .add("nextRoll", nextRoll)
                 .toString();
     }
 
     public FixedWindowObserver(Clock clock, int slots, Duration slotDuration) {
+        this(new ClockTicker(clock), slots, slotDuration);
+    }
+
+    public FixedWindowObserver(Ticker ticker, int slots, Duration slotDuration) {
         Preconditions.checkArgument(slots > 0, "slots must be strictly positive");
         Preconditions.checkArgument(
                 !slotDuration.isNegative(), "negative slotDuration not supported");
@@ -38,11 +68,12 @@ public class FixedWindowObserver implements Observer {
             builder.add(new RatioSlot());
         }
         this.slots = builder.build();
+        this.window = new AtomicReference<>(new Window(0, 0, 0));
 
-        this.nextRoll = new AtomicReference(clock.instant().plus(slotDuration));
-        this.slotDuration = slotDuration;
-        this.clock = clock;
-        this.totalSlotDuration = Duration.ofMillis(slots * slotDuration.toNanos());
+        this.slotNanos = slotDuration.toNanos();
+        this.ticker = ticker;
+        this.nextRoll = new AtomicLong(ticker.read() + slotNanos);
+        this.totalSlotNanos = slots * slotNanos;
     }
 
     @Override
@@ -64,14 +95,23 @@ public class FixedWindowObserver implements Observer {
     }
 
     private void moveSlotIfNecessary() {
-        Instant nextRoll = this.nextRoll.get();
+        moveSlotIfNecessary(this.ticker.read());
+    }
 
-        Instant now = this.clock.instant();
-        if (now.isAfter(nextRoll.plus(this.totalSlotDuration))) {
+    /** @param now the current value of the ticker. */
+    void moveSlotIfNecessary(long now) {
+        long nextRoll = this.nextRoll.get();
+
+        // Ticker values must only be compared by their difference, they may overflow.
+        if (now - nextRoll < 0) {
+            return;
+        }
+
+        if (now - nextRoll > this.totalSlotNanos) {
             // Check if we should reset all slots. This is an optimization if there's been a really
             // long time since this method was called.
 
-            if (!this.nextRoll.compareAndSet(nextRoll, now.plus(this.slotDuration))) {
+            if (!this.nextRoll.compareAndSet(nextRoll, now + this.slotNanos)) {
                 // Make sure only a single thread resets the slots.
                 return;
             }
@@ -79,17 +119,18 @@ public class FixedWindowObserver implements Observer {
             for (RatioSlot slot : this.slots) {
                 slot.reset();
             }
+            publish(new Window(this.slotIncrementer.get(), 0, 0));
             return;
         }
 
         while (true) {
             // Progress one slot at a time.
 
-            if (this.clock.instant().isBefore(nextRoll)) {
+            if (now - nextRoll < 0) {
                 return;
             }
 
-            Instant newNextRoll = nextRoll.plus(this.slotDuration);
+            final long newNextRoll = nextRoll + this.slotNanos;
             if (this.nextRoll.compareAndSet(nextRoll, newNextRoll)) {
                 moveCurrentSlotAndReset();
                 return;
@@ -110,17 +151,68 @@ public class FixedWindowObserver implements Observer {
         // called here. When we call #reset below, those registrations will get dropped. We are fine
         // with dropping some registrations at the
         // benefit of lock-free concurrency.
-        this.slots.get(getCursor(newSlot)).reset();
+        final int cursor = getCursor(newSlot);
+        this.slots.get(cursor).reset();
+
+        // Registrations that still end up in the previous slot will only be seen after the next
+        // roll.
+        long successes = 0;
+        long total = 0;
+        for (int i = 0; i < this.slots.size(); i++) {
+            if (i != cursor) {
+                final long counts = this.slots.get(i).packedCounts();
+                successes += RatioSlot.successes(counts);
+                total += RatioSlot.total(counts);
+            }
+        }
+        publish(new Window(newSlot, successes, total));
+    }
+
+    /** Publish a window, unless a later roll already has published one. */
+    private void publish(Window window) {
+        while (true) {
+            final Window current = this.window.get();
+            if (current.slot > window.slot || this.window.compareAndSet(current, window)) {
+                return;
+            }
+        }
     }
 
     @Override
     public Summary getSummary() {
         moveSlotIfNecessary();
 
-        Summary aggregate = Summary.EMPTY;
-        for (RatioSlot slot : this.slots) {
-            aggregate = aggregate.merge(slot.getSummary());
+        final Window window = this.window.get();
+        final long current = this.slots.get(window.cursor).packedCounts();
+        return new Summary(
+                window.completedSuccesses + RatioSlot.successes(current),
+                window.completedTotal + RatioSlot.total(current));
+    }
+
+    /** @return the successes in the window, as of the last {@link #moveSlotIfNecessary(long)}. */
+    long successes() {
+        final Window window = this.window.get();
+        return window.completedSuccesses
+                + RatioSlot.successes(this.slots.get(window.cursor).packedCounts());
+    }
+
+    /** @return the total of the window, as of the last {@link #moveSlotIfNecessary(long)}. */
+    long total() {
+        final Window window = this.window.get();
+        return window.completedTotal
+                + RatioSlot.total(this.slots.get(window.cursor).packedCounts());
+    }
+
+    @Override
+    public double successRatio() {
+        moveSlotIfNecessary();
+
+        final Window window = this.window.get();
+        final long current = this.slots.get(window.cursor).packedCounts();
+        final long total = window.completedTotal + RatioSlot.total(current);
+        if (total == 0) {
+            return Double.NaN;
         }
-        return aggregate;
+        return (double) (window.completedSuccesses + RatioSlot.successes(current)) / total;
     }
 }
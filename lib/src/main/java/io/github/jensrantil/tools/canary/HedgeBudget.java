@@ -0,0 +1,62 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits hedged calls to a ratio of all calls. A token bucket: every call deposits the ratio of a
+ * token and a hedge withdraws a whole token. At most a burst of tokens are saved up, so a long calm
+ * period doesn't allow a long run of hedges.
+ *
+ * <p>Thread-safe.
+ */
+final class HedgeBudget {
+    // Tokens are counted in thousandths.
+    private static final long TOKEN = 1000;
+
+    private final long deposit;
+    private final long capacity;
+    private final AtomicLong balance = new AtomicLong();
+
+    /**
+     * @param ratio the maximum ratio of hedged calls, between 0 and 1.
+     * @param burst the maximum number of hedges that can be saved up.
+     */
+    HedgeBudget(double ratio, int burst) {
+        Preconditions.checkArgument(ratio >= 0 && ratio <= 1, "ratio must be in range [0,1]");
+        Preconditions.checkArgument(burst > 0, "burst must be strictly positive");
+        this.deposit = Math.round(ratio * TOKEN);
+        this.capacity = burst * TOKEN;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("deposit", deposit)
+                .add("capacity", capacity)
+                .add("balance", balance)
+                .toString();
+    }
+
+    /** Called once per call. */
+    void deposit() {
+        // Might overshoot the capacity by a deposit per concurrent caller, which is fine.
+        if (deposit > 0 && balance.get() < capacity) {
+            balance.addAndGet(deposit);
+        }
+    }
+
+    /** @return whether a call may be hedged. */
+    boolean tryWithdraw() {
+        while (true) {
+            final long balance = this.balance.get();
+            if (balance < TOKEN) {
+                return false;
+            }
+            if (this.balance.compareAndSet(balance, balance - TOKEN)) {
+                return true;
+            }
+        }
+    }
+}
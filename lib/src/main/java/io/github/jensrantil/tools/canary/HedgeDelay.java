@@ -0,0 +1,68 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How long to wait for an implementation before hedging calls to a method: a percentile of the
+ * durations of its recent calls, see {@link #record(long)}. Recomputed at most once a second, over
+ * the calls since the last recomputation, once there are at least {@link #MIN_SAMPLES} of them.
+ *
+ * <p>Thread-safe.
+ */
+final class HedgeDelay {
+    static final int MIN_SAMPLES = 20;
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Ticker ticker;
+    private final double percentile;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private final AtomicLong nextRefresh;
+    // Only accessed by the thread refreshing, see #refresh.
+    private LatencySnapshot baseline = LatencySnapshot.EMPTY;
+    private volatile long nanos = -1;
+
+    HedgeDelay(Ticker ticker, double percentile) {
+        this.ticker = ticker;
+        this.percentile = percentile;
+        this.nextRefresh = new AtomicLong(ticker.read() + REFRESH_NANOS);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("percentile", percentile)
+                .add("nanos", nanos)
+                .toString();
+    }
+
+    /** Records the duration of a call, successful or not. */
+    void record(long nanos) {
+        histogram.record(nanos);
+    }
+
+    /** @return the delay, or -1 if there haven't been enough calls to know it yet. */
+    long nanos() {
+        final long nextRefresh = this.nextRefresh.get();
+        final long now = ticker.read();
+        // Ticker values must only be compared by their difference, they may overflow.
+        if (now - nextRefresh >= 0
+                && this.nextRefresh.compareAndSet(nextRefresh, now + REFRESH_NANOS)) {
+            refresh();
+        }
+        return nanos;
+    }
+
+    // Synchronized in case a refresh takes longer than REFRESH_NANOS.
+    private synchronized void refresh() {
+        final LatencySnapshot latencies = histogram.snapshot();
+        final LatencySnapshot recent = latencies.minus(baseline);
+        if (recent.count() >= MIN_SAMPLES) {
+            nanos = recent.valueAtPercentile(percentile);
+            baseline = latencies;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link RoutingPolicy} that, in addition to the success ratio of the new implementation, cuts
+ * its share of the calls when it is slower than the old implementation. Once every window, a
+ * percentile of the durations of the calls made to each implementation is compared. As long as the
+ * new implementation's percentile is within the slowdown budget, say 1.2 times the old one's, its
+ * share is its success ratio. Beyond the budget, its share is cut linearly, down to zero at twice
+ * the budget.
+ *
+ * <p>Durations are compared over at least a window and at least {@code minSamples} calls per
+ * implementation. Since the old implementation typically gets few calls once the new one is
+ * trusted, its durations can span many windows. Until both implementations have enough calls,
+ * their latencies aren't compared.
+ *
+ * <p>Thread-safe. Evaluating is done by a single call once per window. Every other call only reads
+ * the ticker and a field.
+ */
+public class LatencyBudgetPolicy implements RoutingPolicy {
+    public static final double DEFAULT_PERCENTILE = 99;
+    public static final Duration DEFAULT_WINDOW = Duration.ofSeconds(30);
+    public static final int DEFAULT_MIN_SAMPLES = 20;
+
+    private final Ticker ticker;
+    private final double percentile;
+    private final double slowdownBudget;
+    private final long windowNanos;
+    private final int minSamples;
+
+    private final AtomicLong nextEvaluation;
+    // Only accessed by the thread evaluating, see #evaluate.
+    private LatencySnapshot oldBaseline = LatencySnapshot.EMPTY;
+    private LatencySnapshot newBaseline = LatencySnapshot.EMPTY;
+    private long oldPercentile = -1;
+    private long newPercentile = -1;
+
+    private volatile double latencyFactor = 1;
+
+    /** Compares the {@link #DEFAULT_PERCENTILE} over windows of {@link #DEFAULT_WINDOW}. */
+    public LatencyBudgetPolicy(Ticker ticker, double slowdownBudget) {
+        this(ticker, DEFAULT_PERCENTILE, slowdownBudget, DEFAULT_WINDOW, DEFAULT_MIN_SAMPLES);
+    }
+
+    /**
+     * @param percentile the percentile of the durations to compare, between 0 and 100.
+     * @param slowdownBudget how many times slower than the old implementation the new one can be
+     *     without losing calls. At least 1.
+     * @param window how often latencies are compared.
+     * @param minSamples the minimum number of calls to an implementation to compare its latency.
+     */
+    public LatencyBudgetPolicy(
+            Ticker ticker,
+            double percentile,
+            double slowdownBudget,
+            Duration window,
+            int minSamples) {
+        Preconditions.checkArgument(
+                percentile >= 0 && percentile <= 100, "percentile must be in range [0,100]");
+        Preconditions.checkArgument(slowdownBudget >= 1, "slowdownBudget must be at least 1");
+        Preconditions.checkArgument(
+                !window.isNegative() && !window.isZero(), "window must be positive");
+        Preconditions.checkArgument(minSamples > 0, "minSamples must be strictly positive");
+
+        this.ticker = Preconditions.checkNotNull(ticker);
+        this.percentile = percentile;
+        this.slowdownBudget = slowdownBudget;
+        this.windowNanos = window.toNanos();
+        this.minSamples = minSamples;
+        this.nextEvaluation = new AtomicLong(ticker.read() + windowNanos);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("percentile", percentile)
+                .add("slowdownBudget", slowdownBudget)
+                .add("windowNanos", windowNanos)
+                .add("latencyFactor", latencyFactor)
+                .toString();
+    }
+
+    @Override
+    public double newImplementationShare(Observer oldObserver, Observer newObserver) {
+        final long nextEvaluation = this.nextEvaluation.get();
+        final long now = ticker.read();
+        // Ticker values must only be compared by their difference, they may overflow.
+        if (now - nextEvaluation >= 0
+                && this.nextEvaluation.compareAndSet(nextEvaluation, now + windowNanos)) {
+            evaluate(oldObserver.latencies(), newObserver.latencies());
+        }
+        return newObserver.successRatio() * latencyFactor;
+    }
+
+    // Synchronized in case an evaluation takes longer than a window.
+    private synchronized void evaluate(LatencySnapshot oldLatencies, LatencySnapshot newLatencies) {
+        final LatencySnapshot oldWindow = oldLatencies.minus(oldBaseline);
+        if (oldWindow.count() >= minSamples) {
+            oldPercentile = oldWindow.valueAtPercentile(percentile);
+            oldBaseline = oldLatencies;
+        }
+        final LatencySnapshot newWindow = newLatencies.minus(newBaseline);
+        if (newWindow.count() >= minSamples) {
+            newPercentile = newWindow.valueAtPercentile(percentile);
+            newBaseline = newLatencies;
+        }
+
+        if (oldPercentile >= 0 && newPercentile >= 0) {
+            latencyFactor = latencyFactor(oldPercentile, newPercentile);
+        }
+    }
+
+    /** @return the factor to multiply the share of the new implementation with. */
+    double latencyFactor(long oldPercentile, long newPercentile) {
+        // Avoid dividing by zero for (unrealistically) fast implementations.
+        final double slowdown = (double) Math.max(newPercentile, 1) / Math.max(oldPercentile, 1);
+        if (slowdown <= slowdownBudget) {
+            return 1;
+        }
+        return Math.max(0, 2 - slowdown / slowdownBudget);
+    }
+
+    @Override
+    public boolean usesLatencies() {
+        return true;
+    }
+
+    @Override
+    public RoutingPolicy copy() {
+        return new LatencyBudgetPolicy(
+                ticker, percentile, slowdownBudget, Duration.ofNanos(windowNanos), minSamples);
+    }
+}
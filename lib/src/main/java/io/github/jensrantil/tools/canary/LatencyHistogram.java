@@ -0,0 +1,62 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, using a fixed amount of memory. Buckets are
+ * log-linear: durations below 32 ns have a bucket each and every power of two above that is split
+ * into 16 buckets of equal width, so a bucket is never wider than 1/16 (6.25%) of the durations it
+ * counts. Durations longer than {@link #MAX_NANOS} (about 18 minutes) are counted as {@link
+ * #MAX_NANOS}. That makes 592 buckets.
+ *
+ * <p>Recording is a single atomic increment. Thread-safe.
+ */
+public final class LatencyHistogram {
+    /** The longest duration that is told apart from longer durations. */
+    public static final long MAX_NANOS = (1L << 40) - 1;
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    static final int BUCKETS = bucket(MAX_NANOS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("snapshot", snapshot()).toString();
+    }
+
+    /** @param nanos a duration. Negative durations are counted as 0. */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.min(Math.max(nanos, 0), MAX_NANOS)));
+    }
+
+    /**
+     * @return the counts so far. Counts recorded concurrently with taking the snapshot might or
+     *     might not be included.
+     */
+    public LatencySnapshot snapshot() {
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return new LatencySnapshot(snapshot);
+    }
+
+    static int bucket(long nanos) {
+        final int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        final int shift = Math.max(0, msb - (SUB_BUCKET_BITS - 1));
+        return shift * HALF_SUB_BUCKETS + (int) (nanos >>> shift);
+    }
+
+    /** @return the largest duration counted by bucket. */
+    static long highestValue(int bucket) {
+        if (bucket < 2 * HALF_SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / HALF_SUB_BUCKETS - 1;
+        final long subBucket = bucket - shift * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Records the duration of every call, successful or not, in a {@link LatencyHistogram} and passes
+ * the outcome on to another {@link Observer}. Use it to find out whether a new implementation is
+ * slower than the old one:
+ *
+ * <pre>{@code
+ * LatencyObserver oldLatencies = new LatencyObserver(Observer.EMPTY_OBSERVER);
+ * LatencyObserver newLatencies = new LatencyObserver(new FixedWindowObserver(...));
+ * MyInterface proxy =
+ *     new CircuitBreakerFallbackBuilder()
+ *         .oldObserver(oldLatencies)
+ *         .observer(newLatencies)
+ *         .build(MyInterface.class, oldImplementation, newImplementation);
+ * }</pre>
+ */
+public class LatencyObserver implements Observer {
+    private final Observer delegate;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    public LatencyObserver(Observer delegate) {
+        this.delegate = Preconditions.checkNotNull(delegate);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("delegate", delegate)
+                .add("histogram", histogram)
+                .toString();
+    }
+
+    @Override
+    public void registerFailure() {
+        delegate.registerFailure();
+    }
+
+    @Override
+    public void registerSuccess() {
+        delegate.registerSuccess();
+    }
+
+    @Override
+    public void registerFailure(long nanos) {
+        histogram.record(nanos);
+        delegate.registerFailure(nanos);
+    }
+
+    @Override
+    public void registerSuccess(long nanos) {
+        histogram.record(nanos);
+        delegate.registerSuccess(nanos);
+    }
+
+    @Override
+    public boolean recordsLatency() {
+        return true;
+    }
+
+    @Override
+    public LatencySnapshot latencies() {
+        return histogram.snapshot();
+    }
+
+    @Override
+    public Summary getSummary() {
+        return delegate.getSummary();
+    }
+
+    @Override
+    public double successRatio() {
+        return delegate.successRatio();
+    }
+}
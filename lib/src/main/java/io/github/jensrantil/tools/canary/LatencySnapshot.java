@@ -0,0 +1,85 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * The counts of a {@link LatencyHistogram} at some point in time.
+ *
+ * <p>Immutable class.
+ */
+public final class LatencySnapshot {
+    public static final LatencySnapshot EMPTY = new LatencySnapshot(new long[0]);
+
+    private final long[] counts;
+    private final long count;
+
+    // Takes ownership of counts.
+    LatencySnapshot(long[] counts) {
+        this.counts = counts;
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        this.count = count;
+    }
+
+    @Override
+    public String toString() {
+        final MoreObjects.ToStringHelper helper =
+                MoreObjects.toStringHelper(this).add("count", count);
+        if (count > 0) {
+            helper.add("p50", valueAtPercentile(50))
+                    .add("p99", valueAtPercentile(99))
+                    .add("max", valueAtPercentile(100));
+        }
+        return helper.toString();
+    }
+
+    /** @return the number of recorded durations. */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the duration, in nanoseconds, that percentile of the recorded durations are shorter
+     *     than or equal to. Rounded up to the largest duration of its bucket. 0 if there are no
+     *     recorded durations.
+     */
+    public long valueAtPercentile(double percentile) {
+        Preconditions.checkArgument(
+                percentile >= 0 && percentile <= 100, "percentile must be in range [0,100]");
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return LatencyHistogram.highestValue(i);
+            }
+        }
+        // Unreachable, rank <= count.
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @param earlier a snapshot taken earlier of the same histogram.
+     * @return the durations recorded between the two snapshots.
+     */
+    public LatencySnapshot minus(LatencySnapshot earlier) {
+        if (earlier.count == 0) {
+            return this;
+        }
+        Preconditions.checkArgument(
+                counts.length == earlier.counts.length, "snapshots of different histograms");
+        final long[] counts = this.counts.clone();
+        for (int i = 0; i < earlier.counts.length; i++) {
+            counts[i] -= earlier.counts[i];
+        }
+        return new LatencySnapshot(counts);
+    }
+}
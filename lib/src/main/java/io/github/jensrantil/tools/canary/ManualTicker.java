@@ -0,0 +1,33 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Ticker;
+import java.time.Duration;
+
+/**
+ * A {@link Ticker} that only moves when told to. Useful for tests and simulations. Starts at 0.
+ *
+ * <p>Thread-safe.
+ */
+public final class ManualTicker extends Ticker {
+    private volatile long nanos;
+
+    @Override
+    public long read() {
+        return nanos;
+    }
+
+    /** Move the ticker forward (or backward, for negative durations). */
+    public synchronized void advance(Duration duration) {
+        nanos += duration.toNanos();
+    }
+
+    public synchronized void set(long nanos) {
+        this.nanos = nanos;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("nanos", nanos).toString();
+    }
+}
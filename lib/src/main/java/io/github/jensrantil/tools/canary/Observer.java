@@ -17,6 +17,11 @@ public interface Observer {
         public Summary getSummary() {
             return new Summary(0, 0);
         }
+
+        @Override
+        public double successRatio() {
+            return Double.NaN;
+        }
     }
 
     Observer EMPTY_OBSERVER = new EmptyObserver();
@@ -25,5 +30,46 @@ public interface Observer {
 
     void registerSuccess();
 
+    /**
+     * Register a failed call that took nanos. Only called if {@link #recordsLatency()} returns
+     * {@code true}, instead of {@link #registerFailure()}.
+     */
+    default void registerFailure(long nanos) {
+        registerFailure();
+    }
+
+    /**
+     * Register a successful call that took nanos. Only called if {@link #recordsLatency()} returns
+     * {@code true}, instead of {@link #registerSuccess()}.
+     */
+    default void registerSuccess(long nanos) {
+        registerSuccess();
+    }
+
+    /**
+     * Whether calls should be timed for this observer. Timing a call costs two reads of a {@link
+     * com.google.common.base.Ticker}, so it's only done when asked for. Must always return the same
+     * value.
+     */
+    default boolean recordsLatency() {
+        return false;
+    }
+
+    /** @return the durations of the registered calls, if recorded. See {@link LatencyObserver}. */
+    default LatencySnapshot latencies() {
+        return LatencySnapshot.EMPTY;
+    }
+
     Summary getSummary();
+
+    /**
+     * The same thing as {@code getSummary().calculateSuccessRatio()}, but implementations are
+     * encouraged to compute it without allocating.
+     *
+     * @return the ratio of successful calls, or {@link Double#NaN} if there are no calls.
+     */
+    default double successRatio() {
+        final Summary summary = getSummary();
+        return summary.total == 0 ? Double.NaN : summary.calculateSuccessRatio();
+    }
 }
@@ -0,0 +1,15 @@
+package io.github.jensrantil.tools.canary;
+
+/** The mechanism used to implement the proxies constructed by the builders in this package. */
+public enum ProxyBackend {
+    /**
+     * Generate a class per interface that calls the chosen delegate directly, without reflection,
+     * argument arrays or boxing (unless routing needs the arguments). Falls back to {@link
+     * #JDK_PROXY} if a class can't be generated for an interface, for example if it's loaded by a
+     * class loader that can't see this library.
+     */
+    GENERATED,
+
+    /** Use {@link java.lang.reflect.Proxy} and reflection to call the chosen delegate. */
+    JDK_PROXY,
+}
@@ -0,0 +1,638 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+/**
+ * Emits the bytecode of a class implementing an interface by calling a {@link ProxyRouter}. For
+ * every method of the interface, the generated class does (in pseudo Java):
+ *
+ * <pre>{@code
+ * public R method(A a, B b) {
+ *     ProxyRouter router = this.router;
+ *     Object route = router.route(ORDINAL, capturesArguments ? new Object[] {a, b} : null);
+ *     long token = router.begin(ORDINAL, route);
+ *     R result;
+ *     try {
+ *         result = ((Interface) router.target(route)).method(a, b);
+ *     } catch (Throwable e) {
+ *         router.failure(ORDINAL, route, token, e);
+ *         throw e;
+ *     }
+ *     router.success(ORDINAL, route, token, capturesResult ? result : null);
+ *     return result;
+ * }
+ * }</pre>
+ *
+ * That is, the delegate is called with a regular {@code invokeinterface} instruction. No argument
+ * array is allocated unless the router needs it and no primitives are boxed (unless the router
+ * needs the arguments or a primitive result). Methods that the router
+ * can route on a single {@code int} or {@code long} parameter call {@code router.route(ORDINAL,
+ * (long) a)} instead.
+ */
+final class ProxyClassGenerator {
+    // Java 8. From this version the verifier requires stack map frames, see #writeMethod.
+    private static final int CLASS_FILE_VERSION = 52;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String THROWABLE = "java/lang/Throwable";
+    private static final String ROUTER = ProxyMethods.internalName(ProxyRouter.class);
+    private static final String ROUTER_DESCRIPTOR = ProxyMethods.descriptor(ProxyRouter.class);
+
+    private ProxyClassGenerator() {
+        // utility class.
+    }
+
+    /**
+     * @param className the binary name of the class to generate. Must be in the same package as the
+     *     interface.
+     * @param methods the methods to implement.
+     * @param capturesArguments for every method ordinal, whether to pass an argument array to {@link
+     *     ProxyRouter#route(int, Object[])}.
+     * @param routingKeyParameters for every method ordinal, the parameter to pass to {@link
+     *     ProxyRouter#route(int, long)}, or -1.
+     * @param capturesResults for every method ordinal, whether to pass a primitive result, boxed,
+     *     to {@link ProxyRouter#success(int, Object, long, Object)}.
+     * @throws IllegalArgumentException if a class can't be generated for the interface.
+     */
+    static byte[] generate(
+            String className,
+            ProxyMethods methods,
+            boolean[] capturesArguments,
+            int[] routingKeyParameters,
+            boolean[] capturesResults) {
+        Preconditions.checkArgument(capturesArguments.length == methods.size());
+        Preconditions.checkArgument(routingKeyParameters.length == methods.size());
+        Preconditions.checkArgument(capturesResults.length == methods.size());
+        for (int ordinal = 0; ordinal < methods.size(); ordinal++) {
+            final int keyParameter = routingKeyParameters[ordinal];
+            if (keyParameter >= 0) {
+                final Class<?> keyType = methods.get(ordinal).getParameterTypes()[keyParameter];
+                Preconditions.checkArgument(
+                        keyType == int.class || keyType == long.class,
+                        "routing key must be an int or a long, was %s",
+                        keyType);
+            }
+            final Class<?> declaringClass = methods.get(ordinal).getDeclaringClass();
+            Preconditions.checkArgument(
+                    Modifier.isPublic(declaringClass.getModifiers())
+                            || (declaringClass.getPackageName().equals(methods.type.getPackageName())
+                                    && declaringClass.getClassLoader()
+                                            == methods.type.getClassLoader()),
+                    "%s is not accessible from the package of %s",
+                    declaringClass,
+                    methods.type);
+        }
+
+        final String thisClass = className.replace('.', '/');
+        final ConstantPool pool = new ConstantPool();
+        final Bytes body = new Bytes();
+
+        body.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC);
+        body.u2(pool.classRef(thisClass));
+        body.u2(pool.classRef(OBJECT));
+        body.u2(1); // interfaces
+        body.u2(pool.classRef(ProxyMethods.internalName(methods.type)));
+
+        body.u2(1); // fields
+        body.u2(ACC_PRIVATE | ACC_FINAL);
+        body.u2(pool.utf8("router"));
+        body.u2(pool.utf8(ROUTER_DESCRIPTOR));
+        body.u2(0); // field attributes
+
+        body.u2(methods.size() + 1);
+        writeConstructor(body, pool, thisClass);
+        for (int ordinal = 0; ordinal < methods.size(); ordinal++) {
+            writeMethod(
+                    body,
+                    pool,
+                    thisClass,
+                    ordinal,
+                    methods.get(ordinal),
+                    capturesArguments[ordinal],
+                    routingKeyParameters[ordinal],
+                    capturesResults[ordinal]);
+        }
+        body.u2(0); // class attributes
+
+        final Bytes file = new Bytes();
+        file.u4(0xCAFEBABE);
+        file.u2(0); // minor version
+        file.u2(CLASS_FILE_VERSION);
+        file.u2(pool.count());
+        file.bytes(pool.bytes);
+        file.bytes(body);
+        return file.toByteArray();
+    }
+
+    private static void writeConstructor(Bytes out, ConstantPool pool, String thisClass) {
+        final Bytes code = new Bytes();
+        code.u1(ALOAD_0);
+        code.u1(INVOKESPECIAL);
+        code.u2(pool.methodRef(OBJECT, "<init>", "()V"));
+        code.u1(ALOAD_0);
+        code.u1(ALOAD_1);
+        code.u1(PUTFIELD);
+        code.u2(pool.fieldRef(thisClass, "router", ROUTER_DESCRIPTOR));
+        code.u1(RETURN);
+
+        out.u2(ACC_PUBLIC);
+        out.u2(pool.utf8("<init>"));
+        out.u2(pool.utf8("(" + ROUTER_DESCRIPTOR + ")V"));
+        writeCode(out, pool, code, 2, 2, null, null);
+    }
+
+    private static void writeMethod(
+            Bytes out,
+            ConstantPool pool,
+            String thisClass,
+            int ordinal,
+            Method method,
+            boolean capturesArguments,
+            int routingKeyParameter,
+            boolean capturesResult) {
+
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        final Class<?> returnType = method.getReturnType();
+
+        int parameterSlots = 0;
+        for (Class<?> parameterType : parameterTypes) {
+            parameterSlots += slots(parameterType);
+        }
+        final int routerLocal = 1 + parameterSlots;
+        final int routeLocal = routerLocal + 1;
+        final int tokenLocal = routeLocal + 1;
+        final int resultLocal = tokenLocal + 2; // Also used for the exception in the handler.
+        final int maxLocals = resultLocal + Math.max(1, slots(returnType));
+        // Building the argument array needs up to router, ordinal, array, array, index, long.
+        final int maxStack = Math.max(7, 1 + parameterSlots);
+
+        final Bytes code = new Bytes();
+
+        // ProxyRouter router = this.router;
+        code.u1(ALOAD_0);
+        code.u1(GETFIELD);
+        code.u2(pool.fieldRef(thisClass, "router", ROUTER_DESCRIPTOR));
+        local(code, ASTORE, routerLocal);
+
+        // Object route = router.route(ORDINAL, args);
+        local(code, ALOAD, routerLocal);
+        pushInt(code, pool, ordinal);
+        if (routingKeyParameter >= 0) {
+            int slot = 1;
+            for (int i = 0; i < routingKeyParameter; i++) {
+                slot += slots(parameterTypes[i]);
+            }
+            final Class<?> keyType = parameterTypes[routingKeyParameter];
+            local(code, loadOpcode(keyType), slot);
+            if (keyType != long.class) {
+                code.u1(I2L);
+            }
+        } else if (capturesArguments) {
+            pushInt(code, pool, parameterTypes.length);
+            code.u1(ANEWARRAY);
+            code.u2(pool.classRef(OBJECT));
+            int slot = 1;
+            for (int i = 0; i < parameterTypes.length; i++) {
+                code.u1(DUP);
+                pushInt(code, pool, i);
+                loadBoxed(code, pool, parameterTypes[i], slot);
+                code.u1(AASTORE);
+                slot += slots(parameterTypes[i]);
+            }
+        } else {
+            code.u1(ACONST_NULL);
+        }
+        code.u1(INVOKEVIRTUAL);
+        code.u2(
+                pool.methodRef(
+                        ROUTER,
+                        "route",
+                        routingKeyParameter >= 0
+                                ? "(IJ)Ljava/lang/Object;"
+                                : "(I[Ljava/lang/Object;)Ljava/lang/Object;"));
+        local(code, ASTORE, routeLocal);
+
+        // long token = router.begin(ORDINAL, route);
+        local(code, ALOAD, routerLocal);
+        pushInt(code, pool, ordinal);
+        local(code, ALOAD, routeLocal);
+        code.u1(INVOKEVIRTUAL);
+        code.u2(pool.methodRef(ROUTER, "begin", "(ILjava/lang/Object;)J"));
+        local(code, LSTORE, tokenLocal);
+
+        // result = ((Interface) router.target(route)).method(a, b);
+        local(code, ALOAD, routerLocal);
+        local(code, ALOAD, routeLocal);
+        code.u1(INVOKEVIRTUAL);
+        code.u2(pool.methodRef(ROUTER, "target", "(Ljava/lang/Object;)Ljava/lang/Object;"));
+        final Class<?> declaringClass = method.getDeclaringClass();
+        if (declaringClass != Object.class) {
+            code.u1(CHECKCAST);
+            code.u2(pool.classRef(ProxyMethods.internalName(declaringClass)));
+        }
+        int slot = 1;
+        for (Class<?> parameterType : parameterTypes) {
+            local(code, loadOpcode(parameterType), slot);
+            slot += slots(parameterType);
+        }
+        final int tryStart = code.size();
+        final String descriptor = ProxyMethods.descriptor(method);
+        if (declaringClass == Object.class) {
+            code.u1(INVOKEVIRTUAL);
+            code.u2(pool.methodRef(OBJECT, method.getName(), descriptor));
+        } else {
+            code.u1(INVOKEINTERFACE);
+            code.u2(
+                    pool.interfaceMethodRef(
+                            ProxyMethods.internalName(declaringClass),
+                            method.getName(),
+                            descriptor));
+            code.u1(1 + parameterSlots);
+            code.u1(0);
+        }
+        final int tryEnd = code.size();
+        if (returnType != void.class) {
+            local(code, storeOpcode(returnType), resultLocal);
+        }
+
+        // router.success(ORDINAL, route, token, result);
+        local(code, ALOAD, routerLocal);
+        pushInt(code, pool, ordinal);
+        local(code, ALOAD, routeLocal);
+        local(code, LLOAD, tokenLocal);
+        if (returnType == void.class || (returnType.isPrimitive() && !capturesResult)) {
+            code.u1(ACONST_NULL);
+        } else {
+            loadBoxed(code, pool, returnType, resultLocal);
+        }
+        code.u1(INVOKEVIRTUAL);
+        code.u2(
+                pool.methodRef(
+                        ROUTER, "success", "(ILjava/lang/Object;JLjava/lang/Object;)V"));
+        if (returnType == void.class) {
+            code.u1(RETURN);
+        } else {
+            local(code, loadOpcode(returnType), resultLocal);
+            code.u1(returnOpcode(returnType));
+        }
+
+        // catch (Throwable e) { router.failure(ORDINAL, route, token, e); throw e; }
+        final int handler = code.size();
+        local(code, ASTORE, resultLocal);
+        local(code, ALOAD, routerLocal);
+        pushInt(code, pool, ordinal);
+        local(code, ALOAD, routeLocal);
+        local(code, LLOAD, tokenLocal);
+        local(code, ALOAD, resultLocal);
+        code.u1(INVOKEVIRTUAL);
+        code.u2(
+                pool.methodRef(
+                        ROUTER, "failure", "(ILjava/lang/Object;JLjava/lang/Throwable;)V"));
+        local(code, ALOAD, resultLocal);
+        code.u1(ATHROW);
+
+        final Bytes exceptionTable = new Bytes();
+        exceptionTable.u2(1);
+        exceptionTable.u2(tryStart);
+        exceptionTable.u2(tryEnd);
+        exceptionTable.u2(handler);
+        exceptionTable.u2(0); // any
+
+        // A single full frame for the exception handler.
+        final Bytes stackMap = new Bytes();
+        stackMap.u2(1);
+        stackMap.u1(FULL_FRAME);
+        stackMap.u2(handler);
+        stackMap.u2(1 + parameterTypes.length + 3);
+        verificationType(stackMap, pool, thisClass);
+        for (Class<?> parameterType : parameterTypes) {
+            verificationType(stackMap, pool, parameterType);
+        }
+        verificationType(stackMap, pool, ROUTER);
+        verificationType(stackMap, pool, OBJECT);
+        stackMap.u1(ITEM_LONG);
+        stackMap.u2(1);
+        verificationType(stackMap, pool, THROWABLE);
+
+        out.u2(ACC_PUBLIC | ACC_FINAL);
+        out.u2(pool.utf8(method.getName()));
+        out.u2(pool.utf8(descriptor));
+        writeCode(out, pool, code, maxStack, maxLocals, exceptionTable, stackMap);
+    }
+
+    private static void writeCode(
+            Bytes out,
+            ConstantPool pool,
+            Bytes code,
+            int maxStack,
+            int maxLocals,
+            Bytes exceptionTable,
+            Bytes stackMap) {
+
+        final Bytes attribute = new Bytes();
+        attribute.u2(maxStack);
+        attribute.u2(maxLocals);
+        attribute.u4(code.size());
+        attribute.bytes(code);
+        if (exceptionTable == null) {
+            attribute.u2(0);
+        } else {
+            attribute.bytes(exceptionTable);
+        }
+        if (stackMap == null) {
+            attribute.u2(0);
+        } else {
+            attribute.u2(1);
+            attribute.u2(pool.utf8("StackMapTable"));
+            attribute.u4(stackMap.size());
+            attribute.bytes(stackMap);
+        }
+
+        out.u2(1); // method attributes
+        out.u2(pool.utf8("Code"));
+        out.u4(attribute.size());
+        out.bytes(attribute);
+    }
+
+    private static void loadBoxed(Bytes code, ConstantPool pool, Class<?> type, int slot) {
+        local(code, loadOpcode(type), slot);
+        if (!type.isPrimitive()) {
+            return;
+        }
+        final String box = ProxyMethods.internalName(BOXES.get(type));
+        code.u1(INVOKESTATIC);
+        code.u2(
+                pool.methodRef(
+                        box,
+                        "valueOf",
+                        "(" + ProxyMethods.descriptor(type) + ")L" + box + ";"));
+    }
+
+    private static void pushInt(Bytes code, ConstantPool pool, int value) {
+        if (value >= -1 && value <= 5) {
+            code.u1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.u1(BIPUSH);
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.u1(SIPUSH);
+            code.u2(value);
+        } else {
+            code.u1(LDC_W);
+            code.u2(pool.integer(value));
+        }
+    }
+
+    private static void local(Bytes code, int opcode, int index) {
+        if (index > 0xFF) {
+            code.u1(WIDE);
+            code.u1(opcode);
+            code.u2(index);
+        } else {
+            code.u1(opcode);
+            code.u1(index);
+        }
+    }
+
+    private static void verificationType(Bytes out, ConstantPool pool, Class<?> type) {
+        if (type == long.class) {
+            out.u1(ITEM_LONG);
+        } else if (type == double.class) {
+            out.u1(ITEM_DOUBLE);
+        } else if (type == float.class) {
+            out.u1(ITEM_FLOAT);
+        } else if (type.isPrimitive()) {
+            out.u1(ITEM_INTEGER);
+        } else {
+            verificationType(out, pool, ProxyMethods.internalName(type));
+        }
+    }
+
+    private static void verificationType(Bytes out, ConstantPool pool, String internalName) {
+        out.u1(ITEM_OBJECT);
+        out.u2(pool.classRef(internalName));
+    }
+
+    private static int slots(Class<?> type) {
+        if (type == void.class) {
+            return 0;
+        }
+        return type == long.class || type == double.class ? 2 : 1;
+    }
+
+    private static int loadOpcode(Class<?> type) {
+        return typed(type, ILOAD);
+    }
+
+    private static int storeOpcode(Class<?> type) {
+        return typed(type, ISTORE);
+    }
+
+    private static int returnOpcode(Class<?> type) {
+        return typed(type, IRETURN);
+    }
+
+    /**
+     * The JVM instruction families used here (load, store, return) are all laid out in the order
+     * int, long, float, double, reference.
+     */
+    private static int typed(Class<?> type, int intOpcode) {
+        if (type == long.class) {
+            return intOpcode + 1;
+        }
+        if (type == float.class) {
+            return intOpcode + 2;
+        }
+        if (type == double.class) {
+            return intOpcode + 3;
+        }
+        if (!type.isPrimitive()) {
+            return intOpcode + 4;
+        }
+        return intOpcode;
+    }
+
+    private static final Map<Class<?>, Class<?>> BOXES = Maps.newHashMap();
+
+    static {
+        BOXES.put(boolean.class, Boolean.class);
+        BOXES.put(byte.class, Byte.class);
+        BOXES.put(char.class, Character.class);
+        BOXES.put(short.class, Short.class);
+        BOXES.put(int.class, Integer.class);
+        BOXES.put(long.class, Long.class);
+        BOXES.put(float.class, Float.class);
+        BOXES.put(double.class, Double.class);
+    }
+
+    // Opcodes.
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int LLOAD = 0x16;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ISTORE = 0x36;
+    private static final int LSTORE = 0x37;
+    private static final int ASTORE = 0x3a;
+    private static final int AASTORE = 0x53;
+    private static final int DUP = 0x59;
+    private static final int I2L = 0x85;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int ANEWARRAY = 0xbd;
+    private static final int ATHROW = 0xbf;
+    private static final int CHECKCAST = 0xc0;
+    private static final int WIDE = 0xc4;
+
+    // Stack map frames.
+    private static final int FULL_FRAME = 255;
+    private static final int ITEM_INTEGER = 1;
+    private static final int ITEM_FLOAT = 2;
+    private static final int ITEM_DOUBLE = 3;
+    private static final int ITEM_LONG = 4;
+    private static final int ITEM_OBJECT = 7;
+
+    /** A growable big-endian byte buffer. */
+    private static final class Bytes {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(buffer);
+
+        void u1(int value) {
+            buffer.write(value);
+        }
+
+        void u2(int value) {
+            Preconditions.checkArgument(value <= 0xFFFF, "class file limit exceeded");
+            buffer.write(value >>> 8);
+            buffer.write(value);
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value & 0xFFFF);
+        }
+
+        void utf(String value) {
+            try {
+                // DataOutputStream uses the same modified UTF-8 encoding as class files.
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void bytes(Bytes other) {
+            final byte[] bytes = other.toByteArray();
+            buffer.write(bytes, 0, bytes.length);
+        }
+
+        int size() {
+            return buffer.size();
+        }
+
+        byte[] toByteArray() {
+            return buffer.toByteArray();
+        }
+    }
+
+    /** A constant pool that deduplicates its entries. */
+    private static final class ConstantPool {
+        private final Bytes bytes = new Bytes();
+        private final Map<String, Integer> indices = Maps.newHashMap();
+
+        int count() {
+            return indices.size() + 1;
+        }
+
+        int utf8(String value) {
+            final Integer existing = indices.get("U" + value);
+            if (existing != null) {
+                return existing;
+            }
+            bytes.u1(1);
+            bytes.utf(value);
+            return register("U" + value);
+        }
+
+        int integer(int value) {
+            final Integer existing = indices.get("I" + value);
+            if (existing != null) {
+                return existing;
+            }
+            bytes.u1(3);
+            bytes.u4(value);
+            return register("I" + value);
+        }
+
+        int classRef(String internalName) {
+            return reference(7, "C" + internalName, utf8(internalName), -1);
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        int interfaceMethodRef(String owner, String name, String descriptor) {
+            return memberRef(11, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            final int classIndex = classRef(owner);
+            final int nameAndTypeIndex =
+                    reference(12, "N" + name + " " + descriptor, utf8(name), utf8(descriptor));
+            return reference(
+                    tag,
+                    tag + owner + "." + name + " " + descriptor,
+                    classIndex,
+                    nameAndTypeIndex);
+        }
+
+        private int reference(int tag, String key, int first, int second) {
+            final Integer existing = indices.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            bytes.u1(tag);
+            bytes.u2(first);
+            if (second >= 0) {
+                bytes.u2(second);
+            }
+            return register(key);
+        }
+
+        private int register(String key) {
+            final int index = count();
+            indices.put(key, index);
+            return index;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Preconditions;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Creates proxies that delegate to a {@link ProxyRouter} using a {@link ProxyBackend}. */
+final class ProxyFactory {
+    private static final AtomicInteger CLASS_COUNTER = new AtomicInteger();
+
+    /**
+     * Generated classes, per interface and argument capturing/routing key/result capturing
+     * layout. A value is either a {@link Constructor} or the {@link Throwable} that made class
+     * generation fail.
+     */
+    private static final ClassValue<Map<String, Object>> GENERATED_CLASSES =
+            new ClassValue<Map<String, Object>>() {
+                @Override
+                protected Map<String, Object> computeValue(Class<?> type) {
+                    return new ConcurrentHashMap<>();
+                }
+            };
+
+    private ProxyFactory() {
+        // utility class.
+    }
+
+    /**
+     * @param type the interface that the proxy should implement.
+     * @param router the router that all calls will be routed through.
+     * @param backend the preferred backend.
+     * @param classLoader the class loader used if a {@link Proxy} is constructed.
+     * @return a proxy implementing type.
+     */
+    static <T> T create(
+            Class<T> type, ProxyRouter router, ProxyBackend backend, ClassLoader classLoader) {
+        Preconditions.checkArgument(type.isInterface(), "T must be an interface");
+        Preconditions.checkArgument(router.methods.type == type, "router is for another type");
+
+        if (backend == ProxyBackend.GENERATED) {
+            final Object generated = generatedConstructor(router);
+            if (generated instanceof Constructor) {
+                try {
+                    return type.cast(((Constructor<?>) generated).newInstance(router));
+                } catch (ReflectiveOperationException e) {
+                    // Fall back to a JDK proxy. Should not happen since the class has already been
+                    // instantiated once.
+                }
+            }
+        }
+
+        return type.cast(Proxy.newProxyInstance(classLoader, new Class<?>[] {type}, router));
+    }
+
+    private static Object generatedConstructor(ProxyRouter router) {
+        final ProxyMethods methods = router.methods;
+        final boolean[] capturesArguments = new boolean[methods.size()];
+        final int[] routingKeyParameters = new int[methods.size()];
+        final boolean[] capturesResults = new boolean[methods.size()];
+        for (int ordinal = 0; ordinal < capturesArguments.length; ordinal++) {
+            capturesArguments[ordinal] = router.capturesArguments(ordinal);
+            routingKeyParameters[ordinal] = router.routingKeyParameter(ordinal);
+            capturesResults[ordinal] = router.capturesResult(ordinal);
+        }
+
+        return GENERATED_CLASSES
+                .get(methods.type)
+                .computeIfAbsent(
+                        Arrays.toString(capturesArguments)
+                                + Arrays.toString(routingKeyParameters)
+                                + Arrays.toString(capturesResults),
+                        key ->
+                                generateClass(
+                                        router,
+                                        capturesArguments,
+                                        routingKeyParameters,
+                                        capturesResults));
+    }
+
+    private static Object generateClass(
+            ProxyRouter router,
+            boolean[] capturesArguments,
+            int[] routingKeyParameters,
+            boolean[] capturesResults) {
+        final Class<?> type = router.methods.type;
+        try {
+            final String className =
+                    type.getName() + "$$CanaryProxy$" + CLASS_COUNTER.incrementAndGet();
+            final byte[] bytes =
+                    ProxyClassGenerator.generate(
+                            className,
+                            router.methods,
+                            capturesArguments,
+                            routingKeyParameters,
+                            capturesResults);
+            final Class<?> generated =
+                    MethodHandles.privateLookupIn(type, MethodHandles.lookup()).defineClass(bytes);
+            Preconditions.checkState(
+                    generated.getDeclaredField("router").getType() == ProxyRouter.class,
+                    "%s can't see %s",
+                    type.getClassLoader(),
+                    ProxyRouter.class);
+
+            final Constructor<?> constructor = generated.getConstructor(ProxyRouter.class);
+            // Make sure the class verifies before it's handed out.
+            constructor.newInstance(router);
+            return constructor;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The methods a proxy for a certain interface must implement, each with a stable ordinal. Just like
+ * {@link java.lang.reflect.Proxy}, this includes {@link Object#equals(Object)}, {@link
+ * Object#hashCode()} and {@link Object#toString()}.
+ *
+ * <p>Every method also has a {@link MethodHandle}, used by {@link #invoke(int, Object, Object[])},
+ * that is resolved once when the instance is created.
+ *
+ * <p>Immutable class. Use {@link #of(Class)} to get the (cached) instance for an interface.
+ */
+final class ProxyMethods {
+    private static final ClassValue<ProxyMethods> CACHE =
+            new ClassValue<ProxyMethods>() {
+                @Override
+                protected ProxyMethods computeValue(Class<?> type) {
+                    return new ProxyMethods(type);
+                }
+            };
+
+    private static final List<Class<?>> PRIMITIVES =
+            Arrays.asList(
+                    boolean.class,
+                    byte.class,
+                    char.class,
+                    short.class,
+                    int.class,
+                    long.class,
+                    float.class,
+                    double.class);
+    private static final String PRIMITIVE_DESCRIPTORS = "ZBCSIJFD";
+
+    private static final Comparator<Method> METHOD_ORDER =
+            Comparator.comparing(Method::getName)
+                    .thenComparing(ProxyMethods::descriptor)
+                    .thenComparing(m -> m.getDeclaringClass().getName());
+
+    /** The type of all handles in {@link #handles}: {@code (Object target, Object[] args)Object}. */
+    private static final MethodType DISPATCH_TYPE =
+            MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private static final MethodHandle INVOKE_REFLECTIVELY;
+
+    static {
+        try {
+            INVOKE_REFLECTIVELY =
+                    MethodHandles.lookup()
+                            .findStatic(
+                                    ProxyMethods.class,
+                                    "invokeReflectively",
+                                    MethodType.methodType(
+                                            Object.class,
+                                            Method.class,
+                                            Object.class,
+                                            Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    final Class<?> type;
+    private final ImmutableList<Method> methods;
+    private final ImmutableMap<Method, Integer> ordinals;
+    // Indexed by ordinal.
+    private final MethodHandle[] handles;
+    // Indexed by ordinal.
+    private final boolean[] returnsCompletionStage;
+
+    static ProxyMethods of(Class<?> type) {
+        return CACHE.get(type);
+    }
+
+    private ProxyMethods(Class<?> type) {
+        Preconditions.checkArgument(type.isInterface(), "T must be an interface");
+
+        final List<Method> candidates = Lists.newArrayList();
+        for (Method method : type.getMethods()) {
+            if (!Modifier.isStatic(method.getModifiers())) {
+                candidates.add(method);
+            }
+        }
+        candidates.sort(METHOD_ORDER);
+        try {
+            candidates.add(Object.class.getMethod("equals", Object.class));
+            candidates.add(Object.class.getMethod("hashCode"));
+            candidates.add(Object.class.getMethod("toString"));
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+
+        // Methods with the same signature, declared in multiple interfaces, share a single ordinal.
+        final Map<String, Integer> ordinalBySignature = Maps.newHashMap();
+        final ImmutableList.Builder<Method> methods = ImmutableList.builder();
+        final ImmutableMap.Builder<Method, Integer> ordinals = ImmutableMap.builder();
+        for (Method method : candidates) {
+            final String signature = method.getName() + descriptor(method);
+            Integer ordinal = ordinalBySignature.get(signature);
+            if (ordinal == null) {
+                ordinal = ordinalBySignature.size();
+                ordinalBySignature.put(signature, ordinal);
+                methods.add(method);
+            }
+            ordinals.put(method, ordinal);
+        }
+
+        this.type = type;
+        this.methods = methods.build();
+        this.ordinals = ordinals.build();
+
+        this.handles = new MethodHandle[this.methods.size()];
+        this.returnsCompletionStage = new boolean[this.methods.size()];
+        for (int ordinal = 0; ordinal < this.handles.length; ordinal++) {
+            final Method method = this.methods.get(ordinal);
+            this.handles[ordinal] = dispatchHandle(type, method);
+            this.returnsCompletionStage[ordinal] =
+                    CompletionStage.class.isAssignableFrom(method.getReturnType());
+        }
+    }
+
+    /**
+     * A handle that calls method without any reflective access checks nor {@link
+     * InvocationTargetException} wrapping.
+     */
+    private static MethodHandle dispatchHandle(Class<?> type, Method method) {
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.privateLookupIn(type, MethodHandles.lookup()).unreflect(method);
+        } catch (IllegalAccessException | RuntimeException e) {
+            // For example if type is in a named module that isn't open to us. Let Method#invoke
+            // figure out whether it is at all possible to call the method.
+            return MethodHandles.insertArguments(INVOKE_REFLECTIVELY, 0, method);
+        }
+        return handle.asSpreader(Object[].class, method.getParameterCount()).asType(DISPATCH_TYPE);
+    }
+
+    private static Object invokeReflectively(Method method, Object target, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("type", type)
+                .add("methods", methods.size())
+                .toString();
+    }
+
+    int size() {
+        return methods.size();
+    }
+
+    Method get(int ordinal) {
+        return methods.get(ordinal);
+    }
+
+    int ordinal(Method method) {
+        final Integer ordinal = ordinals.get(method);
+        Preconditions.checkArgument(ordinal != null, "%s is not a method of %s", method, type);
+        return ordinal;
+    }
+
+    /**
+     * Whether a method returns a {@link CompletionStage}, such as a {@link
+     * java.util.concurrent.CompletableFuture}, whose outcome is only known once it completes.
+     */
+    boolean returnsCompletionStage(int ordinal) {
+        return returnsCompletionStage[ordinal];
+    }
+
+    /** Invoke a method on a delegate, throwing whatever the delegate threw. */
+    Object invoke(int ordinal, Object target, Object[] args) throws Throwable {
+        return (Object) handles[ordinal].invokeExact(target, args);
+    }
+
+    /**
+     * The arguments of a call known only by its routing key, see {@link ProxyRouter#route(int,
+     * long)}. The other arguments are {@code null}.
+     *
+     * @param parameter the index of the {@code int} or {@code long} parameter of the key.
+     */
+    static Object[] keyArguments(Method method, int parameter, long key) {
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        Preconditions.checkArgument(
+                parameter >= 0 && parameter < parameterTypes.length,
+                "%s has no parameter %s",
+                method,
+                parameter);
+        final Object[] args = new Object[parameterTypes.length];
+        if (parameterTypes[parameter] == int.class) {
+            args[parameter] = (int) key;
+        } else {
+            Preconditions.checkArgument(
+                    parameterTypes[parameter] == long.class,
+                    "parameter %s of %s is neither an int nor a long",
+                    parameter,
+                    method);
+            args[parameter] = key;
+        }
+        return args;
+    }
+
+    static String descriptor(Method method) {
+        final StringBuilder builder = new StringBuilder("(");
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            builder.append(descriptor(parameterType));
+        }
+        return builder.append(')').append(descriptor(method.getReturnType())).toString();
+    }
+
+    static String descriptor(Class<?> type) {
+        if (type == void.class) {
+            return "V";
+        }
+        if (type.isPrimitive()) {
+            return String.valueOf(PRIMITIVE_DESCRIPTORS.charAt(PRIMITIVES.indexOf(type)));
+        }
+        if (type.isArray()) {
+            return internalName(type);
+        }
+        return "L" + internalName(type) + ";";
+    }
+
+    static String internalName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+}
@@ -0,0 +1,128 @@
+package io.github.jensrantil.tools.canary;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+/**
+ * Routes calls made on a proxy to one of its delegates. A router is shared by both proxy backends:
+ * generated proxy classes call the {@code route}/{@code target}/{@code begin}/{@code success}/
+ * {@code failure} hooks directly using a method ordinal that is baked into the generated class,
+ * while {@link java.lang.reflect.Proxy} instances call {@link #invoke(Object, Method, Object[])}
+ * which does the same thing reflectively.
+ *
+ * <p>This class is only public because generated proxy classes are defined in the package of the
+ * interface they implement and must be able to call it. It is not intended to be extended or called
+ * outside of this library.
+ */
+public abstract class ProxyRouter implements InvocationHandler {
+    final ProxyMethods methods;
+
+    // Package-private to make sure only this library can extend it.
+    ProxyRouter(Class<?> type) {
+        this.methods = ProxyMethods.of(type);
+    }
+
+    /**
+     * Pick where a call should be routed.
+     *
+     * @param ordinal the ordinal of the called method, see {@link ProxyMethods}.
+     * @param args the arguments of the call. {@code null} if {@link #capturesArguments(int)} is
+     *     {@code false} for the method and the call is made through a generated proxy.
+     * @return a route. Passed back to the other hooks of this class.
+     */
+    public abstract Object route(int ordinal, Object[] args);
+
+    /**
+     * Pick where a call should be routed, given only the value of the parameter returned by {@link
+     * #routingKeyParameter(int)}. Called instead of {@link #route(int, Object[])} by generated
+     * proxies, and must route exactly like it would have. By default, calls {@link #route(int,
+     * Object[])} with the key as the only non-null argument.
+     *
+     * @param key the value of the parameter, widened to a {@code long}.
+     */
+    public Object route(int ordinal, long key) {
+        return route(
+                ordinal,
+                ProxyMethods.keyArguments(
+                        methods.get(ordinal), routingKeyParameter(ordinal), key));
+    }
+
+    /**
+     * @param route a route returned by {@link #route(int, Object[])}.
+     * @return the delegate that the call should be made on.
+     */
+    public Object target(Object route) {
+        return route;
+    }
+
+    /**
+     * Called right before a delegate is called.
+     *
+     * @return a token that will be passed to {@link #success(int, Object, long, Object)} or {@link
+     *     #failure(int, Object, long, Throwable)}.
+     */
+    public long begin(int ordinal, Object route) {
+        return 0;
+    }
+
+    /**
+     * Called after a delegate returned successfully.
+     *
+     * @param result the returned value. Always {@code null} for methods returning {@code void},
+     *     and for methods returning primitives unless {@link #capturesResult(int)}.
+     */
+    public void success(int ordinal, Object route, long token, Object result) {
+        // deliberately left empty.
+    }
+
+    /** Called after a delegate threw an exception. The exception will be rethrown to the caller. */
+    public void failure(int ordinal, Object route, long token, Throwable exception) {
+        // deliberately left empty.
+    }
+
+    /**
+     * Whether {@link #route(int, Object[])} needs the call arguments for a certain method. Generated
+     * proxies avoid allocating an argument array for methods where this returns {@code false}. Must
+     * always return the same value for the same ordinal.
+     */
+    boolean capturesArguments(int ordinal) {
+        return true;
+    }
+
+    /**
+     * Whether {@link #success(int, Object, long, Object)} needs the result of a method returning a
+     * primitive. Generated proxies avoid boxing it for methods where this returns {@code false}.
+     * Must always return the same value for the same ordinal.
+     */
+    boolean capturesResult(int ordinal) {
+        return false;
+    }
+
+    /**
+     * The index of an {@code int} or {@code long} parameter that {@link #route(int, long)} can route
+     * a method on, or -1 if {@link #route(int, Object[])} must be used. Must always return the same
+     * value for the same ordinal.
+     */
+    int routingKeyParameter(int ordinal) {
+        return -1;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final int ordinal = methods.ordinal(method);
+        final Object route = route(ordinal, args);
+        final long token = begin(ordinal, route);
+
+        final Object result;
+        try {
+            result = methods.invoke(ordinal, target(route), args);
+        } catch (Throwable e) {
+            failure(ordinal, route, token, e);
+            throw e;
+        }
+
+        final boolean primitive = method.getReturnType().isPrimitive();
+        success(ordinal, route, token, primitive && !capturesResult(ordinal) ? null : result);
+        return result;
+    }
+}
@@ -0,0 +1,144 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A source of randomness used to make routing decisions. Routing decisions are made on the calling
+ * threads, so a source that is shared between threads quickly becomes a contention point. Use
+ * {@link #threadLocal()} (the default) or {@link #seeded(long)} to avoid that.
+ *
+ * <p>Implementations must be thread-safe.
+ */
+public interface RandomSource {
+
+    /** @return a uniformly distributed value in [0, bound). */
+    int nextInt(int bound);
+
+    /** @return a uniformly distributed value in [0, 1). */
+    double nextDouble();
+
+    boolean nextBoolean();
+
+    /**
+     * @return a source backed by {@link ThreadLocalRandom}. Uncontended, but not reproducible.
+     */
+    static RandomSource threadLocal() {
+        return ThreadLocalRandomSource.INSTANCE;
+    }
+
+    /**
+     * @param seed the seed of the first thread's generator.
+     * @return a source that gives every thread its own {@link SplittableRandom}, split from a
+     *     generator seeded with seed. Uncontended, and reproducible as long as threads start using
+     *     the source in the same order, which always is the case for a single thread.
+     */
+    static RandomSource seeded(long seed) {
+        return new SeededRandomSource(seed);
+    }
+
+    /**
+     * @return a source backed by a single {@link Random} that is shared by all threads. Only
+     *     recommended for tests and simulations, where reproducibility matters more than
+     *     contention.
+     */
+    static RandomSource of(Random random) {
+        return new SharedRandomSource(random);
+    }
+
+    final class ThreadLocalRandomSource implements RandomSource {
+        private static final RandomSource INSTANCE = new ThreadLocalRandomSource();
+
+        private ThreadLocalRandomSource() {}
+
+        @Override
+        public int nextInt(int bound) {
+            return ThreadLocalRandom.current().nextInt(bound);
+        }
+
+        @Override
+        public double nextDouble() {
+            return ThreadLocalRandom.current().nextDouble();
+        }
+
+        @Override
+        public boolean nextBoolean() {
+            return ThreadLocalRandom.current().nextBoolean();
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).toString();
+        }
+    }
+
+    final class SeededRandomSource implements RandomSource {
+        private final long seed;
+        // Guarded by itself.
+        private final SplittableRandom root;
+        private final ThreadLocal<SplittableRandom> local;
+
+        private SeededRandomSource(long seed) {
+            this.seed = seed;
+            this.root = new SplittableRandom(seed);
+            this.local = ThreadLocal.withInitial(this::split);
+        }
+
+        private SplittableRandom split() {
+            synchronized (root) {
+                return root.split();
+            }
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return local.get().nextInt(bound);
+        }
+
+        @Override
+        public double nextDouble() {
+            return local.get().nextDouble();
+        }
+
+        @Override
+        public boolean nextBoolean() {
+            return local.get().nextBoolean();
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("seed", seed).toString();
+        }
+    }
+
+    final class SharedRandomSource implements RandomSource {
+        private final Random random;
+
+        private SharedRandomSource(Random random) {
+            this.random = Preconditions.checkNotNull(random);
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return random.nextInt(bound);
+        }
+
+        @Override
+        public double nextDouble() {
+            return random.nextDouble();
+        }
+
+        @Override
+        public boolean nextBoolean() {
+            return random.nextBoolean();
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("random", random).toString();
+        }
+    }
+}
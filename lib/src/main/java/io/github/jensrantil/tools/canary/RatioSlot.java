@@ -2,61 +2,67 @@ package io.github.jensrantil.tools.canary;
 
 import com.google.common.base.MoreObjects;
 import java.util.concurrent.atomic.LongAdder;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Counts successes and the total number of calls, lock-free. Both counts are packed into a single
+ * {@link LongAdder}: the successes in the upper 32 bits and the total in the lower 32 bits. A call
+ * is registered with a single add, so a success and its contribution to the total are always
+ * observed together and {@link #getSummary()} never shows more successes than total.
+ *
+ * <p>A slot can't count more than 2^32 - 1 calls between resets.
+ */
 class RatioSlot implements Observer {
-    private final LongAdder successes = new LongAdder();
-    private final LongAdder total = new LongAdder();
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final long FAILURE = 1;
+    private static final long SUCCESS = (1L << 32) | FAILURE;
+
+    private final LongAdder counts = new LongAdder();
 
     @Override
     public String toString() {
-        return MoreObjects.toStringHelper(this)
-                .add("successes", successes)
-                .add("total", total)
-                .toString();
+        return MoreObjects.toStringHelper(this).add("summary", getSummary()).toString();
     }
 
     @Override
     public void registerFailure() {
-        lock.readLock().lock();
-        try {
-            this.total.increment();
-        } finally {
-            lock.readLock().unlock();
-        }
+        counts.add(FAILURE);
     }
 
     @Override
     public void registerSuccess() {
-        lock.readLock().lock();
-        try {
-            // Yes, this is not an atomic operation. To avoid division by zero we at least increment
-            // the total first.
-            this.total.increment();
-            this.successes.increment();
-        } finally {
-            lock.readLock().unlock();
-        }
+        counts.add(SUCCESS);
     }
 
     @Override
     public Summary getSummary() {
-        lock.readLock().lock();
-        try {
-            return new Summary(this.successes.longValue(), this.total.longValue());
-        } finally {
-            lock.readLock().unlock();
-        }
+        final long counts = packedCounts();
+        return new Summary(successes(counts), total(counts));
+    }
+
+    @Override
+    public double successRatio() {
+        final long counts = packedCounts();
+        final long total = total(counts);
+        return total == 0 ? Double.NaN : (double) successes(counts) / total;
+    }
+
+    /** @return the counts, packed. Use {@link #successes(long)} and {@link #total(long)}. */
+    long packedCounts() {
+        return counts.sum();
+    }
+
+    static long successes(long packedCounts) {
+        return packedCounts >>> 32;
+    }
+
+    static long total(long packedCounts) {
+        return packedCounts & 0xFFFFFFFFL;
     }
 
+    /**
+     * Zero the slot. Registrations made concurrently with a reset are either counted or dropped as
+     * a whole.
+     */
     public void reset() {
-        lock.writeLock().lock();
-        try {
-            this.successes.reset();
-            this.total.reset();
-        } finally {
-            lock.writeLock().unlock();
-        }
+        counts.reset();
     }
 }
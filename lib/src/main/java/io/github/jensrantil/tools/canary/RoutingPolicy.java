@@ -0,0 +1,53 @@
+package io.github.jensrantil.tools.canary;
+
+/**
+ * Decides how large a share of the calls a {@link CircuitBreakerFallbackBuilder} proxy routes to
+ * the new implementation, based on what has been observed of both implementations. Calls that
+ * explore (see {@link CircuitBreakerFallbackBuilder#epsilon(double)}) are routed regardless of the
+ * policy.
+ *
+ * <p>Implementations must be thread-safe and are called once per call made on the proxy.
+ */
+public interface RoutingPolicy {
+    /** Routes on the success ratio of the new implementation alone. The default. */
+    RoutingPolicy SUCCESS_RATIO =
+            new RoutingPolicy() {
+                @Override
+                public double newImplementationShare(Observer oldObserver, Observer newObserver) {
+                    return newObserver.successRatio();
+                }
+
+                @Override
+                public String toString() {
+                    return "SUCCESS_RATIO";
+                }
+            };
+
+    /**
+     * @param oldObserver observes the old implementation, see {@link
+     *     CircuitBreakerFallbackBuilder#oldObserver(Observer)}.
+     * @param newObserver observes the new implementation, see {@link
+     *     CircuitBreakerFallbackBuilder#observer(Observer)}.
+     * @return the share, between 0 and 1, of the calls to route to the new implementation, or
+     *     {@link Double#NaN} if not known. Calls are split evenly if not known.
+     */
+    double newImplementationShare(Observer oldObserver, Observer newObserver);
+
+    /**
+     * Whether the policy needs {@link Observer#latencies()}. If so, observers that don't {@link
+     * Observer#recordsLatency()} are wrapped in a {@link LatencyObserver}. Must always return the
+     * same value.
+     */
+    default boolean usesLatencies() {
+        return false;
+    }
+
+    /**
+     * A policy with the same configuration but state of its own, for routing another group of
+     * methods, see {@link CircuitBreakerFallbackBuilder#observerPerGroup}. Stateless policies
+     * return themselves, which is the default.
+     */
+    default RoutingPolicy copy() {
+        return this;
+    }
+}
@@ -0,0 +1,165 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Ticker;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes calls on the share of a {@link RoutingPolicy} that is only evaluated once per interval,
+ * rather than on every call. Between evaluations, routing is in one of three states:
+ *
+ * <ul>
+ *   <li>{@link State#CLOSED}: the new implementation gets all calls but probes.
+ *   <li>{@link State#DEGRADED}: calls are split randomly, like without a state machine.
+ *   <li>{@link State#OPEN}: the old implementation gets all calls but probes.
+ * </ul>
+ *
+ * A steady state is entered when the share reaches 0 or 1, but only left once the share has moved
+ * more than a hysteresis band away from it. That way a single failure in an otherwise healthy
+ * window doesn't flap routing between CLOSED and DEGRADED.
+ *
+ * <p>Probes replace exploration in the steady states: every {@code 2 / epsilon}:th call of a thread
+ * goes to the other implementation, which is as many as exploration would send it on average.
+ * Routing a call in a steady state reads a volatile field and increments a counter of the calling
+ * thread. Every {@link #CLOCK_CHECK_PERIOD}:th call of a thread also reads the ticker, to see if
+ * it's time to evaluate. It draws no random numbers, doesn't ask the observers for anything and
+ * writes nothing that other threads read.
+ *
+ * <p>Thread-safe. Evaluating is done by a single call once per interval. In a steady state, a
+ * thread may route up to {@link #CLOCK_CHECK_PERIOD} calls more before an evaluation is due.
+ */
+final class RoutingStateMachine {
+    // Must be a power of two.
+    static final int CLOCK_CHECK_PERIOD = 16;
+
+    enum State {
+        CLOSED,
+        DEGRADED,
+        OPEN,
+    }
+
+    /** The outcome of an evaluation. Immutable. */
+    private static final class Decision {
+        final State state;
+        // The share of the new implementation, if DEGRADED. NaN if not known.
+        final double share;
+
+        Decision(double share) {
+            this.state = State.DEGRADED;
+            this.share = share;
+        }
+
+        Decision(double share, Decision previous, double hysteresis) {
+            if (share >= 1 || previous.state == State.CLOSED && share >= 1 - hysteresis) {
+                this.state = State.CLOSED;
+            } else if (share <= 0 || previous.state == State.OPEN && share <= hysteresis) {
+                this.state = State.OPEN;
+            } else {
+                this.state = State.DEGRADED;
+            }
+            this.share = share;
+        }
+    }
+
+    private final RoutingPolicy policy;
+    private final Observer oldObserver;
+    private final Observer newObserver;
+    private final Ticker ticker;
+    private final long intervalNanos;
+    private final double epsilon;
+    private final double hysteresis;
+    // 0 if never probing.
+    private final int probePeriod;
+
+    private final AtomicLong nextEvaluation;
+    // Only written on evaluation.
+    private volatile Decision decision = new Decision(Double.NaN);
+    // Per thread, so that routing doesn't write to memory that other threads read.
+    private final ThreadLocal<Calls> calls = ThreadLocal.withInitial(Calls::new);
+
+    /** The number of calls a thread has routed. Only accessed by its own thread. */
+    private static final class Calls {
+        int count;
+    }
+
+    RoutingStateMachine(
+            RoutingPolicy policy,
+            Observer oldObserver,
+            Observer newObserver,
+            Ticker ticker,
+            long intervalNanos,
+            double epsilon,
+            double hysteresis) {
+        this.policy = policy;
+        this.oldObserver = oldObserver;
+        this.newObserver = newObserver;
+        this.ticker = ticker;
+        this.intervalNanos = intervalNanos;
+        this.epsilon = epsilon;
+        this.hysteresis = hysteresis;
+        this.probePeriod = epsilon > 0 ? (int) Math.max(1, Math.round(2 / epsilon)) : 0;
+        // The first call evaluates.
+        this.nextEvaluation = new AtomicLong(ticker.read());
+    }
+
+    @Override
+    public String toString() {
+        final Decision decision = this.decision;
+        return MoreObjects.toStringHelper(this)
+                .add("state", decision.state)
+                .add("share", decision.share)
+                .add("intervalNanos", intervalNanos)
+                .add("hysteresis", hysteresis)
+                .add("probePeriod", probePeriod)
+                .toString();
+    }
+
+    /** @return the state as of the latest evaluation. */
+    State state() {
+        return decision.state;
+    }
+
+    /** @return whether to route a call to the new implementation. */
+    boolean routeToNew(RandomSource random) {
+        final Calls calls = this.calls.get();
+        // Wraps around after 2^32 calls of a thread, which only misplaces a probe.
+        final int count = calls.count++;
+
+        Decision decision = this.decision;
+        if (decision.state == State.DEGRADED || (count & (CLOCK_CHECK_PERIOD - 1)) == 0) {
+            decision = evaluateIfDue();
+        }
+        switch (decision.state) {
+            case CLOSED:
+                return !probe(count);
+            case OPEN:
+                return probe(count);
+            default:
+                if (random.nextDouble() < epsilon || Double.isNaN(decision.share)) {
+                    return random.nextBoolean();
+                }
+                return random.nextDouble() < decision.share;
+        }
+    }
+
+    /** @return the latest decision, after evaluating the routing policy if due. */
+    private Decision evaluateIfDue() {
+        final long nextEvaluation = this.nextEvaluation.get();
+        final long now = ticker.read();
+        // Ticker values must only be compared by their difference, they may overflow.
+        if (now - nextEvaluation >= 0
+                && this.nextEvaluation.compareAndSet(nextEvaluation, now + intervalNanos)) {
+            this.decision =
+                    new Decision(
+                            policy.newImplementationShare(oldObserver, newObserver),
+                            this.decision,
+                            hysteresis);
+        }
+        return this.decision;
+    }
+
+    private boolean probe(int count) {
+        return probePeriod != 0
+                && Integer.remainderUnsigned(count, probePeriod) == probePeriod - 1;
+    }
+}
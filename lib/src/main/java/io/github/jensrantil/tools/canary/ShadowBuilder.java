@@ -0,0 +1,272 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Equivalence;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ShadowBuilder} constructs a Java proxy for a dark launch: every call is served by the
+ * primary (old) implementation on the calling thread, while a sample of the calls is also made,
+ * asynchronously, on the shadow (new) implementation. The results of the shadow implementation are
+ * never returned to the caller, but its latencies and, optionally, whether it returns the same
+ * results are recorded in a {@link ShadowStatistics}.
+ *
+ * <p>Shadow calls never slow down the primary path. If more than {@link
+ * #maxInFlight(int)} shadow calls are in flight, or the executor rejects one, it is shed and
+ * counted in {@link ShadowStatistics.MethodStatistics#shed()}. Note that the shadow
+ * implementation is called with the same arguments as the primary implementation, after it has
+ * returned, so arguments that the primary implementation mutates are seen mutated.
+ *
+ * <p>This class is immutable. That is, it is thread-safe and you can create a builder as a template
+ * and build upon it in real-time.
+ *
+ * @param <T> the Java interface that the builder wraps.
+ */
+public class ShadowBuilder<T> {
+    private final RandomSource random;
+    private final double sampleRate;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final Equivalence<Object> resultEquivalence;
+    private final ShadowStatistics statistics;
+    private final Ticker ticker;
+    private final ProxyBackend proxyBackend;
+
+    public ShadowBuilder() {
+        this(
+                RandomSource.threadLocal(),
+                0.1,
+                null,
+                16,
+                null,
+                null,
+                Ticker.systemTicker(),
+                ProxyBackend.GENERATED);
+    }
+
+    private ShadowBuilder(
+            RandomSource random,
+            double sampleRate,
+            Executor executor,
+            int maxInFlight,
+            Equivalence<Object> resultEquivalence,
+            ShadowStatistics statistics,
+            Ticker ticker,
+            ProxyBackend proxyBackend) {
+        this.random = random;
+        this.sampleRate = sampleRate;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.resultEquivalence = resultEquivalence;
+        this.statistics = statistics;
+        this.ticker = ticker;
+        this.proxyBackend = proxyBackend;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("sampleRate", sampleRate)
+                .add("executor", executor)
+                .add("maxInFlight", maxInFlight)
+                .add("resultEquivalence", resultEquivalence)
+                .add("proxyBackend", proxyBackend)
+                .toString();
+    }
+
+    @VisibleForTesting
+    public ShadowBuilder<T> random(Random random) {
+        return randomSource(RandomSource.of(random));
+    }
+
+    /**
+     * @param random the source of randomness used to sample calls. Defaults to {@link
+     *     RandomSource#threadLocal()}.
+     * @return a new copy of a {@link ShadowBuilder}.
+     */
+    public ShadowBuilder<T> randomSource(RandomSource random) {
+        return new ShadowBuilder<>(
+                Preconditions.checkNotNull(random),
+                sampleRate,
+                executor,
+                maxInFlight,
+                resultEquivalence,
+                statistics,
+                ticker,
+                proxyBackend);
+    }
+
+    /**
+     * @param sampleRate the ratio of calls that are also made on the shadow implementation, a value
+     *     between 0 <= sampleRate <= 1. Defaults to 0.1.
+     * @return a new copy of a {@link ShadowBuilder}.
+     */
+    public ShadowBuilder<T> sampleRate(double sampleRate) {
+        Preconditions.checkArgument(
+                sampleRate >= 0 && sampleRate <= 1, "sampleRate must be in range [0,1]");
+        return new ShadowBuilder<>(
+                random,
+                sampleRate,
+                executor,
+                maxInFlight,
+                resultEquivalence,
+                statistics,
+                ticker,
+                proxyBackend);
+    }
+
+    /**
+     * @param executor runs the shadow calls. Defaults to a pool of {@link #maxInFlight(int)}
+     *     daemon threads per built proxy. Since the number of shadow calls in flight is bounded,
+     *     an executor that starts a thread per task is fine too.
+     * @return a new copy of a {@link ShadowBuilder}.
+     */
+    public ShadowBuilder<T> executor(Executor executor) {
+        return new ShadowBuilder<>(
+                random,
+                sampleRate,
+                Preconditions.checkNotNull(executor),
+                maxInFlight,
+                resultEquivalence,
+                statistics,
+                ticker,
+                proxyBackend);
+    }
+
+    /**
+     * @param maxInFlight the maximum number of shadow calls that are queued or running at the same
+     *     time. Sampled calls beyond that are shed. Defaults to 16.
+     * @return a new copy of a {@link ShadowBuilder}.
+     */
+    public ShadowBuilder<T> maxInFlight(int maxInFlight) {
+        Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be strictly positive");
+        return new ShadowBuilder<>(
+                random,
+                sampleRate,
+                executor,
+                maxInFlight,
+                resultEquivalence,
+                statistics,
+                ticker,
+                proxyBackend);
+    }
+
+    /**
+     * Compare the outcome of every shadow call to the outcome of the primary call, for example
+     * using {@link Equivalence#equals()}. Calls that both threw exceptions of the same class have
+     * the same outcome. Results of methods returning a {@link java.util.concurrent.CompletionStage}
+     * aren't compared. By default, outcomes aren't compared.
+     *
+     * @return a new copy of a {@link ShadowBuilder}.
+     */
+    public ShadowBuilder<T> compareResults(Equivalence<Object> resultEquivalence) {
+        return new ShadowBuilder<>(
+                random,
+                sampleRate,
+                executor,
+                maxInFlight,
+                Preconditions.checkNotNull(resultEquivalence),
+                statistics,
+                ticker,
+                proxyBackend);
+    }
+
+    /**
+     * @param statistics where the built proxies record what they see.
+     * @return a new copy of a {@link ShadowBuilder}.
+     */
+    public ShadowBuilder<T> statistics(ShadowStatistics statistics) {
+        return new ShadowBuilder<>(
+                random,
+                sampleRate,
+                executor,
+                maxInFlight,
+                resultEquivalence,
+                Preconditions.checkNotNull(statistics),
+                ticker,
+                proxyBackend);
+    }
+
+    /**
+     * @param ticker used to time calls. Defaults to {@link Ticker#systemTicker()}.
+     * @return a new copy of a {@link ShadowBuilder}.
+     */
+    public ShadowBuilder<T> ticker(Ticker ticker) {
+        return new ShadowBuilder<>(
+                random,
+                sampleRate,
+                executor,
+                maxInFlight,
+                resultEquivalence,
+                statistics,
+                Preconditions.checkNotNull(ticker),
+                proxyBackend);
+    }
+
+    /**
+     * @param proxyBackend how the proxy should be implemented. Defaults to {@link
+     *     ProxyBackend#GENERATED}.
+     * @return a new copy of a {@link ShadowBuilder}.
+     */
+    public ShadowBuilder<T> proxyBackend(ProxyBackend proxyBackend) {
+        return new ShadowBuilder<>(
+                random,
+                sampleRate,
+                executor,
+                maxInFlight,
+                resultEquivalence,
+                statistics,
+                ticker,
+                Preconditions.checkNotNull(proxyBackend));
+    }
+
+    /**
+     * Build a shadowing proxy.
+     *
+     * @param type the interface to wrap.
+     * @param primaryImplementation serves all calls.
+     * @param shadowImplementation is called for a sample of the calls, asynchronously.
+     * @return a wrapped implementation of type.
+     */
+    public T build(Class<T> type, T primaryImplementation, T shadowImplementation) {
+        Preconditions.checkArgument(type.isInterface(), "T must be an interface");
+        final ShadowRouter<T> router =
+                new ShadowRouter<>(
+                        type,
+                        Preconditions.checkNotNull(primaryImplementation),
+                        Preconditions.checkNotNull(shadowImplementation),
+                        random,
+                        sampleRate,
+                        executor != null ? executor : defaultExecutor(),
+                        maxInFlight,
+                        resultEquivalence,
+                        ticker,
+                        statistics != null ? statistics : new ShadowStatistics());
+        return ProxyFactory.create(type, router, proxyBackend, type.getClassLoader());
+    }
+
+    private Executor defaultExecutor() {
+        // The queue never holds more than maxInFlight tasks, see ShadowRouter.
+        final ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        maxInFlight,
+                        maxInFlight,
+                        1,
+                        TimeUnit.MINUTES,
+                        new LinkedBlockingQueue<>(),
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("canary-shadow-%d")
+                                .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
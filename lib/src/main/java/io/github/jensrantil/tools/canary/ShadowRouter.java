@@ -0,0 +1,227 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Equivalence;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Ticker;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ProxyRouter} that always routes to the primary implementation and replays a sample of
+ * the calls on the shadow implementation, asynchronously. The caller never waits for the shadow
+ * implementation: if too many shadow calls are in flight, or the executor rejects one, it is shed.
+ *
+ * <p>Calls of methods returning a {@link CompletionStage} are timed until the returned stage
+ * completes, and a shadow call that completes its stage exceptionally is a failure. A shadow call
+ * stays in flight until its stage completes.
+ *
+ * <p>To create a shadowing proxy, use {@link ShadowBuilder}.
+ *
+ * @param <T> the interface that the implementations are implementing.
+ */
+class ShadowRouter<T> extends ProxyRouter {
+    private final T primary;
+    private final T shadow;
+    private final RandomSource random;
+    private final double sampleRate;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final Equivalence<Object> resultEquivalence;
+    private final Ticker ticker;
+    // Indexed by ordinal. null for methods that are never shadowed.
+    private final ShadowStatistics.MethodStatistics[] statistics;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    ShadowRouter(
+            Class<T> type,
+            T primary,
+            T shadow,
+            RandomSource random,
+            double sampleRate,
+            Executor executor,
+            int maxInFlight,
+            Equivalence<Object> resultEquivalence,
+            Ticker ticker,
+            ShadowStatistics statistics) {
+        super(type);
+        this.primary = primary;
+        this.shadow = shadow;
+        this.random = random;
+        this.sampleRate = sampleRate;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.resultEquivalence = resultEquivalence;
+        this.ticker = ticker;
+
+        this.statistics = new ShadowStatistics.MethodStatistics[methods.size()];
+        for (int ordinal = 0; ordinal < this.statistics.length; ordinal++) {
+            final Method method = methods.get(ordinal);
+            // equals, hashCode and toString of the proxy aren't interesting to compare.
+            if (method.getDeclaringClass() != Object.class) {
+                this.statistics[ordinal] = statistics.forMethod(method);
+            }
+        }
+    }
+
+    /**
+     * A sampled call. Filled in by the calling thread, then handed over to the executor.
+     *
+     * <p>Mutable class.
+     */
+    private final class ShadowCall implements Runnable {
+        final int ordinal;
+        final Object[] args;
+        Object primaryResult;
+        Throwable primaryFailure;
+
+        ShadowCall(int ordinal, Object[] args) {
+            this.ordinal = ordinal;
+            this.args = args;
+        }
+
+        @Override
+        public void run() {
+            boolean pending = false;
+            try {
+                final ShadowStatistics.MethodStatistics statistics =
+                        ShadowRouter.this.statistics[ordinal];
+                Object result = null;
+                Throwable failure = null;
+                final long start = ticker.read();
+                try {
+                    result = methods.invoke(ordinal, shadow, args);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                if (result != null && methods.returnsCompletionStage(ordinal)) {
+                    // The call isn't done, and stays in flight, until the stage completes. Never
+                    // blocks. Cancellations are failures.
+                    pending = true;
+                    ((CompletionStage<?>) result)
+                            .whenComplete(
+                                    (value, exception) -> {
+                                        try {
+                                            record(statistics, start, exception);
+                                        } finally {
+                                            inFlight.decrementAndGet();
+                                        }
+                                    });
+                    return;
+                }
+                record(statistics, start, failure);
+
+                if (resultEquivalence != null && !methods.returnsCompletionStage(ordinal)) {
+                    statistics.comparisons.increment();
+                    if (!sameOutcome(result, failure)) {
+                        statistics.mismatches.increment();
+                    }
+                }
+            } finally {
+                if (!pending) {
+                    inFlight.decrementAndGet();
+                }
+            }
+        }
+
+        /** Records a shadow call that started at start, and failed unless failure is null. */
+        private void record(
+                ShadowStatistics.MethodStatistics statistics, long start, Throwable failure) {
+            statistics.shadowLatencies.record(ticker.read() - start);
+            statistics.shadowed.increment();
+            if (failure != null) {
+                statistics.shadowFailures.increment();
+            }
+        }
+
+        private boolean sameOutcome(Object result, Throwable failure) {
+            if (primaryFailure != null || failure != null) {
+                return primaryFailure != null
+                        && failure != null
+                        && primaryFailure.getClass() == failure.getClass();
+            }
+            return resultEquivalence.equivalent(primaryResult, result);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("primary", primary)
+                .add("shadow", shadow)
+                .add("sampleRate", sampleRate)
+                .add("maxInFlight", maxInFlight)
+                .add("inFlight", inFlight)
+                .toString();
+    }
+
+    @Override
+    public Object route(int ordinal, Object[] args) {
+        if (statistics[ordinal] != null && random.nextDouble() < sampleRate) {
+            return new ShadowCall(ordinal, args);
+        }
+        return primary;
+    }
+
+    @Override
+    public Object target(Object route) {
+        return primary;
+    }
+
+    @Override
+    public long begin(int ordinal, Object route) {
+        return route instanceof ShadowRouter.ShadowCall ? ticker.read() : 0;
+    }
+
+    @Override
+    public void success(int ordinal, Object route, long token, Object result) {
+        if (route instanceof ShadowRouter.ShadowCall) {
+            final ShadowCall call = (ShadowCall) route;
+            call.primaryResult = result;
+            submit(call, token);
+        }
+    }
+
+    @Override
+    public void failure(int ordinal, Object route, long token, Throwable exception) {
+        if (route instanceof ShadowRouter.ShadowCall) {
+            final ShadowCall call = (ShadowCall) route;
+            call.primaryFailure = exception;
+            submit(call, token);
+        }
+    }
+
+    private void submit(ShadowCall call, long primaryStart) {
+        final ShadowStatistics.MethodStatistics statistics = this.statistics[call.ordinal];
+        if (call.primaryResult != null && methods.returnsCompletionStage(call.ordinal)) {
+            // Timed until the stage completes, without holding back the shadow call.
+            ((CompletionStage<?>) call.primaryResult)
+                    .whenComplete(
+                            (value, exception) ->
+                                    statistics.primaryLatencies.record(
+                                            ticker.read() - primaryStart));
+        } else {
+            statistics.primaryLatencies.record(ticker.read() - primaryStart);
+        }
+
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            statistics.shed.increment();
+            return;
+        }
+        try {
+            executor.execute(call);
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            statistics.shed.increment();
+        }
+    }
+
+    @Override
+    boolean capturesResult(int ordinal) {
+        return resultEquivalence != null;
+    }
+}
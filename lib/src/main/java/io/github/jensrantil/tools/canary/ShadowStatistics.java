@@ -0,0 +1,105 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a proxy built by {@link ShadowBuilder} has seen, per method of the interface. Pass an
+ * instance to {@link ShadowBuilder#statistics(ShadowStatistics)} and read it at any time.
+ *
+ * <p>Thread-safe.
+ */
+public final class ShadowStatistics {
+    private final ConcurrentMap<Method, MethodStatistics> methods = new ConcurrentHashMap<>();
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("methods", methods).toString();
+    }
+
+    /**
+     * @param method a method of the interface that the proxy implements.
+     * @return the statistics of method. Empty if method hasn't been proxied.
+     */
+    public MethodStatistics forMethod(Method method) {
+        return methods.computeIfAbsent(method, m -> new MethodStatistics());
+    }
+
+    /** @return the statistics of every proxied method. */
+    public ImmutableMap<Method, MethodStatistics> methods() {
+        return ImmutableMap.copyOf(methods);
+    }
+
+    /** The statistics of a single method. Thread-safe. */
+    public static final class MethodStatistics {
+        final LatencyHistogram primaryLatencies = new LatencyHistogram();
+        final LatencyHistogram shadowLatencies = new LatencyHistogram();
+        final LongAdder shadowed = new LongAdder();
+        final LongAdder shed = new LongAdder();
+        final LongAdder shadowFailures = new LongAdder();
+        final LongAdder comparisons = new LongAdder();
+        final LongAdder mismatches = new LongAdder();
+
+        MethodStatistics() {}
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("primaryLatencies", primaryLatencies())
+                    .add("shadowLatencies", shadowLatencies())
+                    .add("shadowed", shadowed())
+                    .add("shed", shed())
+                    .add("shadowFailures", shadowFailures())
+                    .add("comparisons", comparisons())
+                    .add("mismatches", mismatches())
+                    .toString();
+        }
+
+        /** @return the durations of the primary calls that were sampled for shadowing. */
+        public LatencySnapshot primaryLatencies() {
+            return primaryLatencies.snapshot();
+        }
+
+        /** @return the durations of the shadow calls. */
+        public LatencySnapshot shadowLatencies() {
+            return shadowLatencies.snapshot();
+        }
+
+        /** @return the number of calls made to the shadow implementation. */
+        public long shadowed() {
+            return shadowed.sum();
+        }
+
+        /** @return the number of sampled calls that were dropped since too many were in flight. */
+        public long shed() {
+            return shed.sum();
+        }
+
+        /** @return the number of shadow calls that threw. */
+        public long shadowFailures() {
+            return shadowFailures.sum();
+        }
+
+        /** @return the number of shadow calls whose outcome was compared to the primary's. */
+        public long comparisons() {
+            return comparisons.sum();
+        }
+
+        /** @return the number of compared shadow calls whose outcome differed. */
+        public long mismatches() {
+            return mismatches.sum();
+        }
+
+        /** @return the ratio of compared calls that differed, or {@link Double#NaN} if none. */
+        public double mismatchRatio() {
+            // Mismatches before comparisons, a mismatch is counted after its comparison.
+            final long mismatches = mismatches();
+            final long comparisons = comparisons();
+            return comparisons == 0 ? Double.NaN : (double) mismatches / comparisons;
+        }
+    }
+}
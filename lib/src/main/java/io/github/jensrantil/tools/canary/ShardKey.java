@@ -0,0 +1,31 @@
+package io.github.jensrantil.tools.canary;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the parameter that {@link WeightedShardedBuilder} shards a method on. Methods without an
+ * annotated parameter shard on their first parameter, and methods without parameters are delegated
+ * to the default route, see {@link WeightedShardedBuilder#defaultRoute(Object)}.
+ *
+ * <pre>{@code
+ * interface OrderService {
+ *     Order get(@ShardKey("customer.id") OrderRequest request);
+ * }
+ * }</pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface ShardKey {
+    /**
+     * A dot-separated path to the key within the parameter. Every segment names a public
+     * no-argument method ({@code id()}, {@code getId()} or {@code isId()}) or a public field
+     * ({@code id}). The parameter itself is the key if empty, which is the default. A {@code null}
+     * value along the path makes the call fail with a {@link NullPointerException}.
+     */
+    String value() default "";
+}
@@ -0,0 +1,88 @@
+package io.github.jensrantil.tools.canary;
+
+import java.util.UUID;
+
+/**
+ * Allocation-free 64 bit hashes of shard keys. Keys are consumed eight bytes at a time using the
+ * block mixing and the finalizer ({@code fmix64}) of MurmurHash3 x64, by Austin Appleby, in a single
+ * lane. That's plenty for picking a bucket and, contrary to {@link String#hashCode()}, sequential
+ * keys end up far apart.
+ */
+final class ShardKeyHashing {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private ShardKeyHashing() {
+        // utility class.
+    }
+
+    static long hashLong(long seed, long key) {
+        return fmix64(seed ^ fmix64(key));
+    }
+
+    static long hashUuid(long seed, UUID key) {
+        long h = mixBlock(seed, key.getMostSignificantBits());
+        h = mixBlock(h, key.getLeastSignificantBits());
+        return fmix64(h ^ 16);
+    }
+
+    static long hashChars(long seed, CharSequence key) {
+        final int length = key.length();
+        long h = seed;
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            h =
+                    mixBlock(
+                            h,
+                            key.charAt(i)
+                                    | (long) key.charAt(i + 1) << 16
+                                    | (long) key.charAt(i + 2) << 32
+                                    | (long) key.charAt(i + 3) << 48);
+        }
+        long tail = 0;
+        for (int shift = 0; i < length; i++, shift += 16) {
+            tail |= (long) key.charAt(i) << shift;
+        }
+        h ^= mixK(tail);
+        return fmix64(h ^ (2L * length));
+    }
+
+    static long hashBytes(long seed, byte[] key) {
+        long h = seed;
+        int i = 0;
+        for (; i + 8 <= key.length; i += 8) {
+            long block = 0;
+            for (int b = 7; b >= 0; b--) {
+                block = block << 8 | (key[i + b] & 0xFFL);
+            }
+            h = mixBlock(h, block);
+        }
+        long tail = 0;
+        for (int shift = 0; i < key.length; i++, shift += 8) {
+            tail |= (key[i] & 0xFFL) << shift;
+        }
+        h ^= mixK(tail);
+        return fmix64(h ^ key.length);
+    }
+
+    private static long mixBlock(long h, long block) {
+        h ^= mixK(block);
+        h = Long.rotateLeft(h, 27);
+        return h * 5 + 0x52dce729;
+    }
+
+    private static long mixK(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        return k * C2;
+    }
+
+    static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,163 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Where the shard key of every method of an interface is, resolved once from {@link ShardKey}
+ * annotations and indexed by the method ordinals of {@link ProxyMethods}. The key of a method is
+ *
+ * <ul>
+ *   <li>the parameter annotated with {@link ShardKey}, if any, else
+ *   <li>the first parameter, if any.
+ * </ul>
+ *
+ * Methods declared by {@link Object} and methods without parameters have no key.
+ *
+ * <p>Immutable class.
+ */
+final class ShardKeyTable {
+    static final int NO_KEY = -1;
+
+    private static final MethodType EXTRACTOR_TYPE =
+            MethodType.methodType(Object.class, Object.class);
+
+    // All indexed by ordinal.
+    private final int[] parameters;
+    // null if the parameter itself is the key.
+    private final MethodHandle[] extractors;
+    // null for methods without key.
+    private final Class<?>[] keyTypes;
+
+    ShardKeyTable(ProxyMethods methods) {
+        this.parameters = new int[methods.size()];
+        this.extractors = new MethodHandle[methods.size()];
+        this.keyTypes = new Class<?>[methods.size()];
+
+        for (int ordinal = 0; ordinal < methods.size(); ordinal++) {
+            final Method method = methods.get(ordinal);
+            parameters[ordinal] = NO_KEY;
+            if (method.getDeclaringClass() == Object.class || method.getParameterCount() == 0) {
+                continue;
+            }
+
+            int parameter = 0;
+            String path = "";
+            final Annotation[][] annotations = method.getParameterAnnotations();
+            boolean annotated = false;
+            for (int i = 0; i < annotations.length; i++) {
+                for (Annotation annotation : annotations[i]) {
+                    if (annotation instanceof ShardKey) {
+                        Preconditions.checkArgument(
+                                !annotated, "%s has more than one @ShardKey parameter.", method);
+                        annotated = true;
+                        parameter = i;
+                        path = ((ShardKey) annotation).value();
+                    }
+                }
+            }
+
+            parameters[ordinal] = parameter;
+            Class<?> keyType = method.getParameterTypes()[parameter];
+            if (!path.isEmpty()) {
+                MethodHandle extractor = MethodHandles.identity(Object.class);
+                for (String segment : Splitter.on('.').split(path)) {
+                    final MethodHandle accessor = accessor(method, keyType, segment);
+                    keyType = accessor.type().returnType();
+                    extractor =
+                            MethodHandles.filterReturnValue(
+                                    extractor, accessor.asType(EXTRACTOR_TYPE));
+                }
+                extractors[ordinal] = extractor;
+            }
+            keyTypes[ordinal] = keyType;
+        }
+    }
+
+    private static MethodHandle accessor(Method method, Class<?> type, String segment) {
+        final String capitalized =
+                segment.isEmpty()
+                        ? segment
+                        : Character.toUpperCase(segment.charAt(0)) + segment.substring(1);
+        for (String name : new String[] {segment, "get" + capitalized, "is" + capitalized}) {
+            final Method getter;
+            try {
+                getter = type.getMethod(name);
+            } catch (NoSuchMethodException e) {
+                continue;
+            }
+            if (!Modifier.isStatic(getter.getModifiers()) && getter.getReturnType() != void.class) {
+                try {
+                    return lookup(getter.getDeclaringClass()).unreflect(getter);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException(
+                            "Can't access " + getter + " of the @ShardKey of " + method, e);
+                }
+            }
+        }
+        try {
+            final Field field = type.getField(segment);
+            if (!Modifier.isStatic(field.getModifiers())) {
+                return lookup(field.getDeclaringClass()).unreflectGetter(field);
+            }
+        } catch (NoSuchFieldException e) {
+            // Handled below.
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(
+                    "Can't access " + segment + " of the @ShardKey of " + method, e);
+        }
+        throw new IllegalArgumentException(
+                String.format(
+                        "%s has no public method or field named %s, used by the @ShardKey of %s.",
+                        type, segment, method));
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> type) {
+        try {
+            return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        } catch (IllegalAccessException | RuntimeException e) {
+            // For example if type is in a named module that isn't open to us. Public members of
+            // public classes are still accessible.
+            return MethodHandles.publicLookup();
+        }
+    }
+
+    /** @return the index of the parameter the key is read from, or {@link #NO_KEY}. */
+    int parameter(int ordinal) {
+        return parameters[ordinal];
+    }
+
+    /** @return whether the key is the parameter itself, rather than something read from it. */
+    boolean isParameter(int ordinal) {
+        return parameters[ordinal] != NO_KEY && extractors[ordinal] == null;
+    }
+
+    /** @return the static type of the key, or {@code null} if the method has no key. */
+    Class<?> keyType(int ordinal) {
+        return keyTypes[ordinal];
+    }
+
+    /** @return the key of a call. The method must have a key. */
+    Object key(int ordinal, Object[] args) {
+        final Object parameter = args[parameters[ordinal]];
+        final MethodHandle extractor = extractors[ordinal];
+        if (extractor == null) {
+            return parameter;
+        }
+        try {
+            return (Object) extractor.invokeExact(parameter);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // A getter threw a checked exception.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Preconditions;
+import com.google.common.math.IntMath;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks delegates in a fixed, interleaved order where every implementation is picked exactly as
+ * often as its weight. The order is the one of nginx's smooth weighted round-robin, which spreads
+ * out the picks of every implementation as evenly as possible. For example, weights {@code a=5,
+ * b=1, c=1} gives the order {@code a a b a c a a}.
+ *
+ * <p>The order is computed once. Picking is a lock-free increment of a shared sequence followed by
+ * an array lookup.
+ */
+class SmoothWeightedRoundRobinSelector<T> implements Delegator.DelegateSelector {
+    /** The maximum length of a schedule, to bound memory usage. */
+    static final int MAX_SCHEDULE_LENGTH = 1 << 20;
+
+    private final Object[] schedule;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public SmoothWeightedRoundRobinSelector(List<WeightedImplementation<T>> implementations) {
+        Preconditions.checkArgument(
+                !implementations.isEmpty(), "at least one implementation is needed");
+
+        // Weights 2 and 4 gives the same order as 1 and 2, only longer.
+        int gcd = 0;
+        for (WeightedImplementation<T> implementation : implementations) {
+            gcd = IntMath.gcd(gcd, implementation.weight);
+        }
+        final int n = implementations.size();
+        final int[] weights = new int[n];
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            weights[i] = implementations.get(i).weight / gcd;
+            total += weights[i];
+        }
+        Preconditions.checkArgument(
+                total <= MAX_SCHEDULE_LENGTH,
+                "sum of weights divided by their greatest common divisor must be at most %s, was %s",
+                MAX_SCHEDULE_LENGTH,
+                total);
+
+        this.schedule = new Object[(int) total];
+        final long[] current = new long[n];
+        for (int position = 0; position < schedule.length; position++) {
+            int best = 0;
+            for (int i = 0; i < n; i++) {
+                current[i] += weights[i];
+                if (current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            schedule[position] = implementations.get(best).implementation;
+        }
+    }
+
+    @Override
+    public T select(Method method, Object[] args) {
+        final long next = sequence.getAndIncrement();
+        return (T) schedule[(int) Math.floorMod(next, (long) schedule.length)];
+    }
+
+    @Override
+    public boolean usesArguments() {
+        return false;
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.math.IntMath;
+import java.time.Clock;
+import java.time.Duration;
+
+/**
+ * A {@link FixedWindowObserver} split into stripes, for when a lot of threads register outcomes at
+ * the same time. Every stripe is a {@link FixedWindowObserver} of its own, with its own slots and
+ * roll state, and a thread always registers in the stripe picked by a hash of its thread id. This
+ * way threads on different cores rarely write to the same cache lines. The stripes are summed
+ * when reading, which reads the ticker once and every stripe's current slot.
+ *
+ * <p>Since every stripe rolls on its own, a slot roll can drop a few more registrations than for
+ * a single {@link FixedWindowObserver}, one per stripe at most.
+ */
+public class StripedWindowObserver implements Observer {
+    private final Ticker ticker;
+    private final FixedWindowObserver[] stripes;
+    private final int mask;
+
+    /** Creates a stripe per available processor, rounded up to a power of two. */
+    public StripedWindowObserver(Clock clock, int slots, Duration slotDuration) {
+        this(new ClockTicker(clock), slots, slotDuration);
+    }
+
+    /** Creates a stripe per available processor, rounded up to a power of two. */
+    public StripedWindowObserver(Ticker ticker, int slots, Duration slotDuration) {
+        this(ticker, Runtime.getRuntime().availableProcessors(), slots, slotDuration);
+    }
+
+    /**
+     * @param stripes the number of stripes. Rounded up to a power of two.
+     */
+    public StripedWindowObserver(Clock clock, int stripes, int slots, Duration slotDuration) {
+        this(new ClockTicker(clock), stripes, slots, slotDuration);
+    }
+
+    /**
+     * @param stripes the number of stripes. Rounded up to a power of two.
+     */
+    public StripedWindowObserver(Ticker ticker, int stripes, int slots, Duration slotDuration) {
+        Preconditions.checkArgument(stripes > 0, "stripes must be strictly positive");
+        Preconditions.checkArgument(stripes <= 1 << 16, "stripes must be at most %s", 1 << 16);
+
+        this.ticker = ticker;
+        final int size = IntMath.ceilingPowerOfTwo(stripes);
+        this.stripes = new FixedWindowObserver[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new FixedWindowObserver(ticker, slots, slotDuration);
+        }
+        this.mask = size - 1;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("summary", getSummary())
+                .add("stripes", stripes.length)
+                .toString();
+    }
+
+    @Override
+    public void registerFailure() {
+        stripe().registerFailure();
+    }
+
+    @Override
+    public void registerSuccess() {
+        stripe().registerSuccess();
+    }
+
+    private FixedWindowObserver stripe() {
+        // Thread ids are sequential, mix them so that threads created together spread out.
+        final long mixed = ShardKeyHashing.fmix64(Thread.currentThread().getId());
+        return stripes[(int) mixed & mask];
+    }
+
+    @Override
+    public Summary getSummary() {
+        final long now = ticker.read();
+        long successes = 0;
+        long total = 0;
+        for (FixedWindowObserver stripe : stripes) {
+            stripe.moveSlotIfNecessary(now);
+            successes += stripe.successes();
+            total += stripe.total();
+        }
+        return new Summary(Math.min(successes, total), total);
+    }
+
+    /** Like {@link #getSummary()}, but without allocating. */
+    @Override
+    public double successRatio() {
+        final long now = ticker.read();
+        long successes = 0;
+        long total = 0;
+        for (FixedWindowObserver stripe : stripes) {
+            stripe.moveSlotIfNecessary(now);
+            successes += stripe.successes();
+            total += stripe.total();
+        }
+        if (total == 0) {
+            return Double.NaN;
+        }
+        // A stripe rolling between its two reads may leave more successes than total.
+        return Math.min(1, (double) successes / total);
+    }
+
+    /** @return the number of stripes. */
+    int stripes() {
+        return stripes.length;
+    }
+}
@@ -1,34 +1,88 @@
 package io.github.jensrantil.tools.canary;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import java.util.Random;
 
 /**
  * {@link WeightedRoundRobinBuilder} constructs a Java proxy that implements a Java interface shared
  * between different implementations. The proxy delegates to downstream implementations randomly
- * using weights. This class is useful if you'd like to try out a new Java implementation for a
- * subset of calls.
+ * using weights (or in a fixed order, see {@link Mode#SMOOTH}). This class is useful if you'd like
+ * to try out a new Java implementation for a subset of calls.
  *
  * @param <T> the Java interface that the builder wraps.
  */
 public class WeightedRoundRobinBuilder<T> {
-    private final Random random;
+    private final RandomSource random;
     private ImmutableList<WeightedImplementation<T>> weightedImplementations;
+    private final ProxyBackend proxyBackend;
+    private final Mode mode;
+
+    /** How implementations are picked. */
+    public enum Mode {
+        /** Every call picks an implementation randomly, weighted by the weights. */
+        RANDOM,
+
+        /**
+         * Implementations are picked in a fixed order where every implementation is picked exactly
+         * as many times as its weight, evenly spread out. Unlike {@link #RANDOM}, the actual split
+         * between implementations never drifts from the weights, also at low call rates. The sum of
+         * the weights divided by their greatest common divisor must be at most 2^20.
+         */
+        SMOOTH,
+    }
 
     public WeightedRoundRobinBuilder() {
-        this(new Random(), ImmutableList.of());
+        this(RandomSource.threadLocal(), ImmutableList.of(), ProxyBackend.GENERATED, Mode.RANDOM);
     }
 
     private WeightedRoundRobinBuilder(
-            Random random, ImmutableList<WeightedImplementation<T>> weightedImplementations) {
+            RandomSource random,
+            ImmutableList<WeightedImplementation<T>> weightedImplementations,
+            ProxyBackend proxyBackend,
+            Mode mode) {
         this.random = random;
         this.weightedImplementations = weightedImplementations;
+        this.proxyBackend = proxyBackend;
+        this.mode = mode;
     }
 
     @VisibleForTesting
     public WeightedRoundRobinBuilder<T> random(Random random) {
-        return new WeightedRoundRobinBuilder(random, this.weightedImplementations);
+        return randomSource(RandomSource.of(random));
+    }
+
+    /**
+     * @param random the source of randomness used to pick implementations. Defaults to {@link
+     *     RandomSource#threadLocal()}.
+     * @return a new copy of a {@link WeightedRoundRobinBuilder}.
+     */
+    public WeightedRoundRobinBuilder<T> randomSource(RandomSource random) {
+        return new WeightedRoundRobinBuilder(
+                Preconditions.checkNotNull(random),
+                this.weightedImplementations,
+                proxyBackend,
+                mode);
+    }
+
+    /**
+     * @param proxyBackend how the proxy should be implemented. Defaults to {@link
+     *     ProxyBackend#GENERATED}.
+     * @return a new copy of a {@link WeightedRoundRobinBuilder}.
+     */
+    public WeightedRoundRobinBuilder<T> proxyBackend(ProxyBackend proxyBackend) {
+        return new WeightedRoundRobinBuilder(
+                random, weightedImplementations, Preconditions.checkNotNull(proxyBackend), mode);
+    }
+
+    /**
+     * @param mode how implementations are picked. Defaults to {@link Mode#RANDOM}.
+     * @return a new copy of a {@link WeightedRoundRobinBuilder}.
+     */
+    public WeightedRoundRobinBuilder<T> mode(Mode mode) {
+        return new WeightedRoundRobinBuilder(
+                random, weightedImplementations, proxyBackend, Preconditions.checkNotNull(mode));
     }
 
     public WeightedRoundRobinBuilder<T> add(int weight, T implementation) {
@@ -39,12 +93,20 @@ public class WeightedRoundRobinBuilder<T> {
                 random,
                 builder.addAll(weightedImplementations)
                         .add(new WeightedImplementation<T>(weight, implementation))
-                        .build());
+                        .build(),
+                proxyBackend,
+                mode);
     }
 
     public T build(Class<T> type) {
-        final WeightedRoundRobinSelector<T> selector =
-                new WeightedRoundRobinSelector<>(random, weightedImplementations);
-        return Delegator.build(type, selector);
+        final Delegator.DelegateSelector<T> selector;
+        switch (mode) {
+            case SMOOTH:
+                selector = new SmoothWeightedRoundRobinSelector<>(weightedImplementations);
+                break;
+            default:
+                selector = new WeightedRoundRobinSelector<>(random, weightedImplementations);
+        }
+        return Delegator.build(type, selector, proxyBackend);
     }
 }
@@ -1,39 +1,39 @@
 package io.github.jensrantil.tools.canary;
 
-import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableSortedMap;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
 import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Random;
-import java.util.TreeMap;
 
+/**
+ * Picks a delegate randomly, weighted by its weight. Picking is done in constant time, without
+ * allocations, regardless of the number of implementations. See {@link AliasTable}.
+ */
 class WeightedRoundRobinSelector<T> implements Delegator.DelegateSelector {
-    private final Random random;
-    private final int total;
-    private final ImmutableSortedMap<Integer, T> indexByWeightInterval;
+    private final RandomSource random;
+    private final AliasTable aliasTable;
+    private final Object[] implementations;
 
     public WeightedRoundRobinSelector(
             Random random, List<WeightedImplementation<T>> implementations) {
+        this(RandomSource.of(random), implementations);
+    }
 
-        final TreeMap<Integer, T> indexByWeightInterval = Maps.newTreeMap();
-        int total = 0;
-        for (WeightedImplementation<T> implementation : implementations) {
-            // Without this precondition, we risk overwriting alternatives in the map.
-            Preconditions.checkState(implementation.weight > 0);
-
-            indexByWeightInterval.put(total + implementation.weight, implementation.implementation);
-            total += implementation.weight;
-        }
+    public WeightedRoundRobinSelector(
+            RandomSource random, List<WeightedImplementation<T>> implementations) {
 
-        this.indexByWeightInterval = ImmutableSortedMap.copyOf(indexByWeightInterval);
+        this.aliasTable = new AliasTable(Lists.transform(implementations, i -> i.weight));
+        this.implementations = Lists.transform(implementations, i -> i.implementation).toArray();
         this.random = random;
-        this.total = total;
     }
 
     @Override
     public T select(Method method, Object[] args) {
-        final int randomValue = random.nextInt(total);
-        return indexByWeightInterval.tailMap(randomValue, false).firstEntry().getValue();
+        return (T) implementations[aliasTable.next(random)];
+    }
+
+    @Override
+    public boolean usesArguments() {
+        return false;
     }
 }
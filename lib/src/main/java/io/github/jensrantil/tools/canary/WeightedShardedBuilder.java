@@ -1,35 +1,179 @@
 package io.github.jensrantil.tools.canary;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.concurrent.Executor;
 
 /**
  * {@link WeightedShardedBuilder} constructs a Java proxy that implements a Java interface shared
  * between different implementations. The proxy delegates to downstream implementations using {@link
- * Object#hashCode()} of the first method argument, weighted by the downstream implementation. This
- * class is useful if you would like to try out a new Java implementation for a subset of, for
- * example, users.
+ * Object#hashCode()} (or a stronger hash, see {@link KeyType}) of the first method argument (or
+ * the one annotated with {@link ShardKey}), weighted by the downstream implementation. This class
+ * is useful if you would like to try out a new Java implementation for a subset of, for example,
+ * users.
  *
  * @param <T> the Java interface that the builder wraps.
  */
 public class WeightedShardedBuilder<T> {
     private final ImmutableList<WeightedImplementation<T>> weightedImplementations;
     private final WeightedShardedSelector.ParameterSelector paramSelector;
+    private final ProxyBackend proxyBackend;
+    private final KeyType keyType;
+    private final T defaultRoute;
+    // null unless bulk calls are split.
+    private final Executor bulkExecutor;
+
+    /**
+     * How the selected parameter is hashed. All key types but {@link #HASH_CODE} use a strong 64
+     * bit hash of the key itself and, where the key is a primitive {@code long} or {@code int}
+     * parameter, don't box it. Changing the key type moves keys between implementations.
+     */
+    public enum KeyType {
+        /** {@link Object#hashCode()} of the key. Works for any key, but only has 32 bits. */
+        HASH_CODE,
+
+        /** The key is a {@code long} (or a {@link Long}). */
+        LONG,
+
+        /** The key is an {@code int} (or an {@link Integer}). */
+        INT,
+
+        /** The key is a {@link CharSequence}, hashed by its characters. */
+        CHAR_SEQUENCE,
+
+        /** The key is a {@link java.util.UUID}. */
+        UUID,
+
+        /** The key is a {@code byte[]}, hashed by its content. */
+        BYTES,
+    }
 
     public WeightedShardedBuilder setParamSelector(
             WeightedShardedSelector.ParameterSelector paramSelector) {
-        return new WeightedShardedBuilder(weightedImplementations, paramSelector);
+        return new WeightedShardedBuilder(
+                weightedImplementations,
+                paramSelector,
+                proxyBackend,
+                keyType,
+                defaultRoute,
+                bulkExecutor);
     }
 
     public WeightedShardedBuilder() {
-        this(ImmutableList.of(), WeightedShardedSelector.FIRST_PARAM_SELECTOR);
+        this(
+                ImmutableList.of(),
+                WeightedShardedSelector.FIRST_PARAM_SELECTOR,
+                ProxyBackend.GENERATED,
+                KeyType.HASH_CODE,
+                null,
+                null);
     }
 
     private WeightedShardedBuilder(
             ImmutableList<WeightedImplementation<T>> weightedImplementations,
-            WeightedShardedSelector.ParameterSelector paramSelector) {
+            WeightedShardedSelector.ParameterSelector paramSelector,
+            ProxyBackend proxyBackend,
+            KeyType keyType,
+            T defaultRoute,
+            Executor bulkExecutor) {
         this.weightedImplementations = weightedImplementations;
         this.paramSelector = paramSelector;
+        this.proxyBackend = proxyBackend;
+        this.keyType = keyType;
+        this.defaultRoute = defaultRoute;
+        this.bulkExecutor = bulkExecutor;
+    }
+
+    /**
+     * @param proxyBackend how the proxy should be implemented. Defaults to {@link
+     *     ProxyBackend#GENERATED}.
+     * @return a new copy of a {@link WeightedShardedBuilder}.
+     */
+    public WeightedShardedBuilder<T> proxyBackend(ProxyBackend proxyBackend) {
+        return new WeightedShardedBuilder(
+                weightedImplementations,
+                paramSelector,
+                Preconditions.checkNotNull(proxyBackend),
+                keyType,
+                defaultRoute,
+                bulkExecutor);
+    }
+
+    /**
+     * @param keyType how the selected parameter is hashed. Defaults to {@link KeyType#HASH_CODE}.
+     * @return a new copy of a {@link WeightedShardedBuilder}.
+     */
+    public WeightedShardedBuilder<T> keyType(KeyType keyType) {
+        return new WeightedShardedBuilder(
+                weightedImplementations,
+                paramSelector,
+                proxyBackend,
+                Preconditions.checkNotNull(keyType),
+                defaultRoute,
+                bulkExecutor);
+    }
+
+    /**
+     * By default, every method of the interface must have a parameter to shard on, see {@link
+     * ShardKey}. Calls to methods without any parameter are instead delegated to implementation if
+     * this is set. So are {@link Object#toString()} and friends, which otherwise go to the first
+     * added implementation.
+     *
+     * @param implementation where calls without a shard key are delegated.
+     * @return a new copy of a {@link WeightedShardedBuilder}.
+     */
+    public WeightedShardedBuilder<T> defaultRoute(T implementation) {
+        return new WeightedShardedBuilder(
+                weightedImplementations,
+                paramSelector,
+                proxyBackend,
+                keyType,
+                Preconditions.checkNotNull(implementation),
+                bulkExecutor);
+    }
+
+    /**
+     * Split bulk calls per implementation, one after the other on the calling thread. See {@link
+     * #bulk(Executor)}.
+     *
+     * @return a new copy of a {@link WeightedShardedBuilder}.
+     */
+    public WeightedShardedBuilder<T> bulk() {
+        return bulk(MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Split bulk calls per implementation. A bulk method has a shard key that is a {@link
+     * java.util.List}, {@link java.util.Set} or {@link java.util.Collection} of keys and returns
+     * nothing, a {@link java.util.Map} or one of those. Every key is routed like a single key would
+     * be, so every implementation is called once with the keys that map to it and the results are
+     * merged. A {@link java.util.List} result is put back in the order of the keys if every
+     * implementation returns one element per key. Calls whose keys all map to the same
+     * implementation aren't split. Other methods are routed as usual.
+     *
+     * <pre>{@code
+     * interface UserService {
+     *     Map<UserId, User> getUsers(List<UserId> ids);
+     * }
+     * }</pre>
+     *
+     * <p>Without bulk calls split, such a method is routed by the hash of the collection. A {@link
+     * ShardKey} path can't be used for bulk methods; the elements are the keys.
+     *
+     * @param executor calls all implementations but one, which is called by the calling thread.
+     *     If it rejects a call, the calling thread makes it.
+     * @return a new copy of a {@link WeightedShardedBuilder}.
+     */
+    public WeightedShardedBuilder<T> bulk(Executor executor) {
+        return new WeightedShardedBuilder(
+                weightedImplementations,
+                paramSelector,
+                proxyBackend,
+                keyType,
+                defaultRoute,
+                Preconditions.checkNotNull(executor));
     }
 
     public WeightedShardedBuilder<T> add(int weight, T implementation) {
@@ -40,7 +184,11 @@ public class WeightedShardedBuilder<T> {
                 builder.addAll(weightedImplementations)
                         .add(new WeightedImplementation<T>(weight, implementation))
                         .build(),
-                paramSelector);
+                paramSelector,
+                proxyBackend,
+                keyType,
+                defaultRoute,
+                bulkExecutor);
     }
 
     /**
@@ -57,7 +205,14 @@ public class WeightedShardedBuilder<T> {
      */
     public T build(Class<T> type, HashCode seed) {
         final WeightedShardedSelector<T> selector =
-                new WeightedShardedSelector(type, seed, paramSelector, weightedImplementations);
-        return Delegator.build(type, selector);
+                new WeightedShardedSelector(
+                        type,
+                        seed,
+                        paramSelector,
+                        keyType,
+                        defaultRoute,
+                        bulkExecutor,
+                        weightedImplementations);
+        return Delegator.build(type, selector, proxyBackend);
     }
 }
@@ -1,20 +1,50 @@
 package io.github.jensrantil.tools.canary;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSortedMap;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
+import io.github.jensrantil.tools.canary.WeightedShardedBuilder.KeyType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 
+/**
+ * Picks a delegate by hashing a parameter of every call, weighted by the weight of the
+ * implementation. A given parameter value always maps to the same delegate. By default, the
+ * parameter is found using a {@link ShardKeyTable} and methods without one go to a default route.
+ *
+ * <p>Picking does not allocate. For {@link KeyType#HASH_CODE}, the mapping is identical to {@code
+ * Hashing.consistentHash(Hashing.combineOrdered(seed, HashCode.fromInt(parameter.hashCode())),
+ * total)}, which earlier versions used, so upgrading doesn't move keys between implementations. The
+ * other key types hash the key itself to 64 bits using {@link ShardKeyHashing}.
+ *
+ * <p>Optionally, methods whose key is a collection of keys are split per implementation by a
+ * {@link BulkSharder}, which maps every key like a single key.
+ */
 class WeightedShardedSelector<T> implements Delegator.DelegateSelector {
+    /** Sum of weights up to which buckets are looked up in a flat array. */
+    private static final int MAX_FLAT_BUCKETS = 1 << 16;
+
     private final int total;
-    private final ImmutableSortedMap<Integer, T> indexByWeightInterval;
-    private final HashCode seed;
+    private final Object[] implementations;
+    // Either implementationIndexByBucket or upperBounds is non-null.
+    private final int[] implementationIndexByBucket;
+    private final int[] upperBounds;
+    private final int seedMix;
+    private final long seed64;
     private final ParameterSelector paramSelector;
+    private final KeyType keyType;
+    private final ProxyMethods methods;
+    // Only used with FIRST_PARAM_SELECTOR, which it replaces.
+    private final ShardKeyTable keys;
+    private final Object defaultRoute;
+    // Indexed by ordinal. null unless bulk methods are split, see BulkSharder.
+    private final boolean[] bulk;
+    private final Object bulkProxy;
 
     public static final ParameterSelector FIRST_PARAM_SELECTOR = new FirstParamSelector();
 
@@ -29,36 +59,288 @@ class WeightedShardedSelector<T> implements Delegator.DelegateSelector {
             HashCode seed,
             ParameterSelector paramSelector,
             List<WeightedImplementation<T>> implementations) {
+        this(type, seed, paramSelector, KeyType.HASH_CODE, implementations);
+    }
+
+    public WeightedShardedSelector(
+            Class<T> type,
+            HashCode seed,
+            ParameterSelector paramSelector,
+            KeyType keyType,
+            List<WeightedImplementation<T>> implementations) {
+        this(type, seed, paramSelector, keyType, null, implementations);
+    }
 
-        final TreeMap<Integer, T> indexByWeightInterval = Maps.newTreeMap();
-        int total = 0;
-        for (WeightedImplementation<T> implementation : implementations) {
-            // Without this precondition, we risk overwriting alternatives in the map.
-            Preconditions.checkState(implementation.weight > 0);
+    /**
+     * @param defaultRoute where methods without a shard key are routed. If {@code null}, all
+     *     methods of type must have a key.
+     */
+    public WeightedShardedSelector(
+            Class<T> type,
+            HashCode seed,
+            ParameterSelector paramSelector,
+            KeyType keyType,
+            T defaultRoute,
+            List<WeightedImplementation<T>> implementations) {
+        this(type, seed, paramSelector, keyType, defaultRoute, null, implementations);
+    }
 
-            indexByWeightInterval.put(total + implementation.weight, implementation.implementation);
-            total += implementation.weight;
+    /**
+     * @param bulkExecutor if non-null, calls to methods whose key is a collection of keys are split
+     *     per implementation, see {@link BulkSharder}. Sub-batches are called on bulkExecutor.
+     */
+    public WeightedShardedSelector(
+            Class<T> type,
+            HashCode seed,
+            ParameterSelector paramSelector,
+            KeyType keyType,
+            T defaultRoute,
+            Executor bulkExecutor,
+            List<WeightedImplementation<T>> implementations) {
+        Preconditions.checkArgument(
+                !implementations.isEmpty(), "at least one implementation is needed");
+        Preconditions.checkArgument(
+                seed.bits() == Integer.SIZE,
+                "seed must be a 32 bit hash code, was %s",
+                seed.bits());
+
+        final int[] upperBounds = new int[implementations.size()];
+        long total = 0;
+        for (int i = 0; i < implementations.size(); i++) {
+            // Without this precondition, we risk overwriting alternatives.
+            Preconditions.checkState(implementations.get(i).weight > 0);
+
+            total += implementations.get(i).weight;
+            Preconditions.checkArgument(total <= Integer.MAX_VALUE, "sum of weights is too large");
+            upperBounds[i] = (int) total;
+        }
+        this.total = (int) total;
+        this.implementations = Lists.transform(implementations, i -> i.implementation).toArray();
+
+        if (total <= MAX_FLAT_BUCKETS) {
+            this.implementationIndexByBucket = new int[this.total];
+            int implementation = 0;
+            for (int bucket = 0; bucket < this.total; bucket++) {
+                if (bucket >= upperBounds[implementation]) {
+                    implementation++;
+                }
+                this.implementationIndexByBucket[bucket] = implementation;
+            }
+            this.upperBounds = null;
+        } else {
+            this.implementationIndexByBucket = null;
+            this.upperBounds = upperBounds;
         }
-        this.indexByWeightInterval = ImmutableSortedMap.copyOf(indexByWeightInterval);
 
-        this.seed = seed;
-        this.total = total;
+        this.seedMix = seedMix(seed);
+        this.seed64 = ShardKeyHashing.fmix64(seed.padToLong());
         this.paramSelector = paramSelector;
+        this.keyType = Preconditions.checkNotNull(keyType);
+        this.methods = ProxyMethods.of(type);
+        // Methods declared by Object never have a key and need to go somewhere.
+        this.defaultRoute = defaultRoute != null ? defaultRoute : this.implementations[0];
+
+        if (paramSelector != FIRST_PARAM_SELECTOR) {
+            Preconditions.checkArgument(
+                    bulkExecutor == null, "bulk calls need the default parameter selector");
+            this.keys = null;
+            this.bulk = null;
+            this.bulkProxy = null;
+            this.paramSelector.validateType(type);
+            return;
+        }
+
+        this.keys = new ShardKeyTable(methods);
+        if (bulkExecutor != null) {
+            this.bulk = new boolean[methods.size()];
+            for (int ordinal = 0; ordinal < methods.size(); ordinal++) {
+                bulk[ordinal] = BulkSharder.isBulk(methods.get(ordinal), keys, ordinal);
+            }
+            this.bulkProxy =
+                    Proxy.newProxyInstance(
+                            type.getClassLoader(),
+                            new Class<?>[] {type},
+                            new BulkSharder(this, methods, keys, bulkExecutor));
+        } else {
+            this.bulk = null;
+            this.bulkProxy = null;
+        }
+        for (int ordinal = 0; ordinal < methods.size(); ordinal++) {
+            final Method method = methods.get(ordinal);
+            if (bulk != null && bulk[ordinal]) {
+                final Class<?> elementType = BulkSharder.elementType(method, keys, ordinal);
+                Preconditions.checkArgument(
+                        elementType == null || accepts(keyType, elementType),
+                        "The shard keys of %s are %s, not %s keys.",
+                        method,
+                        elementType,
+                        keyType);
+            } else if (keys.parameter(ordinal) == ShardKeyTable.NO_KEY) {
+                Preconditions.checkArgument(
+                        defaultRoute != null || method.getDeclaringClass() == Object.class,
+                        "Type %s has method %s with no argument. Must have a single argument as the first argument (or the one annotated with @ShardKey) is used to know which implementation to delegate to, or a default route.",
+                        type,
+                        method);
+            } else {
+                Preconditions.checkArgument(
+                        accepts(keyType, keys.keyType(ordinal)),
+                        "The shard key of %s is a %s, not a %s key.",
+                        method,
+                        keys.keyType(ordinal),
+                        keyType);
+            }
+        }
+    }
 
-        this.paramSelector.validateType(type);
+    private static boolean accepts(KeyType keyType, Class<?> parameterType) {
+        switch (keyType) {
+            case LONG:
+                return parameterType == long.class || parameterType == Long.class;
+            case INT:
+                return parameterType == int.class || parameterType == Integer.class;
+            case CHAR_SEQUENCE:
+                return CharSequence.class.isAssignableFrom(parameterType);
+            case UUID:
+                return parameterType == UUID.class;
+            case BYTES:
+                return parameterType == byte[].class;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * {@code Hashing.combineOrdered(seed, h)} computes {@code (byte) (seed[i] * 37 ^ h[i])} for
+     * every (little endian) byte i. That is the same thing as XOR:ing h with the bytes {@code (byte)
+     * (seed[i] * 37)}, which only depends on the seed.
+     */
+    private static int seedMix(HashCode seed) {
+        final byte[] bytes = seed.asBytes();
+        int mix = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            mix |= ((bytes[i] * 37) & 0xFF) << (i * Byte.SIZE);
+        }
+        return mix;
     }
 
     @Override
     public T select(Method method, Object[] args) {
-        final Object firstArgument = paramSelector.pick(method, args);
-        HashCode hashCode =
-                Hashing.combineOrdered(
-                        ImmutableList.of(seed, HashCode.fromInt(firstArgument.hashCode())));
-        final int bucket = Hashing.consistentHash(hashCode, total);
-        return indexByWeightInterval.tailMap(bucket, false).firstEntry().getValue();
+        return select(methods.ordinal(method), method, args);
+    }
+
+    @Override
+    public T select(int ordinal, Method method, Object[] args) {
+        final Object key;
+        if (keys == null) {
+            key = paramSelector.pick(method, args);
+        } else if (bulk != null && bulk[ordinal]) {
+            return (T) bulkProxy;
+        } else if (keys.parameter(ordinal) == ShardKeyTable.NO_KEY) {
+            return (T) defaultRoute;
+        } else {
+            key = keys.key(ordinal, args);
+        }
+        return (T) implementations[indexOf(key)];
+    }
+
+    /** @return the index of the implementation that key maps to. */
+    int indexOf(Object key) {
+        final int bucket;
+        switch (keyType) {
+            case HASH_CODE:
+                final int combined = seedMix ^ key.hashCode();
+                bucket = consistentHash(combined & 0xFFFFFFFFL, total);
+                break;
+            case LONG:
+                bucket = consistentHash(ShardKeyHashing.hashLong(seed64, (Long) key), total);
+                break;
+            case INT:
+                bucket = consistentHash(ShardKeyHashing.hashLong(seed64, (Integer) key), total);
+                break;
+            case CHAR_SEQUENCE:
+                bucket =
+                        consistentHash(
+                                ShardKeyHashing.hashChars(seed64, (CharSequence) key), total);
+                break;
+            case UUID:
+                bucket = consistentHash(ShardKeyHashing.hashUuid(seed64, (UUID) key), total);
+                break;
+            case BYTES:
+                bucket = consistentHash(ShardKeyHashing.hashBytes(seed64, (byte[]) key), total);
+                break;
+            default:
+                throw new AssertionError(keyType);
+        }
+        return implementationIndex(bucket);
+    }
+
+    /** @return the implementation at index, see {@link #indexOf(Object)}. */
+    Object implementation(int index) {
+        return implementations[index];
+    }
+
+    int implementationCount() {
+        return implementations.length;
+    }
+
+    Object defaultRoute() {
+        return defaultRoute;
+    }
+
+    @Override
+    public int keyParameter(int ordinal, Method method) {
+        if (keys == null || !keys.isParameter(ordinal)) {
+            return -1;
+        }
+        final Class<?> parameterType = keys.keyType(ordinal);
+        if ((keyType == KeyType.LONG && parameterType == long.class)
+                || (keyType == KeyType.INT && parameterType == int.class)) {
+            return keys.parameter(ordinal);
+        }
+        return -1;
+    }
+
+    @Override
+    public T select(int ordinal, Method method, long key) {
+        final int bucket = consistentHash(ShardKeyHashing.hashLong(seed64, key), total);
+        return (T) implementations[implementationIndex(bucket)];
+    }
+
+    private int implementationIndex(int bucket) {
+        if (implementationIndexByBucket != null) {
+            return implementationIndexByBucket[bucket];
+        }
+        // Find the first implementation whose upper bound is strictly larger than bucket.
+        final int index = Arrays.binarySearch(upperBounds, bucket);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Identical to {@link Hashing#consistentHash(long, int)}, but without allocating a generator.
+     * Jump consistent hash, see <a href="https://arxiv.org/abs/1406.2294">A Fast, Minimal Memory,
+     * Consistent Hash Algorithm</a>.
+     */
+    static int consistentHash(long input, int buckets) {
+        long state = input;
+        int candidate = 0;
+        while (true) {
+            state = 2862933555777941757L * state + 1;
+            final double nextDouble = ((double) ((int) (state >>> 33) + 1)) / 0x1.0p31;
+            final int next = (int) ((candidate + 1) / nextDouble);
+            if (next >= 0 && next < buckets) {
+                candidate = next;
+            } else {
+                return candidate;
+            }
+        }
     }
 }
 
+/**
+ * Shards on the first parameter. {@link WeightedShardedSelector} recognizes {@link
+ * WeightedShardedSelector#FIRST_PARAM_SELECTOR} and resolves keys using a {@link ShardKeyTable}
+ * instead, which also supports {@link ShardKey} and a default route.
+ */
 class FirstParamSelector implements WeightedShardedSelector.ParameterSelector {
     public Object pick(Method method, Object[] args) {
         return args[0];
@@ -0,0 +1,57 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class AliasTableTest {
+
+    @Test
+    public void testExactDistribution() {
+        assertExactDistribution(ImmutableList.of(1));
+        assertExactDistribution(ImmutableList.of(1, 99));
+        assertExactDistribution(ImmutableList.of(3, 3, 3));
+        assertExactDistribution(ImmutableList.of(7, 1, 13, 2, 1, 40, 5));
+        assertExactDistribution(ImmutableList.of(1000, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+    }
+
+    /** Enumerates all possible random values and makes sure every weight is hit exactly. */
+    private void assertExactDistribution(List<Integer> weights) {
+        AliasTable table = new AliasTable(weights);
+        int total = weights.stream().mapToInt(Integer::intValue).sum();
+
+        int[] hits = new int[weights.size()];
+        for (int column = 0; column < table.size(); column++) {
+            for (int coin = 0; coin < total; coin++) {
+                hits[table.pick(column, coin)]++;
+            }
+        }
+
+        for (int i = 0; i < weights.size(); i++) {
+            Assertions.assertEquals(weights.get(i) * weights.size(), hits[i], "index " + i);
+        }
+    }
+
+    @Test
+    public void testNext() {
+        AliasTable table = new AliasTable(ImmutableList.of(1, 3));
+        RandomSource random = RandomSource.seeded(42);
+
+        int iterations = 100000;
+        int hits = 0;
+        for (int i = 0; i < iterations; i++) {
+            if (table.next(random) == 1) {
+                hits++;
+            }
+        }
+        Assertions.assertEquals(0.75, 1.0 * hits / iterations, 0.01);
+    }
+
+    @Test
+    public void testIllegalArgumentOnTooLargeWeights() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> new AliasTable(ImmutableList.of(Integer.MAX_VALUE, 1)));
+    }
+}
@@ -0,0 +1,206 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class BulkSharderTest {
+    private static final HashCode TEST_HASH_CODE = HashCode.fromInt(42);
+    private static final List<Long> IDS =
+            LongStream.range(0, 100).boxed().collect(Collectors.toList());
+
+    interface BulkInterface {
+        Map<Long, String> get(List<Long> ids);
+
+        List<String> names(List<Long> ids);
+
+        Set<Long> known(Set<Long> ids);
+
+        void put(Collection<Long> ids);
+    }
+
+    interface SingleInterface {
+        String get(long id);
+    }
+
+    private static class BulkImpl implements BulkInterface {
+        private final String name;
+        final List<Collection<Long>> batches = Collections.synchronizedList(new ArrayList<>());
+
+        BulkImpl(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Map<Long, String> get(List<Long> ids) {
+            batches.add(ids);
+            if (ids.contains(-1L)) {
+                throw new IllegalArgumentException();
+            }
+            return ids.stream().collect(Collectors.toMap(id -> id, id -> name));
+        }
+
+        @Override
+        public List<String> names(List<Long> ids) {
+            batches.add(ids);
+            return ids.stream().map(id -> name + id).collect(Collectors.toList());
+        }
+
+        @Override
+        public Set<Long> known(Set<Long> ids) {
+            batches.add(ids);
+            return ids;
+        }
+
+        @Override
+        public void put(Collection<Long> ids) {
+            batches.add(ids);
+        }
+    }
+
+    private static WeightedShardedBuilder<BulkInterface> builder(
+            BulkImpl first, BulkImpl second) {
+        return new WeightedShardedBuilder<BulkInterface>()
+                .keyType(WeightedShardedBuilder.KeyType.LONG)
+                .add(1, first)
+                .add(2, second);
+    }
+
+    @Test
+    public void testKeysRouteLikeSingleKeys() {
+        SingleInterface single =
+                new WeightedShardedBuilder<SingleInterface>()
+                        .keyType(WeightedShardedBuilder.KeyType.LONG)
+                        .add(1, id -> "first")
+                        .add(2, id -> "second")
+                        .build(SingleInterface.class, TEST_HASH_CODE);
+
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            BulkImpl first = new BulkImpl("first");
+            BulkImpl second = new BulkImpl("second");
+            BulkInterface proxy =
+                    builder(first, second)
+                            .bulk()
+                            .proxyBackend(backend)
+                            .build(BulkInterface.class, TEST_HASH_CODE);
+
+            Map<Long, String> result = proxy.get(IDS);
+            Assertions.assertEquals(IDS.size(), result.size(), backend.toString());
+            for (long id : IDS) {
+                Assertions.assertEquals(single.get(id), result.get(id), backend.toString());
+            }
+            // One call per implementation.
+            Assertions.assertEquals(1, first.batches.size(), backend.toString());
+            Assertions.assertEquals(1, second.batches.size(), backend.toString());
+            Assertions.assertEquals(
+                    IDS.size(),
+                    first.batches.get(0).size() + second.batches.get(0).size(),
+                    backend.toString());
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        BulkImpl first = new BulkImpl("first");
+        BulkImpl second = new BulkImpl("second");
+        BulkInterface proxy =
+                builder(first, second).bulk().build(BulkInterface.class, TEST_HASH_CODE);
+        Map<Long, String> owners = proxy.get(IDS);
+
+        // Lists are put back in the order of the keys.
+        List<Long> reversed = new ArrayList<>(IDS);
+        Collections.reverse(reversed);
+        List<String> names = proxy.names(reversed);
+        for (int i = 0; i < reversed.size(); i++) {
+            long id = reversed.get(i);
+            Assertions.assertEquals(owners.get(id) + id, names.get(i));
+        }
+
+        Set<Long> ids = ImmutableSet.copyOf(IDS);
+        Assertions.assertEquals(ids, proxy.known(ids));
+        // Sets are given sets.
+        Assertions.assertTrue(first.batches.get(first.batches.size() - 1) instanceof Set);
+
+        first.batches.clear();
+        second.batches.clear();
+        proxy.put(IDS);
+        Assertions.assertEquals(
+                IDS.size(), first.batches.get(0).size() + second.batches.get(0).size());
+    }
+
+    @Test
+    public void testUnsplitCallsArePassedOn() {
+        BulkImpl first = new BulkImpl("first");
+        BulkImpl second = new BulkImpl("second");
+        BulkInterface proxy =
+                builder(first, second).bulk().build(BulkInterface.class, TEST_HASH_CODE);
+
+        List<Long> one = ImmutableList.of(7L);
+        proxy.names(one);
+        Assertions.assertEquals(1, first.batches.size() + second.batches.size());
+        Collection<Long> batch = (first.batches.isEmpty() ? second : first).batches.get(0);
+        Assertions.assertSame(one, batch);
+
+        // Empty batches go to the first implementation, the default route.
+        Assertions.assertEquals(Collections.emptyMap(), proxy.get(ImmutableList.of()));
+        Assertions.assertEquals(ImmutableList.of(), first.batches.get(first.batches.size() - 1));
+    }
+
+    @Test
+    public void testParallel() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            BulkInterface sequential =
+                    builder(new BulkImpl("first"), new BulkImpl("second"))
+                            .bulk()
+                            .build(BulkInterface.class, TEST_HASH_CODE);
+            BulkInterface parallel =
+                    builder(new BulkImpl("first"), new BulkImpl("second"))
+                            .bulk(executor)
+                            .build(BulkInterface.class, TEST_HASH_CODE);
+            Assertions.assertEquals(sequential.get(IDS), parallel.get(IDS));
+            Assertions.assertEquals(sequential.names(IDS), parallel.names(IDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailuresPropagate() {
+        BulkInterface proxy =
+                builder(new BulkImpl("first"), new BulkImpl("second"))
+                        .bulk()
+                        .build(BulkInterface.class, TEST_HASH_CODE);
+        List<Long> ids = new ArrayList<>(IDS);
+        ids.add(-1L);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> proxy.get(ids));
+    }
+
+    interface WrongKeyInterface {
+        List<String> names(List<String> ids);
+    }
+
+    @Test
+    public void testKeyTypeIsValidated() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        new WeightedShardedBuilder<WrongKeyInterface>()
+                                .keyType(WeightedShardedBuilder.KeyType.LONG)
+                                .add(1, ids -> ids)
+                                .bulk()
+                                .build(WrongKeyInterface.class, TEST_HASH_CODE));
+    }
+}
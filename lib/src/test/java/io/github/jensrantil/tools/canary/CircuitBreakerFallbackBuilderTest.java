@@ -1,7 +1,22 @@
 package io.github.jensrantil.tools.canary;
 
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import io.github.jensrantil.tools.canary.simulation.Sample;
 import io.github.jensrantil.tools.canary.simulation.SimulationParameters;
 import io.github.jensrantil.tools.canary.simulation.Simulator;
@@ -35,6 +50,63 @@ public class CircuitBreakerFallbackBuilderTest {
         }
     }
 
+    interface AsyncInterface {
+        CompletableFuture<String> call(CompletableFuture<String> future);
+
+        CompletionStage<String> stage(CompletableFuture<String> future);
+    }
+
+    private static class AsyncImpl implements AsyncInterface {
+
+        @Override
+        public CompletableFuture<String> call(CompletableFuture<String> future) {
+            return future;
+        }
+
+        @Override
+        public CompletionStage<String> stage(CompletableFuture<String> future) {
+            return future.thenApply(s -> s);
+        }
+    }
+
+    @Test
+    public void testAsyncOutcomesAreRegisteredOnCompletion() {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            ManualTicker ticker = new ManualTicker();
+            LatencyObserver observer =
+                    new LatencyObserver(new FixedWindowObserver(ticker, 3, Duration.ofHours(1)));
+            AsyncInterface proxy =
+                    new CircuitBreakerFallbackBuilder()
+                            .ticker(ticker)
+                            .proxyBackend(backend)
+                            .observer(observer)
+                            .oldObserver(observer)
+                            .build(AsyncInterface.class, new AsyncImpl(), new AsyncImpl());
+
+            CompletableFuture<String> succeeding = new CompletableFuture<>();
+            CompletableFuture<String> failing = new CompletableFuture<>();
+            CompletableFuture<String> cancelled = new CompletableFuture<>();
+            Assertions.assertSame(succeeding, proxy.call(succeeding));
+            proxy.stage(failing);
+            proxy.call(cancelled);
+            Assertions.assertEquals(0, observer.getSummary().total, backend.toString());
+
+            ticker.advance(Duration.ofMillis(10));
+            succeeding.complete("ok");
+            failing.completeExceptionally(new IllegalStateException());
+            cancelled.cancel(false);
+            Summary summary = observer.getSummary();
+            Assertions.assertEquals(1, summary.successes, backend.toString());
+            Assertions.assertEquals(3, summary.total, backend.toString());
+            Assertions.assertEquals(
+                    10_000_000, observer.latencies().valueAtPercentile(0), 10_000_000 / 16);
+
+            // Already completed.
+            proxy.call(CompletableFuture.completedFuture("done"));
+            Assertions.assertEquals(4, observer.getSummary().total, backend.toString());
+        }
+    }
+
     @Test
     public void testInitialCallsUseNewImplementation() {
         final SimulationParameters params = new SimulationParameters();
@@ -60,4 +132,502 @@ public class CircuitBreakerFallbackBuilderTest {
         double ratioOldImplCalls = 1.0 * nOldImplCalls / samplesFromPhase2.size();
         Assertions.assertTrue(ratioOldImplCalls > 0.8, "Ratio is: " + ratioOldImplCalls);
     }
+
+    @Test
+    public void testSimulatedTimeNeverGoesBackwards() {
+        final SimulationParameters params = new SimulationParameters();
+        // Calls slower than a step.
+        params.phase1.origImpl.latency = Duration.ofSeconds(3);
+        params.phase1.newImpl.latency = Duration.ofSeconds(3);
+        List<Sample> samples = new Simulator().simulate(Instant.EPOCH, params);
+
+        for (int i = 1; i < samples.size(); i++) {
+            Assertions.assertFalse(
+                    samples.get(i).timestamp.isBefore(samples.get(i - 1).timestamp),
+                    "sample " + i);
+        }
+    }
+
+    interface HedgedInterface {
+        String name();
+
+        int length(String value);
+    }
+
+    /**
+     * Blocks until interrupted while slow, or slowLength for length(String), is set. Blocks until
+     * stuck is counted down, ignoring interrupts, while it is set.
+     */
+    private static class HedgedImpl implements HedgedInterface {
+        private final String name;
+        final AtomicBoolean slow = new AtomicBoolean();
+        final AtomicBoolean slowLength = new AtomicBoolean();
+        volatile CountDownLatch stuck;
+        volatile Thread lastThread;
+        // If set, every call takes duration on it.
+        volatile ManualTicker ticker;
+        volatile Duration duration = Duration.ofMillis(100);
+
+        HedgedImpl(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String name() {
+            lastThread = Thread.currentThread();
+            if (ticker != null) {
+                ticker.advance(duration);
+            }
+            if (slow.get()) {
+                block();
+            }
+            final CountDownLatch stuck = this.stuck;
+            if (stuck != null) {
+                Uninterruptibles.awaitUninterruptibly(stuck);
+            }
+            return name;
+        }
+
+        @Override
+        public int length(String value) {
+            if (value == null) {
+                throw new NullPointerException();
+            }
+            if (slowLength.get()) {
+                block();
+            }
+            return value.length();
+        }
+
+        private static void block() {
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testSlowCallsAreHedged() throws InterruptedException {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            testSlowCallsAreHedged(backend, false);
+            testSlowCallsAreHedged(backend, true);
+        }
+    }
+
+    private void testSlowCallsAreHedged(ProxyBackend backend, boolean onCallingThread)
+            throws InterruptedException {
+        ManualTicker ticker = new ManualTicker();
+        FixedWindowObserver observer = new FixedWindowObserver(ticker, 3, Duration.ofHours(1));
+        HedgedImpl oldImplementation = new HedgedImpl("old");
+        HedgedImpl newImplementation = new HedgedImpl("new");
+        newImplementation.ticker = ticker;
+        ExecutorService executor = Executors.newCachedThreadPool();
+        HedgedInterface proxy =
+                new CircuitBreakerFallbackBuilder()
+                        .ticker(ticker)
+                        .random(new Random(1))
+                        .epsilon(0)
+                        .observer(observer)
+                        .hedging(executor, 0.5)
+                        .hedgingOnCallingThread(onCallingThread)
+                        .proxyBackend(backend)
+                        .build(HedgedInterface.class, oldImplementation, newImplementation);
+
+        // Not hedged until the usual duration of the calls is known.
+        for (int i = 0; i < 50; i++) {
+            proxy.name();
+        }
+        Assertions.assertTrue(observer.getSummary().total >= HedgeDelay.MIN_SAMPLES);
+        ticker.advance(Duration.ofSeconds(1));
+
+        // Every call is routed to the new implementation since it never fails.
+        Assertions.assertEquals("new", proxy.name(), backend.toString());
+        Assertions.assertEquals(
+                onCallingThread,
+                Thread.currentThread() == newImplementation.lastThread,
+                backend.toString());
+
+        newImplementation.slow.set(true);
+        Assertions.assertEquals("old", proxy.name(), backend.toString());
+        // The hedge interrupted the slow call, but not the caller.
+        Assertions.assertFalse(Thread.currentThread().isInterrupted(), backend.toString());
+        Assertions.assertEquals(5, proxy.length("hello"), backend.toString());
+
+        // The hedges are done.
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        // The interrupted loser isn't a failure.
+        Summary summary = observer.getSummary();
+        Assertions.assertEquals(summary.total, summary.successes, backend.toString());
+    }
+
+    @Test
+    public void testHedgesWinOverCallsIgnoringInterrupts() throws Exception {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            ManualTicker ticker = new ManualTicker();
+            HedgedImpl oldImplementation = new HedgedImpl("old");
+            HedgedImpl newImplementation = new HedgedImpl("new");
+            newImplementation.ticker = ticker;
+            ExecutorService executor = Executors.newCachedThreadPool();
+            HedgedInterface proxy =
+                    new CircuitBreakerFallbackBuilder()
+                            .ticker(ticker)
+                            .epsilon(0)
+                            .hedging(executor, 1)
+                            .proxyBackend(backend)
+                            .build(HedgedInterface.class, oldImplementation, newImplementation);
+            for (int i = 0; i < 50; i++) {
+                proxy.name();
+            }
+            ticker.advance(Duration.ofSeconds(1));
+
+            CountDownLatch stuck = new CountDownLatch(1);
+            newImplementation.stuck = stuck;
+            Future<String> name = executor.submit(proxy::name);
+            Assertions.assertEquals("old", name.get(10, TimeUnit.SECONDS), backend.toString());
+            stuck.countDown();
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testHedgeDelayIsPerMethod() throws Exception {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            ManualTicker ticker = new ManualTicker();
+            HedgedImpl oldImplementation = new HedgedImpl("old");
+            HedgedImpl newImplementation = new HedgedImpl("new");
+            newImplementation.ticker = ticker;
+            newImplementation.duration = Duration.ofHours(1);
+            ExecutorService executor = Executors.newCachedThreadPool();
+            HedgedInterface proxy =
+                    new CircuitBreakerFallbackBuilder()
+                            .ticker(ticker)
+                            .epsilon(0)
+                            .hedging(executor, 1)
+                            .proxyBackend(backend)
+                            .build(HedgedInterface.class, oldImplementation, newImplementation);
+
+            // Half of the calls take an hour, which is the hedge delay of name() only.
+            for (int i = 0; i < 50; i++) {
+                proxy.name();
+                proxy.length("hello");
+            }
+            ticker.advance(Duration.ofSeconds(1));
+
+            newImplementation.slowLength.set(true);
+            Future<Integer> length = executor.submit(() -> proxy.length("hello"));
+            Assertions.assertEquals(5, (int) length.get(10, TimeUnit.SECONDS), backend.toString());
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testHedgedFailuresPropagate() {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            ExecutorService executor = Executors.newCachedThreadPool();
+            HedgedInterface proxy =
+                    new CircuitBreakerFallbackBuilder()
+                            .hedging(executor, 0.5)
+                            .proxyBackend(backend)
+                            .build(
+                                    HedgedInterface.class,
+                                    new HedgedImpl("old"),
+                                    new HedgedImpl("new"));
+
+            Assertions.assertThrows(NullPointerException.class, () -> proxy.length(null));
+            Assertions.assertEquals(3, proxy.length("abc"), backend.toString());
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCallsSpillOverAtTheConcurrencyLimit() throws InterruptedException {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            HedgedImpl oldImplementation = new HedgedImpl("old");
+            HedgedImpl newImplementation = new HedgedImpl("new");
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, Duration.ofHours(1));
+            ConcurrencyLimiter oldLimiter = new ConcurrencyLimiter(1, 1, Duration.ofHours(1));
+            HedgedInterface proxy =
+                    new CircuitBreakerFallbackBuilder()
+                            .epsilon(0)
+                            .routingPolicy((oldObserver, newObserver) -> 1)
+                            .concurrencyLimiter(limiter)
+                            .oldConcurrencyLimiter(oldLimiter)
+                            .proxyBackend(backend)
+                            .build(HedgedInterface.class, oldImplementation, newImplementation);
+            Assertions.assertEquals("new", proxy.name(), backend.toString());
+
+            ExecutorService executor = Executors.newCachedThreadPool();
+            try {
+                // Occupies the new implementation.
+                newImplementation.slow.set(true);
+                executor.submit(proxy::name);
+                while (limiter.inFlight() == 0) {
+                    Thread.sleep(1);
+                }
+                Assertions.assertEquals("old", proxy.name(), backend.toString());
+
+                // Occupies the old implementation as well.
+                oldImplementation.slow.set(true);
+                executor.submit(proxy::name);
+                while (oldLimiter.inFlight() == 0) {
+                    Thread.sleep(1);
+                }
+                Assertions.assertThrows(RejectedExecutionException.class, proxy::name);
+            } finally {
+                executor.shutdownNow();
+            }
+            Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(0, limiter.inFlight(), backend.toString());
+            Assertions.assertEquals(0, oldLimiter.inFlight(), backend.toString());
+        }
+    }
+
+    @Test
+    public void testCallsMissingTheDeadlineFallBack() throws InterruptedException {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            ManualTicker ticker = new ManualTicker();
+            FixedWindowObserver observer =
+                    new FixedWindowObserver(ticker, 3, Duration.ofHours(1));
+            HedgedImpl oldImplementation = new HedgedImpl("old");
+            HedgedImpl newImplementation = new HedgedImpl("new");
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10, Duration.ofHours(1));
+            ExecutorService executor = Executors.newCachedThreadPool();
+            HedgedInterface proxy =
+                    new CircuitBreakerFallbackBuilder()
+                            .ticker(ticker)
+                            .epsilon(0)
+                            .routingPolicy((oldObserver, newObserver) -> 1)
+                            .observer(observer)
+                            .concurrencyLimiter(limiter)
+                            .deadline(
+                                    executor,
+                                    method ->
+                                            method.getName().equals("name")
+                                                    ? Duration.ofMillis(50)
+                                                    : null)
+                            .proxyBackend(backend)
+                            .build(HedgedInterface.class, oldImplementation, newImplementation);
+
+            // Calls are made on the executor.
+            Assertions.assertEquals("new", proxy.name(), backend.toString());
+            Assertions.assertNotSame(
+                    Thread.currentThread(), newImplementation.lastThread, backend.toString());
+            Assertions.assertEquals(1, observer.getSummary().successes, backend.toString());
+
+            // The late call is interrupted, but the caller doesn't wait for it.
+            newImplementation.slow.set(true);
+            Assertions.assertEquals("old", proxy.name(), backend.toString());
+            Summary summary = observer.getSummary();
+            Assertions.assertEquals(2, summary.total, backend.toString());
+            Assertions.assertEquals(1, summary.successes, backend.toString());
+
+            // Methods without a deadline, and failures within it, aren't retried.
+            Assertions.assertThrows(NullPointerException.class, () -> proxy.length(null));
+            Assertions.assertEquals(3, observer.getSummary().total, backend.toString());
+
+            // Once 100 calls in a row returned in time, calls are made on the calling thread.
+            newImplementation.slow.set(false);
+            for (int i = 0; i < 100; i++) {
+                Assertions.assertEquals("new", proxy.name(), backend.toString());
+            }
+            Assertions.assertNotSame(
+                    Thread.currentThread(), newImplementation.lastThread, backend.toString());
+            Assertions.assertEquals("new", proxy.name(), backend.toString());
+            Assertions.assertSame(
+                    Thread.currentThread(), newImplementation.lastThread, backend.toString());
+
+            // The late call was interrupted, but not its caller, and gave back its permit.
+            newImplementation.slow.set(true);
+            Assertions.assertEquals("old", proxy.name(), backend.toString());
+            Assertions.assertFalse(Thread.currentThread().isInterrupted(), backend.toString());
+            Assertions.assertEquals(0, limiter.inFlight(), backend.toString());
+            Assertions.assertEquals(105, observer.getSummary().total, backend.toString());
+
+            // Once a call missed its deadline, the next calls are made on the executor.
+            newImplementation.slow.set(false);
+            Assertions.assertEquals("new", proxy.name(), backend.toString());
+            Assertions.assertNotSame(
+                    Thread.currentThread(), newImplementation.lastThread, backend.toString());
+
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(0, limiter.inFlight(), backend.toString());
+            Assertions.assertEquals(106, observer.getSummary().total, backend.toString());
+        }
+    }
+
+    @Test
+    public void testCallsIgnoringInterruptsFallBackAtTheDeadline() throws Exception {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            FixedWindowObserver observer =
+                    new FixedWindowObserver(new ManualTicker(), 3, Duration.ofHours(1));
+            HedgedImpl oldImplementation = new HedgedImpl("old");
+            HedgedImpl newImplementation = new HedgedImpl("new");
+            ExecutorService executor = Executors.newCachedThreadPool();
+            HedgedInterface proxy =
+                    new CircuitBreakerFallbackBuilder()
+                            .epsilon(0)
+                            .routingPolicy((oldObserver, newObserver) -> 1)
+                            .observer(observer)
+                            .deadline(executor, Duration.ofMillis(50))
+                            .proxyBackend(backend)
+                            .build(HedgedInterface.class, oldImplementation, newImplementation);
+            CountDownLatch stuck = new CountDownLatch(1);
+            newImplementation.stuck = stuck;
+
+            // The caller doesn't wait for a call made on the executor.
+            Assertions.assertEquals(
+                    "old",
+                    executor.submit(proxy::name).get(10, TimeUnit.SECONDS),
+                    backend.toString());
+
+            // Once calls are made on the calling thread, a late one holds its caller, but the
+            // next calls go back to the executor right away.
+            newImplementation.stuck = null;
+            for (int i = 0; i < 101; i++) {
+                proxy.name();
+            }
+            newImplementation.stuck = stuck;
+            long total = observer.getSummary().total;
+            Future<String> held = executor.submit(proxy::name);
+            // Until the late call is registered as a failure.
+            while (observer.getSummary().total == total) {
+                Thread.sleep(1);
+            }
+            Assertions.assertEquals(
+                    "old",
+                    executor.submit(proxy::name).get(10, TimeUnit.SECONDS),
+                    backend.toString());
+            Assertions.assertFalse(held.isDone(), backend.toString());
+
+            stuck.countDown();
+            Assertions.assertEquals("old", held.get(10, TimeUnit.SECONDS), backend.toString());
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testInterruptedCallerGivesBackQueuedPermit() throws InterruptedException {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            ManualTicker ticker = new ManualTicker();
+            HedgedImpl oldImplementation = new HedgedImpl("old");
+            HedgedImpl newImplementation = new HedgedImpl("new");
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10, Duration.ofHours(1));
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            HedgedInterface proxy =
+                    new CircuitBreakerFallbackBuilder()
+                            .ticker(ticker)
+                            .epsilon(0)
+                            .routingPolicy((oldObserver, newObserver) -> 1)
+                            .concurrencyLimiter(limiter)
+                            .deadline(executor, Duration.ofHours(1))
+                            .proxyBackend(backend)
+                            .build(HedgedInterface.class, oldImplementation, newImplementation);
+
+            // Saturate the executor, so that the call is queued.
+            CountDownLatch blocked = new CountDownLatch(1);
+            executor.execute(() -> Uninterruptibles.awaitUninterruptibly(blocked));
+            AtomicReference<Throwable> thrown = new AtomicReference<>();
+            Thread caller =
+                    new Thread(
+                            () -> {
+                                try {
+                                    proxy.name();
+                                } catch (Throwable e) {
+                                    thrown.set(e);
+                                }
+                            });
+            caller.start();
+            while (caller.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(1);
+            }
+            caller.interrupt();
+            caller.join();
+
+            Assertions.assertTrue(
+                    thrown.get() instanceof CancellationException, backend.toString());
+            Assertions.assertEquals(0, limiter.inFlight(), backend.toString());
+
+            // The queued call never runs.
+            blocked.countDown();
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            Assertions.assertNull(newImplementation.lastThread, backend.toString());
+            Assertions.assertEquals(0, limiter.inFlight(), backend.toString());
+        }
+    }
+
+    interface TwoMethods {
+        String hot();
+
+        String rare();
+    }
+
+    /** The rare method of the new implementation always fails. */
+    private static class TwoMethodsImpl implements TwoMethods {
+        private final boolean failRare;
+        int hotCalls;
+
+        TwoMethodsImpl(boolean failRare) {
+            this.failRare = failRare;
+        }
+
+        @Override
+        public String hot() {
+            hotCalls++;
+            return "hot";
+        }
+
+        @Override
+        public String rare() {
+            if (failRare) {
+                throw new IllegalStateException();
+            }
+            return "rare";
+        }
+    }
+
+    private static int hotCallsToNew(CircuitBreakerFallbackBuilder builder) {
+        ManualTicker ticker = new ManualTicker();
+        TwoMethodsImpl oldImplementation = new TwoMethodsImpl(false);
+        TwoMethodsImpl newImplementation = new TwoMethodsImpl(true);
+        TwoMethods proxy =
+                builder.random(new Random(1))
+                        .observer(new FixedWindowObserver(ticker, 3, Duration.ofHours(1)))
+                        .build(TwoMethods.class, oldImplementation, newImplementation);
+        for (int i = 0; i < 100; i++) {
+            try {
+                proxy.rare();
+            } catch (IllegalStateException e) {
+                // expected from the new implementation.
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            proxy.hot();
+        }
+        return newImplementation.hotCalls;
+    }
+
+    @Test
+    public void testObserverPerMethod() {
+        Supplier<Observer> observers =
+                () -> new FixedWindowObserver(new ManualTicker(), 3, Duration.ofHours(1));
+
+        // A failing method only rolls back itself.
+        Assertions.assertTrue(
+                hotCallsToNew(new CircuitBreakerFallbackBuilder().observerPerMethod(observers))
+                        > 900);
+        Assertions.assertTrue(hotCallsToNew(new CircuitBreakerFallbackBuilder()) < 500);
+        // Unless they are grouped together.
+        Assertions.assertTrue(
+                hotCallsToNew(
+                                new CircuitBreakerFallbackBuilder()
+                                        .observerPerGroup(method -> "all", observers))
+                        < 500);
+    }
 }
@@ -0,0 +1,33 @@
+package io.github.jensrantil.tools.canary;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CoarseTickerTest {
+
+    @Test
+    public void testFollowsNanoTime() throws InterruptedException {
+        try (CoarseTicker ticker = new CoarseTicker(Duration.ofMillis(1))) {
+            long start = ticker.read();
+            Assertions.assertTrue(start <= System.nanoTime());
+
+            long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+            while (ticker.read() - start < Duration.ofMillis(20).toNanos()) {
+                Assertions.assertTrue(System.nanoTime() < deadline, "ticker didn't move");
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test
+    public void testStopsWhenClosed() throws InterruptedException {
+        CoarseTicker ticker = new CoarseTicker(Duration.ofMillis(1));
+        ticker.close();
+        Thread.sleep(10);
+
+        long closed = ticker.read();
+        Thread.sleep(20);
+        Assertions.assertEquals(closed, ticker.read());
+    }
+}
@@ -0,0 +1,125 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ConcurrencyLimiterTest {
+    private static final long FAST = Duration.ofMillis(1).toNanos();
+    private static final long SLOW = Duration.ofSeconds(1).toNanos();
+
+    // The ticker of the proxy. Calls are made one after the other, unless acquired up front.
+    private long now;
+
+    private static ConcurrencyLimiter limiter(int initialLimit, int maxLimit) {
+        return new ConcurrencyLimiter(initialLimit, maxLimit, Duration.ofMillis(100));
+    }
+
+    private void release(ConcurrencyLimiter limiter, long nanos) {
+        final long start = now;
+        now += nanos;
+        limiter.release(start, now);
+    }
+
+    @Test
+    public void testAcquireUpToTheLimit() {
+        ConcurrencyLimiter limiter = limiter(2, 10);
+        Assertions.assertTrue(limiter.tryAcquire());
+        Assertions.assertTrue(limiter.tryAcquire());
+        Assertions.assertFalse(limiter.hasCapacity());
+        Assertions.assertFalse(limiter.tryAcquire());
+        Assertions.assertEquals(2, limiter.inFlight());
+
+        release(limiter, FAST);
+        Assertions.assertTrue(limiter.hasCapacity());
+        Assertions.assertEquals(1, limiter.inFlight());
+    }
+
+    @Test
+    public void testIncreasesWhileUsedAndFast() {
+        ConcurrencyLimiter limiter = limiter(4, 5);
+        // A limit's worth of calls at the limit raises it by about one.
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertTrue(limiter.tryAcquire());
+        }
+        for (int i = 0; i < 4; i++) {
+            limiter.tryAcquire();
+            release(limiter, FAST);
+        }
+        Assertions.assertEquals(4, limiter.limit());
+        limiter.tryAcquire();
+        release(limiter, FAST);
+        Assertions.assertEquals(5, limiter.limit());
+
+        // Never beyond the max limit.
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire();
+            release(limiter, FAST);
+        }
+        Assertions.assertEquals(5, limiter.limit());
+    }
+
+    @Test
+    public void testUnusedLimitDoesNotIncrease() {
+        ConcurrencyLimiter limiter = limiter(10, 100);
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire();
+            release(limiter, FAST);
+        }
+        Assertions.assertEquals(10, limiter.limit());
+    }
+
+    @Test
+    public void testDecreasesWhenSlow() {
+        ConcurrencyLimiter limiter = limiter(10, 100);
+        limiter.tryAcquire();
+        release(limiter, SLOW);
+        Assertions.assertEquals(9, limiter.limit());
+
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire();
+            release(limiter, SLOW);
+        }
+        Assertions.assertEquals(1, limiter.limit());
+        Assertions.assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void testDecreasesOncePerRoundTrip() throws InterruptedException {
+        ConcurrencyLimiter limiter = limiter(50, 100);
+        for (int i = 0; i < 50; i++) {
+            Assertions.assertTrue(limiter.tryAcquire());
+        }
+
+        // Slow calls that were all in flight together complete together.
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            final long end = SLOW + i % 10;
+            Thread thread =
+                    new Thread(
+                            () -> {
+                                Uninterruptibles.awaitUninterruptibly(start);
+                                limiter.release(0, end);
+                            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertEquals(0, limiter.inFlight());
+        Assertions.assertEquals(45, limiter.limit());
+
+        // A slow call that started after the cut cuts again.
+        now = SLOW + 10;
+        limiter.tryAcquire();
+        release(limiter, SLOW);
+        Assertions.assertEquals(40, limiter.limit());
+    }
+}
@@ -0,0 +1,114 @@
+package io.github.jensrantil.tools.canary;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class DecayingObserverTest {
+
+    @Test
+    public void testEmpty() {
+        DecayingObserver observer = new DecayingObserver(new ManualTicker(), Duration.ofSeconds(1));
+
+        Assertions.assertEquals(0, observer.getSummary().total);
+        Assertions.assertTrue(Double.isNaN(observer.successRatio()));
+    }
+
+    @Test
+    public void testHalfLife() {
+        ManualTicker ticker = new ManualTicker();
+        DecayingObserver observer = new DecayingObserver(ticker, Duration.ofSeconds(1));
+
+        for (int i = 0; i < 1000; i++) {
+            observer.registerSuccess();
+        }
+        assertCounts(observer, 1000, 1000);
+
+        ticker.advance(Duration.ofSeconds(1));
+        assertCounts(observer, 500, 500);
+        ticker.advance(Duration.ofMillis(500));
+        assertCounts(observer, 354, 354);
+        ticker.advance(Duration.ofMillis(500));
+        assertCounts(observer, 250, 250);
+
+        ticker.advance(Duration.ofDays(1));
+        assertCounts(observer, 0, 0);
+    }
+
+    @Test
+    public void testRecentOutcomesWeighMore() {
+        ManualTicker ticker = new ManualTicker();
+        DecayingObserver observer = new DecayingObserver(ticker, Duration.ofSeconds(1));
+
+        for (int i = 0; i < 100; i++) {
+            observer.registerSuccess();
+        }
+        ticker.advance(Duration.ofSeconds(2));
+        for (int i = 0; i < 75; i++) {
+            observer.registerFailure();
+        }
+
+        // 25 decayed successes, 100 total.
+        Assertions.assertEquals(0.25, observer.successRatio(), 1e-3);
+        assertCounts(observer, 25, 100);
+    }
+
+    @Test
+    public void testAnyTickerOrigin() {
+        for (long origin : new long[] {Long.MIN_VALUE + 1, -1, 0, 1L << 40, Long.MAX_VALUE - 1}) {
+            ManualTicker ticker = new ManualTicker();
+            ticker.set(origin);
+            DecayingObserver observer = new DecayingObserver(ticker, Duration.ofSeconds(1));
+
+            observer.registerSuccess();
+            observer.registerFailure();
+            Assertions.assertEquals(0.5, observer.successRatio(), 1e-6, "origin " + origin);
+        }
+    }
+
+    @Test
+    public void testManyCallsAreCounted() {
+        ManualTicker ticker = new ManualTicker();
+        DecayingObserver observer = new DecayingObserver(ticker, Duration.ofSeconds(30));
+
+        // More than 2^24, beyond which a float no longer counts every call.
+        for (int i = 0; i < 17_000_000; i++) {
+            observer.registerSuccess();
+        }
+        for (int i = 0; i < 1_000_000; i++) {
+            observer.registerFailure();
+        }
+        Assertions.assertEquals(17.0 / 18, observer.successRatio(), 1e-6);
+        assertCounts(observer, 17_000_000, 18_000_000);
+    }
+
+    @Test
+    public void testLandmarkMoves() {
+        ManualTicker ticker = new ManualTicker();
+        DecayingObserver observer = new DecayingObserver(ticker, Duration.ofSeconds(1));
+
+        // Long enough for the weights of new outcomes to overflow a double, unless the landmark
+        // moves.
+        for (int i = 0; i < 3000; i++) {
+            ticker.advance(Duration.ofSeconds(1));
+            observer.registerSuccess();
+            observer.registerFailure();
+        }
+        Assertions.assertEquals(0.5, observer.successRatio(), 1e-9);
+        // 1 + 1/2 + 1/4 + ...
+        assertCounts(observer, 2, 4);
+    }
+
+    @Test
+    public void testRejectsShortHalfLife() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> new DecayingObserver(new ManualTicker(), Duration.ofNanos(999_999)));
+    }
+
+    private static void assertCounts(Observer observer, long successes, long total) {
+        Summary summary = observer.getSummary();
+        Assertions.assertEquals(successes, summary.successes);
+        Assertions.assertEquals(total, summary.total);
+    }
+}
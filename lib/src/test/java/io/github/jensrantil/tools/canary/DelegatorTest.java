@@ -26,6 +26,33 @@ public class DelegatorTest {
         }
     }
 
+    interface KeyedInterface {
+        long get(String name, long id);
+    }
+
+    /** Selects on the key, but only implements the Object[] path. */
+    private static class KeyedSelector implements Delegator.DelegateSelector<KeyedInterface> {
+        @Override
+        public KeyedInterface select(Method method, Object[] args) {
+            long id = (Long) args[1];
+            return (name, ignored) -> id * 2;
+        }
+
+        @Override
+        public int keyParameter(int ordinal, Method method) {
+            return 1;
+        }
+    }
+
+    @Test
+    public void testKeyedRoutingFallsBackToArguments() {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            KeyedInterface proxy =
+                    Delegator.build(KeyedInterface.class, new KeyedSelector(), backend);
+            Assertions.assertEquals(84, proxy.get("name", 42), backend.toString());
+        }
+    }
+
     private static class TestSelector implements Delegator.DelegateSelector<TestInterface> {
         TestInterface result;
 
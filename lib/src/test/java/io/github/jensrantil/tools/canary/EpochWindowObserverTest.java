@@ -0,0 +1,151 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Ticker;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToDoubleFunction;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class EpochWindowObserverTest {
+
+    @Test
+    public void testEmpty() {
+        EpochWindowObserver observer =
+                new EpochWindowObserver(new ManualTicker(), 3, Duration.ofSeconds(1));
+
+        Assertions.assertEquals(0, observer.getSummary().total);
+        Assertions.assertTrue(Double.isNaN(observer.successRatio()));
+    }
+
+    @Test
+    public void testSlotsExpire() {
+        ManualTicker ticker = new ManualTicker();
+        EpochWindowObserver observer = new EpochWindowObserver(ticker, 3, Duration.ofSeconds(1));
+
+        // Slot 1: 1/1, slot 2: 1/2, slot 3: 0/1.
+        observer.registerSuccess();
+        ticker.advance(Duration.ofMillis(1000));
+        observer.registerSuccess();
+        observer.registerFailure();
+        ticker.advance(Duration.ofMillis(1000));
+        observer.registerFailure();
+
+        assertCounts(observer, 2, 4);
+
+        // Slot 1 is reused.
+        ticker.advance(Duration.ofMillis(1000));
+        assertCounts(observer, 1, 3);
+        observer.registerSuccess();
+        assertCounts(observer, 2, 4);
+
+        ticker.advance(Duration.ofMillis(1000));
+        assertCounts(observer, 1, 2);
+
+        // Long after, everything has expired, also without any registrations in between.
+        ticker.advance(Duration.ofDays(1));
+        Assertions.assertEquals(0, observer.getSummary().total);
+    }
+
+    @Test
+    public void testAnyTickerOrigin() {
+        for (long epoch : new long[] {-5, 0, (1L << 23) + 7, (1L << 24) - 1, 1L << 40}) {
+            ManualTicker ticker = new ManualTicker();
+            ticker.set(epoch * 1_000_000);
+            EpochWindowObserver observer = new EpochWindowObserver(ticker, 3, Duration.ofMillis(1));
+
+            observer.registerSuccess();
+            ticker.advance(Duration.ofMillis(1));
+            observer.registerFailure();
+            assertCounts(observer, 1, 2);
+        }
+    }
+
+    @Test
+    public void testClock() {
+        EpochWindowObserver observer =
+                new EpochWindowObserver(Clock.systemUTC(), 3, Duration.ofSeconds(10));
+        observer.registerSuccess();
+        Assertions.assertEquals(1, observer.getSummary().total);
+    }
+
+    @Test
+    public void testNoRegistrationsAreLost() throws InterruptedException {
+        ManualTicker ticker = new ManualTicker();
+        EpochWindowObserver observer = new EpochWindowObserver(ticker, 4, Duration.ofSeconds(1));
+
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] =
+                    new Thread(
+                            () -> {
+                                for (int j = 0; j < 100000; j++) {
+                                    observer.registerSuccess();
+                                    observer.registerFailure();
+                                }
+                            });
+            writers[i].start();
+        }
+        for (int i = 0; i < 3; i++) {
+            // Roll slots while writers are registering.
+            ticker.advance(Duration.ofSeconds(1));
+            Thread.yield();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertCounts(observer, 400000, 800000);
+    }
+
+    @Test
+    public void testOldestSlotRolledWhileReading() {
+        // 2/3 unless the reader counts the successes of the oldest slot but not its total.
+        Assertions.assertEquals(0, rollOldestSlotWhileReading(o -> o.getSummary().successes));
+        Assertions.assertEquals(1, rollOldestSlotWhileReading(o -> o.getSummary().total));
+        Assertions.assertEquals(0, rollOldestSlotWhileReading(Observer::successRatio), 0);
+    }
+
+    /**
+     * Reads an observer whose oldest slot has two successes. A writer moves on to the next epoch
+     * right after the reader has read the ticker, which resets the total of the oldest slot but not
+     * yet its successes.
+     */
+    private static double rollOldestSlotWhileReading(ToDoubleFunction<Observer> read) {
+        ManualTicker time = new ManualTicker();
+        // Runs a task right after the next read, as if another thread ran in between.
+        AtomicReference<Runnable> afterRead = new AtomicReference<>();
+        Ticker ticker =
+                new Ticker() {
+                    @Override
+                    public long read() {
+                        final long nanos = time.read();
+                        final Runnable task = afterRead.getAndSet(null);
+                        if (task != null) {
+                            task.run();
+                        }
+                        return nanos;
+                    }
+                };
+        EpochWindowObserver observer = new EpochWindowObserver(ticker, 3, Duration.ofSeconds(1));
+        observer.registerSuccess();
+        observer.registerSuccess();
+        time.advance(Duration.ofSeconds(2));
+        observer.registerFailure();
+
+        afterRead.set(
+                () -> {
+                    time.advance(Duration.ofSeconds(1));
+                    observer.registerFailure();
+                });
+        return read.applyAsDouble(observer);
+    }
+
+    private static void assertCounts(Observer observer, long successes, long total) {
+        Summary summary = observer.getSummary();
+        Assertions.assertEquals(successes, summary.successes);
+        Assertions.assertEquals(total, summary.total);
+        Assertions.assertEquals(1.0 * successes / total, observer.successRatio(), 1e-9);
+    }
+}
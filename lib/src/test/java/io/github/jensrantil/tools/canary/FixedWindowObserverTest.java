@@ -0,0 +1,92 @@
+package io.github.jensrantil.tools.canary;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class FixedWindowObserverTest {
+
+    @Test
+    public void testEmpty() {
+        FixedWindowObserver observer =
+                new FixedWindowObserver(new TestClock(), 3, Duration.ofSeconds(1));
+
+        Assertions.assertEquals(0, observer.getSummary().total);
+        Assertions.assertTrue(Double.isNaN(observer.successRatio()));
+    }
+
+    @Test
+    public void testSlotsExpire() {
+        TestClock clock = new TestClock();
+        FixedWindowObserver observer = new FixedWindowObserver(clock, 3, Duration.ofSeconds(1));
+
+        // Slot 1: 1/1, slot 2: 1/2, slot 3: 0/1.
+        observer.registerSuccess();
+        clock.advance(Duration.ofMillis(1001));
+        observer.registerSuccess();
+        observer.registerFailure();
+        clock.advance(Duration.ofMillis(1000));
+        observer.registerFailure();
+
+        assertCounts(observer, 2, 4);
+
+        // Slot 1 is reused.
+        clock.advance(Duration.ofMillis(1000));
+        assertCounts(observer, 1, 3);
+        observer.registerSuccess();
+        assertCounts(observer, 2, 4);
+
+        clock.advance(Duration.ofMillis(1000));
+        assertCounts(observer, 1, 2);
+    }
+
+    @Test
+    public void testLongIdleResetsAllSlots() {
+        ManualTicker ticker = new ManualTicker();
+        FixedWindowObserver observer = new FixedWindowObserver(ticker, 3, Duration.ofSeconds(1));
+
+        observer.registerSuccess();
+        ticker.advance(Duration.ofSeconds(1));
+        observer.registerFailure();
+        assertCounts(observer, 1, 2);
+
+        ticker.advance(Duration.ofDays(1));
+        Assertions.assertEquals(0, observer.getSummary().total);
+        observer.registerSuccess();
+        assertCounts(observer, 1, 1);
+    }
+
+    private static void assertCounts(Observer observer, long successes, long total) {
+        Summary summary = observer.getSummary();
+        Assertions.assertEquals(successes, summary.successes);
+        Assertions.assertEquals(total, summary.total);
+        Assertions.assertEquals(1.0 * successes / total, observer.successRatio(), 1e-9);
+    }
+
+    private static class TestClock extends Clock {
+        private Instant now = Instant.ofEpochSecond(1_000_000);
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.jensrantil.tools.canary;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class HedgeBudgetTest {
+
+    @Test
+    public void testRatio() {
+        HedgeBudget budget = new HedgeBudget(0.25, 10);
+        int hedges = 0;
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+            if (budget.tryWithdraw()) {
+                hedges++;
+            }
+        }
+        Assertions.assertEquals(25, hedges);
+    }
+
+    @Test
+    public void testBurst() {
+        HedgeBudget budget = new HedgeBudget(0.5, 3);
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        Assertions.assertTrue(budget.tryWithdraw());
+        Assertions.assertTrue(budget.tryWithdraw());
+        Assertions.assertTrue(budget.tryWithdraw());
+        Assertions.assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void testZeroBudget() {
+        HedgeBudget budget = new HedgeBudget(0, 10);
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        Assertions.assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new HedgeBudget(1.5, 10));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new HedgeBudget(0.1, 0));
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.jensrantil.tools.canary;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class HedgeDelayTest {
+
+    @Test
+    public void testUnknownUntilEnoughSamples() {
+        ManualTicker ticker = new ManualTicker();
+        HedgeDelay delay = new HedgeDelay(ticker, 95);
+
+        for (int i = 0; i < HedgeDelay.MIN_SAMPLES - 1; i++) {
+            delay.record(1_000_000);
+        }
+        ticker.advance(Duration.ofSeconds(1));
+        Assertions.assertEquals(-1, delay.nanos());
+
+        // The earlier calls still count since they weren't used.
+        delay.record(1_000_000);
+        ticker.advance(Duration.ofSeconds(1));
+        Assertions.assertTrue(delay.nanos() >= 1_000_000);
+    }
+
+    @Test
+    public void testFollowsRecentCalls() {
+        ManualTicker ticker = new ManualTicker();
+        HedgeDelay delay = new HedgeDelay(ticker, 50);
+
+        for (int i = 0; i < 100; i++) {
+            delay.record(1_000_000);
+        }
+        ticker.advance(Duration.ofSeconds(1));
+        final long fast = delay.nanos();
+
+        for (int i = 0; i < 100; i++) {
+            delay.record(100_000_000);
+        }
+        // Not recomputed within a second.
+        ticker.advance(Duration.ofMillis(500));
+        Assertions.assertEquals(fast, delay.nanos());
+
+        ticker.advance(Duration.ofMillis(500));
+        Assertions.assertTrue(delay.nanos() >= 100_000_000);
+    }
+}
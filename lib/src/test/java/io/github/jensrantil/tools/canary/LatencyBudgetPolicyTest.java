@@ -0,0 +1,141 @@
+package io.github.jensrantil.tools.canary;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import io.github.jensrantil.tools.canary.simulation.Sample;
+import io.github.jensrantil.tools.canary.simulation.SimulationParameters;
+import io.github.jensrantil.tools.canary.simulation.Simulator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LatencyBudgetPolicyTest {
+
+    @Test
+    public void testLatencyFactor() {
+        LatencyBudgetPolicy policy = new LatencyBudgetPolicy(new ManualTicker(), 1.5);
+
+        Assertions.assertEquals(1, policy.latencyFactor(100, 50));
+        Assertions.assertEquals(1, policy.latencyFactor(100, 150));
+        Assertions.assertEquals(0.5, policy.latencyFactor(100, 225), 1e-9);
+        Assertions.assertEquals(0, policy.latencyFactor(100, 300));
+        Assertions.assertEquals(0, policy.latencyFactor(100, 1000));
+        Assertions.assertEquals(1, policy.latencyFactor(0, 0));
+    }
+
+    @Test
+    public void testCutsShareOfSlowImplementation() {
+        ManualTicker ticker = new ManualTicker();
+        LatencyBudgetPolicy policy =
+                new LatencyBudgetPolicy(ticker, 99, 1.5, Duration.ofSeconds(1), 10);
+        LatencyObserver oldObserver = new LatencyObserver(Observer.EMPTY_OBSERVER);
+        LatencyObserver newObserver =
+                new LatencyObserver(new FixedWindowObserver(ticker, 3, Duration.ofHours(1)));
+
+        for (int i = 0; i < 10; i++) {
+            oldObserver.registerSuccess(1_000_000);
+            newObserver.registerSuccess(1_000_000);
+        }
+        Assertions.assertEquals(1, policy.newImplementationShare(oldObserver, newObserver));
+        ticker.advance(Duration.ofSeconds(1));
+        Assertions.assertEquals(1, policy.newImplementationShare(oldObserver, newObserver));
+
+        // Only the durations since the last evaluation count.
+        for (int i = 0; i < 10; i++) {
+            newObserver.registerSuccess(2_250_000);
+        }
+        ticker.advance(Duration.ofMillis(999));
+        Assertions.assertEquals(1, policy.newImplementationShare(oldObserver, newObserver));
+        ticker.advance(Duration.ofMillis(1));
+        Assertions.assertEquals(
+                0.5, policy.newImplementationShare(oldObserver, newObserver), 0.05);
+
+        // Too few calls to reevaluate.
+        for (int i = 0; i < 9; i++) {
+            newObserver.registerSuccess(1_000_000);
+        }
+        ticker.advance(Duration.ofSeconds(1));
+        Assertions.assertEquals(
+                0.5, policy.newImplementationShare(oldObserver, newObserver), 0.05);
+
+        newObserver.registerSuccess(1_000_000);
+        ticker.advance(Duration.ofSeconds(1));
+        Assertions.assertEquals(1, policy.newImplementationShare(oldObserver, newObserver));
+    }
+
+    @Test
+    public void testCopyHasItsOwnState() {
+        ManualTicker ticker = new ManualTicker();
+        LatencyBudgetPolicy policy =
+                new LatencyBudgetPolicy(ticker, 99, 1.5, Duration.ofSeconds(1), 10);
+        RoutingPolicy copy = policy.copy();
+        Assertions.assertNotSame(policy, copy);
+
+        LatencyObserver oldObserver = new LatencyObserver(Observer.EMPTY_OBSERVER);
+        LatencyObserver newObserver =
+                new LatencyObserver(new FixedWindowObserver(ticker, 3, Duration.ofHours(1)));
+        for (int i = 0; i < 10; i++) {
+            oldObserver.registerSuccess(1_000_000);
+            newObserver.registerSuccess(5_000_000);
+        }
+        ticker.advance(Duration.ofSeconds(1));
+        Assertions.assertEquals(0, policy.newImplementationShare(oldObserver, newObserver));
+        Assertions.assertEquals(0, copy.newImplementationShare(oldObserver, newObserver));
+
+        // The copy doesn't see the slowdown of other observers.
+        LatencyObserver fastObserver =
+                new LatencyObserver(new FixedWindowObserver(ticker, 3, Duration.ofHours(1)));
+        fastObserver.registerSuccess(1_000_000);
+        Assertions.assertEquals(
+                1, policy.copy().newImplementationShare(oldObserver, fastObserver));
+        Assertions.assertSame(RoutingPolicy.SUCCESS_RATIO, RoutingPolicy.SUCCESS_RATIO.copy());
+    }
+
+    @Test
+    public void testUnknownWithoutCalls() {
+        ManualTicker ticker = new ManualTicker();
+        LatencyBudgetPolicy policy = new LatencyBudgetPolicy(ticker, 1.5);
+        Observer newObserver =
+                new LatencyObserver(new FixedWindowObserver(ticker, 3, Duration.ofHours(1)));
+
+        Assertions.assertTrue(
+                Double.isNaN(policy.newImplementationShare(Observer.EMPTY_OBSERVER, newObserver)));
+    }
+
+    @Test
+    public void testRejectsInvalidParameters() {
+        ManualTicker ticker = new ManualTicker();
+        Assertions.assertThrows(
+                IllegalArgumentException.class, () -> new LatencyBudgetPolicy(ticker, 0.9));
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> new LatencyBudgetPolicy(ticker, 101, 1.5, Duration.ofSeconds(1), 10));
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> new LatencyBudgetPolicy(ticker, 99, 1.5, Duration.ZERO, 10));
+    }
+
+    @Test
+    public void testSimulatedSlowImplementationLosesCalls() {
+        final SimulationParameters params = new SimulationParameters();
+        params.parse(
+                new String[] {
+                    "--routing-policy", "latency-budget",
+                    "--steps", "6000",
+                    "--phase-shift", "3000",
+                    "--duration-per-step", "PT0.1S",
+                    "--phase1-orig-impl-latency", "PT0.01S",
+                    "--phase1-new-impl-latency", "PT0.01S",
+                    "--phase2-orig-impl-latency", "PT0.01S",
+                    "--phase2-new-impl-latency", "PT0.03S",
+                    "--phase2-new-impl-error-ratio", "0",
+                });
+        List<Sample> samples = new Simulator().simulate(Instant.now(), params);
+
+        // The new implementation is three times slower, twice the budget, from the phase shift.
+        List<Sample> lastSamples = samples.subList(params.steps - 1000, params.steps);
+        long nNewImplCalls = lastSamples.stream().filter(s -> s.newImpl).count();
+        Assertions.assertTrue(nNewImplCalls < 50, "new implementation calls: " + nNewImplCalls);
+        Assertions.assertTrue(lastSamples.stream().noneMatch(s -> s.exceptionThrown));
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.jensrantil.tools.canary;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsAreContiguous() {
+        Assertions.assertEquals(592, LatencyHistogram.BUCKETS);
+        Assertions.assertEquals(0, LatencyHistogram.bucket(0));
+        for (int bucket = 1; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            final long lowest = LatencyHistogram.highestValue(bucket - 1) + 1;
+            Assertions.assertEquals(bucket, LatencyHistogram.bucket(lowest));
+            Assertions.assertEquals(
+                    bucket, LatencyHistogram.bucket(LatencyHistogram.highestValue(bucket)));
+        }
+        Assertions.assertEquals(
+                LatencyHistogram.MAX_NANOS,
+                LatencyHistogram.highestValue(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void testBucketWidth() {
+        for (long nanos = 1; nanos < LatencyHistogram.MAX_NANOS; nanos = nanos * 3 + 1) {
+            final long highest = LatencyHistogram.highestValue(LatencyHistogram.bucket(nanos));
+            Assertions.assertTrue(highest >= nanos);
+            Assertions.assertTrue(highest - nanos <= nanos / 16, "nanos: " + nanos);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assertions.assertEquals(0, histogram.snapshot().count());
+        Assertions.assertEquals(0, histogram.snapshot().valueAtPercentile(99));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1_000_000L);
+        }
+        LatencySnapshot snapshot = histogram.snapshot();
+
+        Assertions.assertEquals(100, snapshot.count());
+        assertApproximately(1_000_000, snapshot.valueAtPercentile(0));
+        assertApproximately(50_000_000, snapshot.valueAtPercentile(50));
+        assertApproximately(99_000_000, snapshot.valueAtPercentile(99));
+        assertApproximately(100_000_000, snapshot.valueAtPercentile(100));
+        Assertions.assertThrows(
+                IllegalArgumentException.class, () -> snapshot.valueAtPercentile(101));
+    }
+
+    @Test
+    public void testOutOfRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+        LatencySnapshot snapshot = histogram.snapshot();
+
+        Assertions.assertEquals(0, snapshot.valueAtPercentile(50));
+        Assertions.assertEquals(LatencyHistogram.MAX_NANOS, snapshot.valueAtPercentile(100));
+    }
+
+    @Test
+    public void testMinus() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000);
+        LatencySnapshot earlier = histogram.snapshot();
+        histogram.record(1_000_000);
+        histogram.record(1_000_000);
+
+        LatencySnapshot difference = histogram.snapshot().minus(earlier);
+        Assertions.assertEquals(2, difference.count());
+        assertApproximately(1_000_000, difference.valueAtPercentile(0));
+        Assertions.assertSame(earlier, earlier.minus(LatencySnapshot.EMPTY));
+    }
+
+    private static void assertApproximately(long expected, long actual) {
+        Assertions.assertTrue(
+                actual >= expected && actual - expected <= expected / 16,
+                "expected about " + expected + ", was " + actual);
+    }
+}
@@ -0,0 +1,96 @@
+package io.github.jensrantil.tools.canary;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LatencyObserverTest {
+
+    interface TestInterface {
+        int call(int value);
+    }
+
+    private static class SlowImplementation implements TestInterface {
+        private final ManualTicker ticker;
+        private final Duration duration;
+
+        SlowImplementation(ManualTicker ticker, Duration duration) {
+            this.ticker = ticker;
+            this.duration = duration;
+        }
+
+        @Override
+        public int call(int value) {
+            ticker.advance(duration);
+            if (value < 0) {
+                throw new IllegalArgumentException();
+            }
+            return value;
+        }
+    }
+
+    @Test
+    public void testDelegates() {
+        FixedWindowObserver delegate =
+                new FixedWindowObserver(new ManualTicker(), 3, Duration.ofSeconds(1));
+        LatencyObserver observer = new LatencyObserver(delegate);
+
+        observer.registerSuccess(1_000);
+        observer.registerFailure(2_000);
+        observer.registerSuccess();
+
+        Assertions.assertTrue(observer.recordsLatency());
+        Assertions.assertEquals(2, observer.latencies().count());
+        Assertions.assertEquals(3, delegate.getSummary().total);
+        Assertions.assertEquals(2, observer.getSummary().successes);
+    }
+
+    @Test
+    public void testTimesCallsOfBothImplementations() {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            ManualTicker ticker = new ManualTicker();
+            LatencyObserver oldLatencies = new LatencyObserver(Observer.EMPTY_OBSERVER);
+            LatencyObserver newLatencies =
+                    new LatencyObserver(new FixedWindowObserver(ticker, 3, Duration.ofHours(1)));
+            TestInterface proxy =
+                    new CircuitBreakerFallbackBuilder()
+                            .ticker(ticker)
+                            .proxyBackend(backend)
+                            .oldObserver(oldLatencies)
+                            .observer(newLatencies)
+                            .build(
+                                    TestInterface.class,
+                                    new SlowImplementation(ticker, Duration.ofMillis(1)),
+                                    new SlowImplementation(ticker, Duration.ofMillis(10)));
+
+            for (int i = 0; i < 100; i++) {
+                proxy.call(i);
+            }
+            Assertions.assertThrows(IllegalArgumentException.class, () -> proxy.call(-1));
+
+            LatencySnapshot oldSnapshot = oldLatencies.latencies();
+            LatencySnapshot newSnapshot = newLatencies.latencies();
+            Assertions.assertEquals(101, oldSnapshot.count() + newSnapshot.count());
+            Assertions.assertTrue(newSnapshot.count() > 0);
+            Assertions.assertEquals(
+                    newSnapshot.count(), newLatencies.getSummary().total, backend.toString());
+            if (oldSnapshot.count() > 0) {
+                Assertions.assertEquals(
+                        1_000_000,
+                        oldSnapshot.valueAtPercentile(100),
+                        1_000_000 / 16,
+                        backend.toString());
+            }
+            Assertions.assertEquals(
+                    10_000_000, newSnapshot.valueAtPercentile(0), 10_000_000 / 16);
+            Assertions.assertEquals(
+                    10_000_000, newSnapshot.valueAtPercentile(100), 10_000_000 / 16);
+        }
+    }
+
+    @Test
+    public void testUntimedObserversAreNotTimed() {
+        Assertions.assertFalse(Observer.EMPTY_OBSERVER.recordsLatency());
+        Assertions.assertEquals(0, Observer.EMPTY_OBSERVER.latencies().count());
+    }
+}
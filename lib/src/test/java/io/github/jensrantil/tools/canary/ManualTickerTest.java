@@ -0,0 +1,21 @@
+package io.github.jensrantil.tools.canary;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ManualTickerTest {
+
+    @Test
+    public void testOnlyMovesWhenTold() {
+        ManualTicker ticker = new ManualTicker();
+        Assertions.assertEquals(0, ticker.read());
+
+        ticker.advance(Duration.ofMillis(3));
+        Assertions.assertEquals(3_000_000, ticker.read());
+        Assertions.assertEquals(3_000_000, ticker.read());
+
+        ticker.set(-1);
+        Assertions.assertEquals(-1, ticker.read());
+    }
+}
@@ -0,0 +1,210 @@
+package io.github.jensrantil.tools.canary;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ProxyFactoryTest {
+
+    @Test
+    public void testGeneratedBackendDoesNotUseJdkProxy() {
+        TestInterface proxy =
+                ProxyFactory.create(
+                        TestInterface.class,
+                        new CountingRouter(new TestImpl()),
+                        ProxyBackend.GENERATED,
+                        TestInterface.class.getClassLoader());
+        Assertions.assertFalse(Proxy.isProxyClass(proxy.getClass()));
+    }
+
+    @Test
+    public void testJdkProxyBackend() {
+        TestInterface proxy =
+                ProxyFactory.create(
+                        TestInterface.class,
+                        new CountingRouter(new TestImpl()),
+                        ProxyBackend.JDK_PROXY,
+                        TestInterface.class.getClassLoader());
+        Assertions.assertTrue(Proxy.isProxyClass(proxy.getClass()));
+    }
+
+    @Test
+    public void testGeneratedBackend() throws Exception {
+        testBackend(ProxyBackend.GENERATED);
+    }
+
+    @Test
+    public void testJdkProxy() throws Exception {
+        testBackend(ProxyBackend.JDK_PROXY);
+    }
+
+    private void testBackend(ProxyBackend backend) throws Exception {
+        CountingRouter router = new CountingRouter(new TestImpl());
+        TestInterface proxy =
+                ProxyFactory.create(
+                        TestInterface.class,
+                        router,
+                        backend,
+                        TestInterface.class.getClassLoader());
+
+        Assertions.assertEquals(
+                "a1true2x3.54.5[6]",
+                proxy.concat("a", 1, true, (short) 2, 'x', 3.5f, 4.5, new long[] {6}));
+        Assertions.assertEquals(Long.MAX_VALUE - 1, proxy.decrement(Long.MAX_VALUE));
+        Assertions.assertEquals(-1.5, proxy.negate(1.5), 0);
+        Assertions.assertEquals(42, proxy.inherited());
+        Assertions.assertEquals("default", proxy.withDefault());
+        proxy.nothing();
+        Assertions.assertEquals(6, router.successes);
+        Assertions.assertEquals(0, router.failures);
+
+        Assertions.assertThrows(IOException.class, proxy::fail);
+        Assertions.assertEquals(1, router.failures);
+        Assertions.assertEquals(router.successes + router.failures, router.begins);
+
+        Assertions.assertEquals("TestImpl", proxy.toString());
+    }
+
+    @Test
+    public void testArgumentsAreOnlyCapturedWhenNeeded() {
+        CountingRouter router = new CountingRouter(new TestImpl());
+        router.capturesArguments = false;
+        TestInterface proxy =
+                ProxyFactory.create(
+                        TestInterface.class,
+                        router,
+                        ProxyBackend.GENERATED,
+                        TestInterface.class.getClassLoader());
+
+        proxy.decrement(1);
+        Assertions.assertNull(router.lastArgs);
+
+        router = new CountingRouter(new TestImpl());
+        proxy =
+                ProxyFactory.create(
+                        TestInterface.class,
+                        router,
+                        ProxyBackend.GENERATED,
+                        TestInterface.class.getClassLoader());
+
+        proxy.decrement(1);
+        Assertions.assertArrayEquals(new Object[] {1L}, router.lastArgs);
+    }
+
+    @Test
+    public void testFallbackToJdkProxyWhenClassCantBeGenerated() throws Exception {
+        // Classes can't be defined in java.util.concurrent.
+        CountingRouter router = new CountingRouter((Callable<String>) () -> "called");
+        Callable<String> proxy =
+                ProxyFactory.create(
+                        Callable.class,
+                        router,
+                        ProxyBackend.GENERATED,
+                        ProxyFactoryTest.class.getClassLoader());
+
+        Assertions.assertTrue(Proxy.isProxyClass(proxy.getClass()));
+        Assertions.assertEquals("called", proxy.call());
+    }
+
+    interface ParentInterface {
+        int inherited();
+    }
+
+    interface TestInterface extends ParentInterface {
+        String concat(String s, int i, boolean b, short sh, char c, float f, double d, long[] l);
+
+        long decrement(long value);
+
+        double negate(double value);
+
+        void nothing();
+
+        void fail() throws IOException;
+
+        default String withDefault() {
+            return "default";
+        }
+    }
+
+    private static class TestImpl implements TestInterface {
+
+        @Override
+        public String concat(
+                String s, int i, boolean b, short sh, char c, float f, double d, long[] l) {
+            return s + i + b + sh + c + f + d + java.util.Arrays.toString(l);
+        }
+
+        @Override
+        public long decrement(long value) {
+            return value - 1;
+        }
+
+        @Override
+        public double negate(double value) {
+            return -value;
+        }
+
+        @Override
+        public void nothing() {
+            // deliberately left empty.
+        }
+
+        @Override
+        public void fail() throws IOException {
+            throw new IOException("expected");
+        }
+
+        @Override
+        public int inherited() {
+            return 42;
+        }
+
+        @Override
+        public String toString() {
+            return "TestImpl";
+        }
+    }
+
+    private static class CountingRouter extends ProxyRouter {
+        private final Object delegate;
+        boolean capturesArguments = true;
+        Object[] lastArgs;
+        int begins;
+        int successes;
+        int failures;
+
+        CountingRouter(Object delegate) {
+            super(delegate instanceof TestInterface ? TestInterface.class : Callable.class);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object route(int ordinal, Object[] args) {
+            lastArgs = args;
+            return delegate;
+        }
+
+        @Override
+        public long begin(int ordinal, Object route) {
+            begins++;
+            return 0;
+        }
+
+        @Override
+        public void success(int ordinal, Object route, long token, Object result) {
+            successes++;
+        }
+
+        @Override
+        public void failure(int ordinal, Object route, long token, Throwable exception) {
+            failures++;
+        }
+
+        @Override
+        boolean capturesArguments(int ordinal) {
+            return capturesArguments;
+        }
+    }
+}
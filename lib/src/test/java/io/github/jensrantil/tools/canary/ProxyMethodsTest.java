@@ -0,0 +1,107 @@
+package io.github.jensrantil.tools.canary;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ProxyMethodsTest {
+
+    @Test
+    public void testOrdinalsIncludeObjectMethods() throws Exception {
+        ProxyMethods methods = ProxyMethods.of(TestInterface.class);
+
+        Assertions.assertEquals(6, methods.size());
+        int ordinal = methods.ordinal(Object.class.getMethod("toString"));
+        Assertions.assertEquals("toString", methods.get(ordinal).getName());
+        Assertions.assertSame(methods, ProxyMethods.of(TestInterface.class));
+    }
+
+    interface AsyncInterface {
+        CompletableFuture<String> future();
+
+        CompletionStage<String> stage();
+
+        Future<String> plainFuture();
+    }
+
+    @Test
+    public void testReturnsCompletionStage() throws Exception {
+        ProxyMethods methods = ProxyMethods.of(AsyncInterface.class);
+
+        Assertions.assertTrue(
+                methods.returnsCompletionStage(
+                        methods.ordinal(AsyncInterface.class.getMethod("future"))));
+        Assertions.assertTrue(
+                methods.returnsCompletionStage(
+                        methods.ordinal(AsyncInterface.class.getMethod("stage"))));
+        // No way to get notified of completion.
+        Assertions.assertFalse(
+                methods.returnsCompletionStage(
+                        methods.ordinal(AsyncInterface.class.getMethod("plainFuture"))));
+        Assertions.assertFalse(
+                methods.returnsCompletionStage(
+                        methods.ordinal(Object.class.getMethod("toString"))));
+    }
+
+    @Test
+    public void testInvoke() throws Throwable {
+        ProxyMethods methods = ProxyMethods.of(TestInterface.class);
+        int add = methods.ordinal(TestInterface.class.getMethod("add", int.class, long.class));
+        int get = methods.ordinal(TestInterface.class.getMethod("get"));
+
+        Assertions.assertEquals(3L, methods.invoke(add, new TestImpl(), new Object[] {1, 2L}));
+        Assertions.assertEquals("get", methods.invoke(get, new TestImpl(), null));
+    }
+
+    @Test
+    public void testInvokeThrowsUnwrappedException() throws Exception {
+        ProxyMethods methods = ProxyMethods.of(TestInterface.class);
+        int fail = methods.ordinal(TestInterface.class.getMethod("fail"));
+
+        TestException thrown =
+                Assertions.assertThrows(
+                        TestException.class, () -> methods.invoke(fail, new TestImpl(), null));
+        Assertions.assertSame(TestImpl.EXCEPTION, thrown);
+    }
+
+    @Test
+    public void testInvokeInterfaceFromAnotherModule() throws Throwable {
+        ProxyMethods methods = ProxyMethods.of(Callable.class);
+        int call = methods.ordinal(Callable.class.getMethod("call"));
+
+        Assertions.assertEquals(
+                "called", methods.invoke(call, (Callable<String>) () -> "called", null));
+    }
+
+    interface TestInterface {
+        long add(int a, long b);
+
+        String get();
+
+        void fail();
+    }
+
+    private static class TestException extends RuntimeException {}
+
+    private static class TestImpl implements TestInterface {
+        static final TestException EXCEPTION = new TestException();
+
+        @Override
+        public long add(int a, long b) {
+            return a + b;
+        }
+
+        @Override
+        public String get() {
+            return "get";
+        }
+
+        @Override
+        public void fail() {
+            throw EXCEPTION;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.jensrantil.tools.canary;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RandomSourceTest {
+    // https://en.wikipedia.org/wiki/42_(number)#The_Hitchhiker's_Guide_to_the_Galaxy
+    private static final long TEST_SEED = 42;
+
+    @Test
+    public void testSeededIsReproducible() {
+        RandomSource first = RandomSource.seeded(TEST_SEED);
+        RandomSource second = RandomSource.seeded(TEST_SEED);
+
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertEquals(first.nextInt(1000), second.nextInt(1000));
+            Assertions.assertEquals(first.nextDouble(), second.nextDouble());
+            Assertions.assertEquals(first.nextBoolean(), second.nextBoolean());
+        }
+    }
+
+    @Test
+    public void testSeededGivesThreadsDifferentSequences() throws InterruptedException {
+        RandomSource random = RandomSource.seeded(TEST_SEED);
+        double mine = random.nextDouble();
+
+        AtomicReference<Double> other = new AtomicReference<>();
+        Thread thread = new Thread(() -> other.set(random.nextDouble()));
+        thread.start();
+        thread.join();
+
+        Assertions.assertNotEquals(mine, other.get().doubleValue());
+    }
+
+    @Test
+    public void testSharedFollowsRandom() {
+        RandomSource random = RandomSource.of(new Random(TEST_SEED));
+        Random expected = new Random(TEST_SEED);
+
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertEquals(expected.nextInt(10), random.nextInt(10));
+        }
+    }
+
+    @Test
+    public void testThreadLocalBounds() {
+        RandomSource random = RandomSource.threadLocal();
+        for (int i = 0; i < 1000; i++) {
+            int value = random.nextInt(3);
+            Assertions.assertTrue(value >= 0 && value < 3);
+            double d = random.nextDouble();
+            Assertions.assertTrue(d >= 0 && d < 1);
+        }
+    }
+}
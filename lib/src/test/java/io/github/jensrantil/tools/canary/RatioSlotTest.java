@@ -0,0 +1,62 @@
+package io.github.jensrantil.tools.canary;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RatioSlotTest {
+
+    @Test
+    public void testCounts() {
+        RatioSlot slot = new RatioSlot();
+        slot.registerSuccess();
+        slot.registerSuccess();
+        slot.registerFailure();
+
+        Summary summary = slot.getSummary();
+        Assertions.assertEquals(2, summary.successes);
+        Assertions.assertEquals(3, summary.total);
+
+        slot.reset();
+        summary = slot.getSummary();
+        Assertions.assertEquals(0, summary.successes);
+        Assertions.assertEquals(0, summary.total);
+    }
+
+    @Test
+    public void testNeverMoreSuccessesThanTotal() throws InterruptedException {
+        RatioSlot slot = new RatioSlot();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            final boolean failures = i % 2 == 0;
+            writers[i] =
+                    new Thread(
+                            () -> {
+                                while (!stop.get()) {
+                                    if (failures) {
+                                        slot.registerFailure();
+                                    } else {
+                                        slot.registerSuccess();
+                                    }
+                                }
+                            });
+            writers[i].start();
+        }
+
+        try {
+            for (int i = 0; i < 100000; i++) {
+                Summary summary = slot.getSummary();
+                Assertions.assertTrue(summary.successes <= summary.total, summary.toString());
+                if (i % 100 == 0) {
+                    slot.reset();
+                }
+            }
+        } finally {
+            stop.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RoutingStateMachineTest {
+    private static final long INTERVAL = Duration.ofSeconds(1).toNanos();
+
+    /** Fails the test if the hot path draws random numbers. */
+    private static final RandomSource NO_RANDOMNESS =
+            new RandomSource() {
+                @Override
+                public int nextInt(int bound) {
+                    throw new AssertionError("drew a random number");
+                }
+
+                @Override
+                public double nextDouble() {
+                    throw new AssertionError("drew a random number");
+                }
+
+                @Override
+                public boolean nextBoolean() {
+                    throw new AssertionError("drew a random number");
+                }
+            };
+
+    private static int callsToNew(RoutingStateMachine machine, RandomSource random, int calls) {
+        int toNew = 0;
+        for (int i = 0; i < calls; i++) {
+            if (machine.routeToNew(random)) {
+                toNew++;
+            }
+        }
+        return toNew;
+    }
+
+    @Test
+    public void testSteadyStatesProbeWithoutRandomness() {
+        ManualTicker ticker = new ManualTicker();
+        FixedWindowObserver observer = new FixedWindowObserver(ticker, 3, Duration.ofHours(1));
+        RoutingStateMachine machine =
+                new RoutingStateMachine(
+                        RoutingPolicy.SUCCESS_RATIO,
+                        Observer.EMPTY_OBSERVER,
+                        observer,
+                        ticker,
+                        INTERVAL,
+                        0.1,
+                        0.05);
+        observer.registerSuccess();
+
+        // Every 20th call probes the old implementation.
+        Assertions.assertEquals(190, callsToNew(machine, NO_RANDOMNESS, 200));
+        Assertions.assertEquals(RoutingStateMachine.State.CLOSED, machine.state());
+
+        // Not reevaluated until the interval has passed.
+        for (int i = 0; i < 10; i++) {
+            observer.registerFailure();
+        }
+        ticker.advance(Duration.ofMillis(999));
+        Assertions.assertEquals(190, callsToNew(machine, NO_RANDOMNESS, 200));
+        Assertions.assertEquals(RoutingStateMachine.State.CLOSED, machine.state());
+
+        // The clock is checked within a clock check period.
+        ticker.advance(Duration.ofMillis(1));
+        callsToNew(machine, RandomSource.seeded(42), RoutingStateMachine.CLOCK_CHECK_PERIOD);
+        Assertions.assertEquals(RoutingStateMachine.State.DEGRADED, machine.state());
+    }
+
+    @Test
+    public void testSteadyStatesReadTheTickerPeriodically() throws InterruptedException {
+        ManualTicker ticker = new ManualTicker();
+        FixedWindowObserver observer = new FixedWindowObserver(ticker, 3, Duration.ofHours(1));
+        observer.registerSuccess();
+        AtomicInteger reads = new AtomicInteger();
+        RoutingStateMachine machine =
+                new RoutingStateMachine(
+                        RoutingPolicy.SUCCESS_RATIO,
+                        Observer.EMPTY_OBSERVER,
+                        observer,
+                        new Ticker() {
+                            @Override
+                            public long read() {
+                                reads.incrementAndGet();
+                                return ticker.read();
+                            }
+                        },
+                        INTERVAL,
+                        0.1,
+                        0.05);
+        reads.set(0);
+
+        int period = RoutingStateMachine.CLOCK_CHECK_PERIOD;
+        callsToNew(machine, NO_RANDOMNESS, 10 * period);
+        Assertions.assertEquals(10, reads.get());
+
+        // Another thread counts its own calls, and checks the clock on its first one.
+        Thread other = new Thread(() -> machine.routeToNew(NO_RANDOMNESS));
+        other.start();
+        other.join();
+        Assertions.assertEquals(11, reads.get());
+    }
+
+    @Test
+    public void testTransitions() {
+        ManualTicker ticker = new ManualTicker();
+        FixedWindowObserver observer = new FixedWindowObserver(ticker, 3, Duration.ofHours(1));
+        RoutingStateMachine machine =
+                new RoutingStateMachine(
+                        RoutingPolicy.SUCCESS_RATIO,
+                        Observer.EMPTY_OBSERVER,
+                        observer,
+                        ticker,
+                        INTERVAL,
+                        0.1,
+                        0.05);
+        RandomSource random = RandomSource.seeded(42);
+
+        // Nothing known yet, calls are split evenly.
+        Assertions.assertEquals(500, callsToNew(machine, random, 1000), 50);
+        Assertions.assertEquals(RoutingStateMachine.State.DEGRADED, machine.state());
+
+        observer.registerFailure();
+        ticker.advance(Duration.ofSeconds(1));
+        Assertions.assertEquals(10, callsToNew(machine, NO_RANDOMNESS, 200));
+        Assertions.assertEquals(RoutingStateMachine.State.OPEN, machine.state());
+
+        observer.registerSuccess();
+        observer.registerSuccess();
+        observer.registerSuccess();
+        ticker.advance(Duration.ofSeconds(1));
+        // 0.75 of the calls, less half of the 10% that explore.
+        Assertions.assertEquals(725, callsToNew(machine, random, 1000), 50);
+        Assertions.assertEquals(RoutingStateMachine.State.DEGRADED, machine.state());
+    }
+
+    @Test
+    public void testHysteresis() {
+        ManualTicker ticker = new ManualTicker();
+        FixedWindowObserver observer = new FixedWindowObserver(ticker, 3, Duration.ofHours(1));
+        RoutingStateMachine machine =
+                new RoutingStateMachine(
+                        RoutingPolicy.SUCCESS_RATIO,
+                        Observer.EMPTY_OBSERVER,
+                        observer,
+                        ticker,
+                        INTERVAL,
+                        0.1,
+                        0.05);
+        for (int i = 0; i < 100; i++) {
+            observer.registerSuccess();
+        }
+        machine.routeToNew(NO_RANDOMNESS);
+        Assertions.assertEquals(RoutingStateMachine.State.CLOSED, machine.state());
+
+        // A single failure in a healthy window stays CLOSED.
+        observer.registerFailure();
+        ticker.advance(Duration.ofSeconds(1));
+        Assertions.assertEquals(
+                RoutingStateMachine.CLOCK_CHECK_PERIOD,
+                callsToNew(machine, NO_RANDOMNESS, RoutingStateMachine.CLOCK_CHECK_PERIOD));
+        Assertions.assertEquals(RoutingStateMachine.State.CLOSED, machine.state());
+
+        // More failures than the band allows don't.
+        for (int i = 0; i < 5; i++) {
+            observer.registerFailure();
+        }
+        ticker.advance(Duration.ofSeconds(1));
+        callsToNew(machine, RandomSource.seeded(42), RoutingStateMachine.CLOCK_CHECK_PERIOD);
+        Assertions.assertEquals(RoutingStateMachine.State.DEGRADED, machine.state());
+
+        // Nor is CLOSED entered again until the share is 1.
+        for (int i = 0; i < 1000; i++) {
+            observer.registerSuccess();
+        }
+        ticker.advance(Duration.ofSeconds(1));
+        machine.routeToNew(RandomSource.seeded(42));
+        Assertions.assertEquals(RoutingStateMachine.State.DEGRADED, machine.state());
+    }
+
+    @Test
+    public void testFlapsWithoutHysteresis() {
+        ManualTicker ticker = new ManualTicker();
+        FixedWindowObserver observer = new FixedWindowObserver(ticker, 3, Duration.ofHours(1));
+        RoutingStateMachine machine =
+                new RoutingStateMachine(
+                        RoutingPolicy.SUCCESS_RATIO,
+                        Observer.EMPTY_OBSERVER,
+                        observer,
+                        ticker,
+                        INTERVAL,
+                        0.1,
+                        0);
+        for (int i = 0; i < 100; i++) {
+            observer.registerSuccess();
+        }
+        machine.routeToNew(NO_RANDOMNESS);
+        Assertions.assertEquals(RoutingStateMachine.State.CLOSED, machine.state());
+
+        observer.registerFailure();
+        ticker.advance(Duration.ofSeconds(1));
+        callsToNew(machine, RandomSource.seeded(42), RoutingStateMachine.CLOCK_CHECK_PERIOD);
+        Assertions.assertEquals(RoutingStateMachine.State.DEGRADED, machine.state());
+    }
+
+    @Test
+    public void testNoProbesWithoutEpsilon() {
+        ManualTicker ticker = new ManualTicker();
+        FixedWindowObserver observer = new FixedWindowObserver(ticker, 3, Duration.ofHours(1));
+        observer.registerSuccess();
+        RoutingStateMachine machine =
+                new RoutingStateMachine(
+                        RoutingPolicy.SUCCESS_RATIO,
+                        Observer.EMPTY_OBSERVER,
+                        observer,
+                        ticker,
+                        INTERVAL,
+                        0,
+                        0.05);
+        Assertions.assertEquals(1000, callsToNew(machine, NO_RANDOMNESS, 1000));
+    }
+}
@@ -0,0 +1,235 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Equivalence;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ShadowBuilderTest {
+
+    interface TestInterface {
+        int square(int value);
+
+        String name(String value);
+    }
+
+    private static class Primary implements TestInterface {
+        final List<Integer> calls = new ArrayList<>();
+
+        @Override
+        public int square(int value) {
+            calls.add(value);
+            return value * value;
+        }
+
+        @Override
+        public String name(String value) {
+            return value;
+        }
+    }
+
+    /** Wrong for negative values, slower, and throws on 13. */
+    private static class Shadow implements TestInterface {
+        private final ManualTicker ticker;
+        final List<Integer> calls = new ArrayList<>();
+
+        Shadow(ManualTicker ticker) {
+            this.ticker = ticker;
+        }
+
+        @Override
+        public int square(int value) {
+            calls.add(value);
+            ticker.advance(Duration.ofMillis(5));
+            if (value == 13) {
+                throw new IllegalStateException();
+            }
+            return value < 0 ? -value * value : value * value;
+        }
+
+        @Override
+        public String name(String value) {
+            return value;
+        }
+    }
+
+    @Test
+    public void testShadowsAndCompares() throws Exception {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            ManualTicker ticker = new ManualTicker();
+            Primary primary = new Primary();
+            Shadow shadow = new Shadow(ticker);
+            ShadowStatistics statistics = new ShadowStatistics();
+            TestInterface proxy =
+                    new ShadowBuilder<TestInterface>()
+                            .sampleRate(1)
+                            .executor(Runnable::run)
+                            .compareResults(Equivalence.equals())
+                            .statistics(statistics)
+                            .ticker(ticker)
+                            .proxyBackend(backend)
+                            .build(TestInterface.class, primary, shadow);
+
+            for (int i = -5; i < 15; i++) {
+                Assertions.assertEquals(i * i, proxy.square(i));
+            }
+            Assertions.assertEquals(20, primary.calls.size());
+            Assertions.assertEquals(primary.calls, shadow.calls);
+
+            ShadowStatistics.MethodStatistics square =
+                    statistics.forMethod(TestInterface.class.getMethod("square", int.class));
+            Assertions.assertEquals(20, square.shadowed(), backend.toString());
+            Assertions.assertEquals(0, square.shed());
+            Assertions.assertEquals(1, square.shadowFailures());
+            Assertions.assertEquals(20, square.comparisons());
+            // -5 to -1, and 13.
+            Assertions.assertEquals(6, square.mismatches(), backend.toString());
+            Assertions.assertEquals(0.3, square.mismatchRatio(), 1e-9);
+            Assertions.assertEquals(20, square.shadowLatencies().count());
+            Assertions.assertEquals(
+                    5_000_000, square.shadowLatencies().valueAtPercentile(50), 5_000_000 / 16);
+            Assertions.assertEquals(0, square.primaryLatencies().valueAtPercentile(100));
+
+            // Object methods aren't shadowed.
+            proxy.toString();
+            for (Method method : statistics.methods().keySet()) {
+                Assertions.assertNotEquals(Object.class, method.getDeclaringClass());
+            }
+        }
+    }
+
+    interface AsyncInterface {
+        CompletableFuture<String> call(CompletableFuture<String> future);
+    }
+
+    @Test
+    public void testAsyncCallsAreTimedUntilCompleted() throws Exception {
+        for (ProxyBackend backend : ProxyBackend.values()) {
+            ManualTicker ticker = new ManualTicker();
+            ShadowStatistics statistics = new ShadowStatistics();
+            CompletableFuture<String> primaryFuture = new CompletableFuture<>();
+            CompletableFuture<String> shadowFuture = new CompletableFuture<>();
+            AsyncInterface proxy =
+                    new ShadowBuilder<AsyncInterface>()
+                            .sampleRate(1)
+                            .executor(Runnable::run)
+                            .maxInFlight(1)
+                            .statistics(statistics)
+                            .ticker(ticker)
+                            .proxyBackend(backend)
+                            .build(
+                                    AsyncInterface.class,
+                                    future -> primaryFuture,
+                                    future -> shadowFuture);
+            ShadowStatistics.MethodStatistics call =
+                    statistics.forMethod(
+                            AsyncInterface.class.getMethod("call", CompletableFuture.class));
+
+            Assertions.assertSame(primaryFuture, proxy.call(null));
+            Assertions.assertEquals(0, call.primaryLatencies().count(), backend.toString());
+            Assertions.assertEquals(0, call.shadowed(), backend.toString());
+            // Still in flight.
+            proxy.call(null);
+            Assertions.assertEquals(1, call.shed(), backend.toString());
+
+            ticker.advance(Duration.ofMillis(5));
+            primaryFuture.complete("primary");
+            ticker.advance(Duration.ofMillis(5));
+            shadowFuture.completeExceptionally(new IllegalStateException());
+
+            // Also the primary call of the shed one.
+            Assertions.assertEquals(2, call.primaryLatencies().count(), backend.toString());
+            Assertions.assertEquals(
+                    5_000_000, call.primaryLatencies().valueAtPercentile(50), 5_000_000 / 16);
+            Assertions.assertEquals(1, call.shadowed(), backend.toString());
+            Assertions.assertEquals(1, call.shadowFailures(), backend.toString());
+            Assertions.assertEquals(
+                    10_000_000, call.shadowLatencies().valueAtPercentile(50), 10_000_000 / 16);
+
+            // No longer in flight.
+            proxy.call(null);
+            Assertions.assertEquals(1, call.shed(), backend.toString());
+        }
+    }
+
+    @Test
+    public void testSampleRate() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        Shadow shadow = new Shadow(ticker);
+        ShadowStatistics statistics = new ShadowStatistics();
+        TestInterface proxy =
+                new ShadowBuilder<TestInterface>()
+                        .sampleRate(0)
+                        .executor(Runnable::run)
+                        .statistics(statistics)
+                        .build(TestInterface.class, new Primary(), shadow);
+
+        for (int i = 0; i < 100; i++) {
+            proxy.square(i);
+        }
+        Assertions.assertTrue(shadow.calls.isEmpty());
+        Assertions.assertEquals(
+                0,
+                statistics
+                        .forMethod(TestInterface.class.getMethod("square", int.class))
+                        .comparisons());
+    }
+
+    @Test
+    public void testShedsWhenTooManyInFlight() throws Exception {
+        ShadowStatistics statistics = new ShadowStatistics();
+        List<Runnable> queued = new ArrayList<>();
+        TestInterface proxy =
+                new ShadowBuilder<TestInterface>()
+                        .sampleRate(1)
+                        .executor(queued::add)
+                        .maxInFlight(3)
+                        .statistics(statistics)
+                        .build(TestInterface.class, new Primary(), new Primary());
+
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals("name", proxy.name("name"));
+        }
+        ShadowStatistics.MethodStatistics name =
+                statistics.forMethod(TestInterface.class.getMethod("name", String.class));
+        Assertions.assertEquals(3, queued.size());
+        Assertions.assertEquals(7, name.shed());
+
+        // Running the queued calls makes room for new ones.
+        for (Runnable runnable : queued) {
+            runnable.run();
+        }
+        queued.clear();
+        proxy.name("name");
+        Assertions.assertEquals(1, queued.size());
+        Assertions.assertEquals(3, name.shadowed());
+        Assertions.assertEquals(0, name.comparisons());
+    }
+
+    @Test
+    public void testDefaultExecutor() throws Exception {
+        CountDownLatch shadowed = new CountDownLatch(1);
+        TestInterface proxy =
+                new ShadowBuilder<TestInterface>()
+                        .sampleRate(1)
+                        .build(
+                                TestInterface.class,
+                                new Primary(),
+                                new Primary() {
+                                    @Override
+                                    public String name(String value) {
+                                        shadowed.countDown();
+                                        return value;
+                                    }
+                                });
+
+        proxy.name("name");
+        Assertions.assertTrue(shadowed.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.collect.Sets;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ShardKeyHashingTest {
+    private static final long SEED = 42;
+
+    @Test
+    public void testCharsAreHashedLikeTheirUtf16Bytes() {
+        String[] keys = {"", "a", "abc", "abcd", "user-1234567", "\u00e5\u00e4\u00f6-\u20ac"};
+        for (String key : keys) {
+            Assertions.assertEquals(
+                    ShardKeyHashing.hashBytes(SEED, key.getBytes(StandardCharsets.UTF_16LE)),
+                    ShardKeyHashing.hashChars(SEED, key));
+            Assertions.assertEquals(
+                    ShardKeyHashing.hashChars(SEED, key),
+                    ShardKeyHashing.hashChars(SEED, new StringBuilder(key)));
+        }
+    }
+
+    @Test
+    public void testUuidIsHashedLikeItsBytes() {
+        UUID key = new UUID(0x0123456789abcdefL, 0xfedcba9876543210L);
+        byte[] bytes =
+                ByteBuffer.allocate(16)
+                        .order(ByteOrder.LITTLE_ENDIAN)
+                        .putLong(key.getMostSignificantBits())
+                        .putLong(key.getLeastSignificantBits())
+                        .array();
+        Assertions.assertEquals(
+                ShardKeyHashing.hashBytes(SEED, bytes), ShardKeyHashing.hashUuid(SEED, key));
+    }
+
+    @Test
+    public void testSeedChangesHash() {
+        Assertions.assertNotEquals(
+                ShardKeyHashing.hashLong(1, 1234), ShardKeyHashing.hashLong(2, 1234));
+        Assertions.assertNotEquals(
+                ShardKeyHashing.hashChars(1, "1234"), ShardKeyHashing.hashChars(2, "1234"));
+    }
+
+    @Test
+    public void testSequentialKeysSpreadOverHighBits() {
+        // String#hashCode() of these only differ in the lowest bits.
+        Set<Long> topBytes = Sets.newHashSet();
+        for (int i = 0; i < 1000; i++) {
+            topBytes.add(ShardKeyHashing.hashChars(SEED, "user-" + i) >>> 56);
+        }
+        Assertions.assertTrue(topBytes.size() > 200, "only " + topBytes.size());
+    }
+}
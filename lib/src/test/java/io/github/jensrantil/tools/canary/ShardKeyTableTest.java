@@ -0,0 +1,113 @@
+package io.github.jensrantil.tools.canary;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ShardKeyTableTest {
+
+    @Test
+    public void testResolution() throws Exception {
+        ProxyMethods methods = ProxyMethods.of(TestInterface.class);
+        ShardKeyTable keys = new ShardKeyTable(methods);
+
+        int first =
+                methods.ordinal(TestInterface.class.getMethod("first", String.class, long.class));
+        Assertions.assertEquals(0, keys.parameter(first));
+        Assertions.assertTrue(keys.isParameter(first));
+        Assertions.assertEquals("a", keys.key(first, new Object[] {"a", 1L}));
+
+        int annotated =
+                methods.ordinal(
+                        TestInterface.class.getMethod("annotated", String.class, long.class));
+        Assertions.assertEquals(1, keys.parameter(annotated));
+        Assertions.assertEquals(long.class, keys.keyType(annotated));
+        Assertions.assertEquals(1L, keys.key(annotated, new Object[] {"a", 1L}));
+
+        int none = methods.ordinal(TestInterface.class.getMethod("none"));
+        Assertions.assertEquals(ShardKeyTable.NO_KEY, keys.parameter(none));
+        Assertions.assertNull(keys.keyType(none));
+
+        int equals = methods.ordinal(Object.class.getMethod("equals", Object.class));
+        Assertions.assertEquals(ShardKeyTable.NO_KEY, keys.parameter(equals));
+    }
+
+    @Test
+    public void testPath() throws Exception {
+        ProxyMethods methods = ProxyMethods.of(TestInterface.class);
+        ShardKeyTable keys = new ShardKeyTable(methods);
+        Request request = new Request(new Customer(42, "id-42"));
+
+        int path = methods.ordinal(TestInterface.class.getMethod("path", Request.class));
+        Assertions.assertFalse(keys.isParameter(path));
+        Assertions.assertEquals(String.class, keys.keyType(path));
+        Assertions.assertEquals("id-42", keys.key(path, new Object[] {request}));
+
+        int field = methods.ordinal(TestInterface.class.getMethod("field", Request.class));
+        Assertions.assertEquals(long.class, keys.keyType(field));
+        Assertions.assertEquals(42L, keys.key(field, new Object[] {request}));
+
+        Assertions.assertThrows(
+                NullPointerException.class,
+                () -> keys.key(path, new Object[] {new Request(null)}));
+    }
+
+    @Test
+    public void testIllegalArgumentOnUnknownPath() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> new ShardKeyTable(ProxyMethods.of(UnknownPathInterface.class)));
+    }
+
+    @Test
+    public void testIllegalArgumentOnMultipleKeys() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> new ShardKeyTable(ProxyMethods.of(MultipleKeysInterface.class)));
+    }
+
+    interface TestInterface {
+        void first(String a, long b);
+
+        void annotated(String a, @ShardKey long b);
+
+        void none();
+
+        void path(@ShardKey("customer.id") Request request);
+
+        void field(@ShardKey("customer.number") Request request);
+    }
+
+    interface UnknownPathInterface {
+        void path(@ShardKey("customer.unknown") Request request);
+    }
+
+    interface MultipleKeysInterface {
+        void keys(@ShardKey String a, @ShardKey String b);
+    }
+
+    public static class Request {
+        private final Customer customer;
+
+        Request(Customer customer) {
+            this.customer = customer;
+        }
+
+        public Customer getCustomer() {
+            return customer;
+        }
+    }
+
+    public static class Customer {
+        public final long number;
+        private final String id;
+
+        Customer(long number, String id) {
+            this.number = number;
+            this.id = id;
+        }
+
+        public String id() {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class SmoothWeightedRoundRobinSelectorTest {
+
+    @Test
+    public void testNginxOrder() {
+        SmoothWeightedRoundRobinSelector<String> selector =
+                new SmoothWeightedRoundRobinSelector<>(
+                        ImmutableList.of(
+                                new WeightedImplementation<>(5, "a"),
+                                new WeightedImplementation<>(1, "b"),
+                                new WeightedImplementation<>(1, "c")));
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 14; i++) {
+            order.append(selector.select(null, null));
+        }
+        Assertions.assertEquals("aabacaaaabacaa", order.toString());
+    }
+
+    @Test
+    public void testCanaryIsEvenlySpread() {
+        SmoothWeightedRoundRobinSelector<String> selector =
+                new SmoothWeightedRoundRobinSelector<>(
+                        ImmutableList.of(
+                                new WeightedImplementation<>(990, "old"),
+                                new WeightedImplementation<>(10, "new")));
+
+        List<Integer> newPositions = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            if (selector.select(null, null).equals("new")) {
+                newPositions.add(i);
+            }
+        }
+
+        // Reduced to weights 99 and 1, so new is called exactly every 100th call.
+        Assertions.assertEquals(10, newPositions.size());
+        for (int i = 1; i < newPositions.size(); i++) {
+            Assertions.assertEquals(100, newPositions.get(i) - newPositions.get(i - 1));
+        }
+    }
+
+    @Test
+    public void testExactProportionsAcrossThreads() throws InterruptedException {
+        SmoothWeightedRoundRobinSelector<String> selector =
+                new SmoothWeightedRoundRobinSelector<>(
+                        ImmutableList.of(
+                                new WeightedImplementation<>(3, "a"),
+                                new WeightedImplementation<>(7, "b")));
+
+        ConcurrentHashMultiset<String> counts = ConcurrentHashMultiset.create();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread =
+                    new Thread(
+                            () -> {
+                                for (int i = 0; i < 10000; i++) {
+                                    counts.add(selector.select(null, null));
+                                }
+                            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assertions.assertEquals(12000, counts.count("a"));
+        Assertions.assertEquals(28000, counts.count("b"));
+    }
+
+    @Test
+    public void testIllegalArgumentOnTooLongSchedule() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        new SmoothWeightedRoundRobinSelector<>(
+                                ImmutableList.of(
+                                        new WeightedImplementation<>(1 << 20, "a"),
+                                        new WeightedImplementation<>(1, "b"))));
+    }
+
+    @Test
+    public void testBuilder() {
+        TestInterface proxy =
+                new WeightedRoundRobinBuilder<TestInterface>()
+                        .add(1, () -> 1)
+                        .add(2, () -> 2)
+                        .mode(WeightedRoundRobinBuilder.Mode.SMOOTH)
+                        .build(TestInterface.class);
+
+        int sum = 0;
+        for (int i = 0; i < 300; i++) {
+            sum += proxy.method();
+        }
+        Assertions.assertEquals(100 * 1 + 200 * 2, sum);
+    }
+
+    interface TestInterface {
+        int method();
+    }
+}
@@ -0,0 +1,123 @@
+package io.github.jensrantil.tools.canary;
+
+import com.google.common.base.Ticker;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class StripedWindowObserverTest {
+
+    @Test
+    public void testStripesRoundedUpToPowerOfTwo() {
+        ManualTicker ticker = new ManualTicker();
+
+        Assertions.assertEquals(
+                1, new StripedWindowObserver(ticker, 1, 3, Duration.ofSeconds(1)).stripes());
+        Assertions.assertEquals(
+                8, new StripedWindowObserver(ticker, 5, 3, Duration.ofSeconds(1)).stripes());
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> new StripedWindowObserver(ticker, 0, 3, Duration.ofSeconds(1)));
+    }
+
+    @Test
+    public void testClock() {
+        StripedWindowObserver observer =
+                new StripedWindowObserver(Clock.systemUTC(), 4, 3, Duration.ofSeconds(10));
+        observer.registerSuccess();
+        Assertions.assertEquals(1, observer.getSummary().total);
+    }
+
+    @Test
+    public void testEmpty() {
+        StripedWindowObserver observer =
+                new StripedWindowObserver(new ManualTicker(), 4, 3, Duration.ofSeconds(1));
+
+        Assertions.assertEquals(0, observer.getSummary().total);
+        Assertions.assertTrue(Double.isNaN(observer.successRatio()));
+    }
+
+    @Test
+    public void testSumsAllStripes() throws InterruptedException {
+        ManualTicker ticker = new ManualTicker();
+        StripedWindowObserver observer =
+                new StripedWindowObserver(ticker, 16, 3, Duration.ofSeconds(1));
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            final boolean success = i % 4 != 0;
+            threads.add(
+                    new Thread(
+                            () -> {
+                                for (int j = 0; j < 100; j++) {
+                                    if (success) {
+                                        observer.registerSuccess();
+                                    } else {
+                                        observer.registerFailure();
+                                    }
+                                }
+                            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Summary summary = observer.getSummary();
+        Assertions.assertEquals(2400, summary.successes);
+        Assertions.assertEquals(3200, summary.total);
+        Assertions.assertEquals(0.75, observer.successRatio(), 1e-9);
+    }
+
+    @Test
+    public void testSlotsExpire() {
+        ManualTicker ticker = new ManualTicker();
+        StripedWindowObserver observer =
+                new StripedWindowObserver(ticker, 4, 2, Duration.ofSeconds(1));
+
+        observer.registerSuccess();
+        ticker.advance(Duration.ofSeconds(1));
+        observer.registerFailure();
+        Assertions.assertEquals(2, observer.getSummary().total);
+
+        ticker.advance(Duration.ofSeconds(1));
+        Summary summary = observer.getSummary();
+        Assertions.assertEquals(0, summary.successes);
+        Assertions.assertEquals(1, summary.total);
+
+        ticker.advance(Duration.ofSeconds(1));
+        Assertions.assertEquals(0, observer.getSummary().total);
+    }
+
+    @Test
+    public void testSuccessRatioReadsTheTickerOnce() {
+        ManualTicker manual = new ManualTicker();
+        AtomicInteger reads = new AtomicInteger();
+        Ticker ticker =
+                new Ticker() {
+                    @Override
+                    public long read() {
+                        reads.incrementAndGet();
+                        return manual.read();
+                    }
+                };
+        StripedWindowObserver observer =
+                new StripedWindowObserver(ticker, 8, 2, Duration.ofSeconds(1));
+        observer.registerSuccess();
+        observer.registerFailure();
+
+        reads.set(0);
+        Assertions.assertEquals(0.5, observer.successRatio(), 1e-9);
+        Assertions.assertEquals(1, reads.get());
+
+        // Expired slots are rolled out, like by getSummary.
+        manual.advance(Duration.ofSeconds(5));
+        Assertions.assertTrue(Double.isNaN(observer.successRatio()));
+    }
+}
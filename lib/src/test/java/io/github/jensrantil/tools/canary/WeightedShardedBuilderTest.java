@@ -1,6 +1,7 @@
 package io.github.jensrantil.tools.canary;
 
 import com.google.common.hash.HashCode;
+import java.lang.reflect.Proxy;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -18,6 +19,114 @@ public class WeightedShardedBuilderTest {
         Assertions.assertNotNull(proxy);
     }
 
+    @Test
+    public void testPrimitiveKeyRoutesLikeJdkProxy() {
+        WeightedShardedBuilder<LongInterface> builder =
+                new WeightedShardedBuilder<LongInterface>()
+                        .keyType(WeightedShardedBuilder.KeyType.LONG)
+                        .add(1, key -> 1)
+                        .add(1, key -> 2);
+        LongInterface generated = builder.build(LongInterface.class, TEST_HASH_CODE);
+        LongInterface jdkProxy =
+                builder.proxyBackend(ProxyBackend.JDK_PROXY)
+                        .build(LongInterface.class, TEST_HASH_CODE);
+        Assertions.assertFalse(Proxy.isProxyClass(generated.getClass()));
+
+        int[] counts = new int[3];
+        for (long key = 0; key < 1000; key++) {
+            int result = generated.method(key);
+            Assertions.assertEquals(jdkProxy.method(key), result);
+            counts[result]++;
+        }
+        Assertions.assertEquals(500, counts[1], 50);
+    }
+
+    @Test
+    public void testDefaultRoute() {
+        AnnotatedInterface defaultRoute = new AnnotatedImpl(0);
+        AnnotatedInterface proxy =
+                new WeightedShardedBuilder<AnnotatedInterface>()
+                        .keyType(WeightedShardedBuilder.KeyType.LONG)
+                        .defaultRoute(defaultRoute)
+                        .add(1, new AnnotatedImpl(1))
+                        .add(1, new AnnotatedImpl(2))
+                        .build(AnnotatedInterface.class, TEST_HASH_CODE);
+
+        Assertions.assertEquals(0, proxy.unkeyed());
+        Assertions.assertEquals("AnnotatedImpl0", proxy.toString());
+    }
+
+    @Test
+    public void testIllegalArgumentWithoutDefaultRoute() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        new WeightedShardedBuilder<AnnotatedInterface>()
+                                .add(1, new AnnotatedImpl(1))
+                                .build(AnnotatedInterface.class, TEST_HASH_CODE));
+    }
+
+    @Test
+    public void testAnnotatedKeyRoutesLikeJdkProxy() {
+        WeightedShardedBuilder<AnnotatedInterface> builder =
+                new WeightedShardedBuilder<AnnotatedInterface>()
+                        .keyType(WeightedShardedBuilder.KeyType.LONG)
+                        .defaultRoute(new AnnotatedImpl(0))
+                        .add(1, new AnnotatedImpl(1))
+                        .add(1, new AnnotatedImpl(2));
+        AnnotatedInterface generated = builder.build(AnnotatedInterface.class, TEST_HASH_CODE);
+        AnnotatedInterface jdkProxy =
+                builder.proxyBackend(ProxyBackend.JDK_PROXY)
+                        .build(AnnotatedInterface.class, TEST_HASH_CODE);
+
+        for (long key = 0; key < 1000; key++) {
+            int result = generated.keyed("ignored-" + key, key);
+            Assertions.assertEquals(jdkProxy.keyed("other-" + key, key), result);
+            // Same key, same implementation, regardless of the method.
+            Assertions.assertEquals(jdkProxy.method(key), result);
+        }
+    }
+
+    interface AnnotatedInterface {
+        int keyed(String ignored, @ShardKey long key);
+
+        int method(long key);
+
+        int unkeyed();
+    }
+
+    private static class AnnotatedImpl implements AnnotatedInterface {
+        private final int result;
+
+        AnnotatedImpl(int result) {
+            this.result = result;
+        }
+
+        @Override
+        public int keyed(String ignored, long key) {
+            return result;
+        }
+
+        @Override
+        public int method(long key) {
+            return result;
+        }
+
+        @Override
+        public int unkeyed() {
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "AnnotatedImpl" + result;
+        }
+    }
+
+    interface LongInterface {
+        int method(long key);
+    }
+
     interface TestInterface {
         void method(String key);
     }
@@ -3,6 +3,8 @@ package io.github.jensrantil.tools.canary;
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.lang.reflect.Method;
 import java.util.Objects;
 import java.util.Random;
 import org.junit.jupiter.api.Assertions;
@@ -13,6 +15,17 @@ public class WeightedShardedSelectorTest {
     // https://en.wikipedia.org/wiki/42_(number)#The_Hitchhiker's_Guide_to_the_Galaxy
     private static final int TEST_SEED = 42;
     private static final HashCode TEST_HASH_CODE_SEED = HashCode.fromInt(43);
+    private static final Method TEST_METHOD;
+    private static final Method STRING_METHOD;
+
+    static {
+        try {
+            TEST_METHOD = TestInterface.class.getMethod("method", Integer.class);
+            STRING_METHOD = StringInterface.class.getMethod("method", String.class);
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+    }
 
     @Test
     public void testBasicCall() {
@@ -27,7 +40,7 @@ public class WeightedShardedSelectorTest {
                         WeightedShardedSelector.FIRST_PARAM_SELECTOR,
                         wImplementations);
 
-        TestInterface delegate = selector.select(null, new Object[] {"key"});
+        TestInterface delegate = selector.select(TEST_METHOD, new Object[] {"key"});
         Assertions.assertNotNull(delegate);
     }
 
@@ -48,7 +61,7 @@ public class WeightedShardedSelectorTest {
         int iterations = 500000;
         Random random = new Random(TEST_SEED);
         for (int i = 0; i < iterations; i++) {
-            TestInterface delegate = selector.select(null, new Object[] {random.nextInt()});
+            TestInterface delegate = selector.select(TEST_METHOD, new Object[] {random.nextInt()});
             Assertions.assertNotNull(delegate);
             counts.add(delegate);
         }
@@ -62,6 +75,138 @@ public class WeightedShardedSelectorTest {
         Assertions.assertEquals(0.01, 1.0 * callsToFirstImplementation / counts.size(), 0.001);
     }
 
+    @Test
+    public void testSameAssignmentsAsGuavaHashing() {
+        Random random = new Random(TEST_SEED);
+        for (int weights : new int[] {1, 2, 7, 100, 1 << 16, (1 << 16) + 1, 1 << 20}) {
+            ImmutableList<WeightedImplementation<TestInterface>> wImplementations =
+                    ImmutableList.of(
+                            new WeightedImplementation(weights / 3 + 1, new TestImplementation(1)),
+                            new WeightedImplementation(weights, new TestImplementation(2)),
+                            new WeightedImplementation(1, new TestImplementation(3)));
+            int total = weights / 3 + 1 + weights + 1;
+
+            for (int s = 0; s < 20; s++) {
+                HashCode seed = HashCode.fromInt(random.nextInt());
+                WeightedShardedSelector<TestInterface> selector =
+                        new WeightedShardedSelector(
+                                TestInterface.class,
+                                seed,
+                                WeightedShardedSelector.FIRST_PARAM_SELECTOR,
+                                wImplementations);
+
+                for (int i = 0; i < 1000; i++) {
+                    Object key = i % 2 == 0 ? random.nextInt() : Long.toString(random.nextLong());
+                    int bucket =
+                            Hashing.consistentHash(
+                                    Hashing.combineOrdered(
+                                            ImmutableList.of(
+                                                    seed, HashCode.fromInt(key.hashCode()))),
+                                    total);
+                    Object expected =
+                            bucket < weights / 3 + 1
+                                    ? wImplementations.get(0).implementation
+                                    : bucket < total - 1
+                                            ? wImplementations.get(1).implementation
+                                            : wImplementations.get(2).implementation;
+                    Assertions.assertSame(
+                            expected, selector.select(TEST_METHOD, new Object[] {key}));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConsistentHashIsGuavas() {
+        Random random = new Random(TEST_SEED);
+        for (int i = 0; i < 10000; i++) {
+            long input = random.nextLong();
+            int buckets = 1 + random.nextInt(i % 2 == 0 ? 100 : Integer.MAX_VALUE);
+            Assertions.assertEquals(
+                    Hashing.consistentHash(input, buckets),
+                    WeightedShardedSelector.consistentHash(input, buckets));
+        }
+    }
+
+    @Test
+    public void testTypedKeyDistributionOfSequentialStrings() {
+        ImmutableList<WeightedImplementation<StringInterface>> wImplementations =
+                ImmutableList.of(
+                        new WeightedImplementation<>(1, key -> 1),
+                        new WeightedImplementation<>(9, key -> 2));
+        WeightedShardedSelector<StringInterface> selector =
+                new WeightedShardedSelector<>(
+                        StringInterface.class,
+                        TEST_HASH_CODE_SEED,
+                        WeightedShardedSelector.FIRST_PARAM_SELECTOR,
+                        WeightedShardedBuilder.KeyType.CHAR_SEQUENCE,
+                        wImplementations);
+
+        int callsToFirstImplementation = 0;
+        int iterations = 100000;
+        for (int i = 0; i < iterations; i++) {
+            if (selector.select(STRING_METHOD, new Object[] {"user-" + i})
+                    == wImplementations.get(0).implementation) {
+                callsToFirstImplementation++;
+            }
+        }
+        Assertions.assertEquals(0.1, 1.0 * callsToFirstImplementation / iterations, 0.005);
+    }
+
+    @Test
+    public void testPrimitiveKeySelectsLikeBoxedKey() throws Exception {
+        ImmutableList<WeightedImplementation<LongInterface>> wImplementations =
+                ImmutableList.of(
+                        new WeightedImplementation<>(1, key -> 1),
+                        new WeightedImplementation<>(2, key -> 2),
+                        new WeightedImplementation<>(3, key -> 3));
+        WeightedShardedSelector<LongInterface> selector =
+                new WeightedShardedSelector<>(
+                        LongInterface.class,
+                        TEST_HASH_CODE_SEED,
+                        WeightedShardedSelector.FIRST_PARAM_SELECTOR,
+                        WeightedShardedBuilder.KeyType.LONG,
+                        wImplementations);
+        Method method = LongInterface.class.getMethod("method", long.class);
+
+        Assertions.assertEquals(0, selector.keyParameter(0, method));
+        Random random = new Random(TEST_SEED);
+        for (int i = 0; i < 1000; i++) {
+            long key = random.nextLong();
+            Assertions.assertSame(
+                    selector.select(method, new Object[] {key}), selector.select(0, method, key));
+        }
+    }
+
+    @Test
+    public void testIllegalArgumentOnWrongKeyType() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        new WeightedShardedSelector<>(
+                                StringInterface.class,
+                                TEST_HASH_CODE_SEED,
+                                WeightedShardedSelector.FIRST_PARAM_SELECTOR,
+                                WeightedShardedBuilder.KeyType.LONG,
+                                ImmutableList.of(
+                                        new WeightedImplementation<StringInterface>(
+                                                1, key -> 1))));
+    }
+
+    @Test
+    public void testIllegalArgumentOnNon32BitSeed() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        new WeightedShardedSelector<>(
+                                TestInterface.class,
+                                HashCode.fromLong(43),
+                                WeightedShardedSelector.FIRST_PARAM_SELECTOR,
+                                ImmutableList.of(
+                                        new WeightedImplementation<>(
+                                                1, new TestImplementation(1)))));
+    }
+
     @Test
     public void testIllegalArgumentOnWrappingMethodWithNoArguments() {
         ImmutableList<WeightedImplementation<InvalidInterface>> implementations =
@@ -126,6 +271,14 @@ public class WeightedShardedSelectorTest {
         }
     }
 
+    interface StringInterface {
+        int method(String key);
+    }
+
+    interface LongInterface {
+        int method(long key);
+    }
+
     interface TestInterface {
         int method(Integer param);
     }
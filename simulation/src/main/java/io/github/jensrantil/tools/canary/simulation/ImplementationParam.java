@@ -1,11 +1,13 @@
 package io.github.jensrantil.tools.canary.simulation;
 
 import com.google.common.base.Preconditions;
+import java.time.Duration;
 
 public class ImplementationParam {
     public static final String ERROR_RATIO_VALIDATION_ERROR =
             "Error ratio must be betewen [0,1]. Was:";
     public double errorRatio = 0;
+    public Duration latency = Duration.ZERO;
 
     public ImplementationParam(double errorRatio) {
         this.errorRatio = errorRatio;
@@ -16,6 +18,9 @@ public class ImplementationParam {
             case "error-ratio":
                 this.errorRatio = Double.parseDouble(value);
                 break;
+            case "latency":
+                this.latency = Duration.parse(value);
+                break;
             default:
                 throw new IllegalArgumentException(String.format("Unrecognized flag: %s", key));
         }
@@ -26,5 +31,6 @@ public class ImplementationParam {
                 this.errorRatio >= 0, ERROR_RATIO_VALIDATION_ERROR, this.errorRatio);
         Preconditions.checkArgument(
                 this.errorRatio <= 1, ERROR_RATIO_VALIDATION_ERROR, this.errorRatio);
+        Preconditions.checkArgument(!this.latency.isNegative(), "Latency must not be negative.");
     }
 }
@@ -14,11 +14,11 @@ public class PhaseParams {
 
     public void parse(String key, String value) {
         if (key.startsWith(ORIG_IMPL)) {
-            origImpl.parse(value.substring(ORIG_IMPL.length()), value);
+            origImpl.parse(key.substring(ORIG_IMPL.length()), value);
             return;
         }
         if (key.startsWith(NEW_IMPL)) {
-            newImpl.parse(value.substring(NEW_IMPL.length()), value);
+            newImpl.parse(key.substring(NEW_IMPL.length()), value);
             return;
         }
         throw new IllegalArgumentException(String.format("Unrecognized flag: %s", key));
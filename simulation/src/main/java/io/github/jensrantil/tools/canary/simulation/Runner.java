@@ -109,6 +109,12 @@ public class Runner {
         System.out.println("--failure-penalty");
         System.out.println("--success-credits");
         System.out.println("--epsilon");
+        System.out.println("--routing-policy (success-ratio or latency-budget)");
+        System.out.println("--slowdown-budget");
+        System.out.println("--latency-percentile");
+        System.out.println("--observer (fixed, epoch or decaying)");
+        System.out.println("--half-life");
+        System.out.println("--evaluation-interval");
         System.out.println("--slots");
         System.out.println("--slot-duration");
         System.out.println("--duration-per-step");
@@ -116,5 +122,9 @@ public class Runner {
         System.out.println("--phase1-new-impl-error-ratio");
         System.out.println("--phase2-orig-impl-error-ratio");
         System.out.println("--phase2-new-impl-error-ratio");
+        System.out.println("--phase1-orig-impl-latency");
+        System.out.println("--phase1-new-impl-latency");
+        System.out.println("--phase2-orig-impl-latency");
+        System.out.println("--phase2-new-impl-latency");
     }
 }
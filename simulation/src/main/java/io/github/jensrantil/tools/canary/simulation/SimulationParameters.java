@@ -1,7 +1,9 @@
 package io.github.jensrantil.tools.canary.simulation;
 
 import com.google.common.base.Preconditions;
+import io.github.jensrantil.tools.canary.LatencyBudgetPolicy;
 import java.time.Duration;
+import java.util.Locale;
 
 public class SimulationParameters {
     public static final String PHASE_1_PREFIX = "--phase1-";
@@ -20,11 +22,40 @@ public class SimulationParameters {
 
     public Double epsilon = null;
 
+    public RoutingPolicyType routingPolicy = RoutingPolicyType.SUCCESS_RATIO;
+    public double slowdownBudget = 1.2;
+    public double latencyPercentile = LatencyBudgetPolicy.DEFAULT_PERCENTILE;
+
+    public ObserverType observer = ObserverType.FIXED;
     public int slots = 6;
     public Duration slotDuration = Duration.ofSeconds(30);
+    public Duration halfLife = Duration.ofSeconds(30);
+    // Zero evaluates the routing policy on every call.
+    public Duration evaluationInterval = Duration.ZERO;
     public Duration durationPerStep = Duration.ofSeconds(1);
     public Duration outputResolution = Duration.ofMinutes(1);
 
+    /** How the success ratio of the new implementation is observed. */
+    public enum ObserverType {
+        /** A FixedWindowObserver of --slots slots of --slot-duration. */
+        FIXED,
+        /** An EpochWindowObserver of --slots slots of --slot-duration. */
+        EPOCH,
+        /** A DecayingObserver with a half-life of --half-life. */
+        DECAYING,
+    }
+
+    /** How calls are routed between the implementations. */
+    public enum RoutingPolicyType {
+        /** RoutingPolicy.SUCCESS_RATIO. */
+        SUCCESS_RATIO,
+        /**
+         * A LatencyBudgetPolicy comparing --latency-percentile with a budget of --slowdown-budget,
+         * once every --slot-duration.
+         */
+        LATENCY_BUDGET,
+    }
+
     /**
      * Parse CLI parameters. Poor man's parsing since I didn't want to spend time on learning a new
      * flag parsing library during hackathon.
@@ -62,6 +93,26 @@ public class SimulationParameters {
                 case "--epsilon":
                     this.epsilon = Double.parseDouble(value);
                     break;
+                case "--routing-policy":
+                    this.routingPolicy =
+                            RoutingPolicyType.valueOf(
+                                    value.toUpperCase(Locale.ROOT).replace('-', '_'));
+                    break;
+                case "--slowdown-budget":
+                    this.slowdownBudget = Double.parseDouble(value);
+                    break;
+                case "--latency-percentile":
+                    this.latencyPercentile = Double.parseDouble(value);
+                    break;
+                case "--observer":
+                    this.observer = ObserverType.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "--half-life":
+                    this.halfLife = Duration.parse(value);
+                    break;
+                case "--evaluation-interval":
+                    this.evaluationInterval = Duration.parse(value);
+                    break;
                 case "--slots":
                     this.slots = Integer.parseInt(value);
                     break;
@@ -86,7 +137,15 @@ public class SimulationParameters {
         Preconditions.checkArgument(
                 this.epsilon == null || this.epsilon >= 0, EPSILON_VALIDATION_ERROR);
         Preconditions.checkArgument(
-                this.epsilon == null || this.epsilon <= 0, EPSILON_VALIDATION_ERROR);
+                this.epsilon == null || this.epsilon <= 1, EPSILON_VALIDATION_ERROR);
+        Preconditions.checkArgument(
+                !this.evaluationInterval.isNegative(),
+                "Evaluation interval must not be negative.");
+        Preconditions.checkArgument(
+                this.slowdownBudget >= 1, "Slowdown budget must be at least 1.");
+        Preconditions.checkArgument(
+                this.latencyPercentile >= 0 && this.latencyPercentile <= 100,
+                "Latency percentile must be between [0,100].");
 
         try {
             this.phase1.validate();
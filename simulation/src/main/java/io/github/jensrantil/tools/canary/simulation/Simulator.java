@@ -1,15 +1,18 @@
 package io.github.jensrantil.tools.canary.simulation;
 
 import com.google.common.collect.Lists;
-import java.time.Clock;
-import java.time.Duration;
 import java.time.Instant;
-import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import io.github.jensrantil.tools.canary.CircuitBreakerFallbackBuilder;
+import io.github.jensrantil.tools.canary.DecayingObserver;
+import io.github.jensrantil.tools.canary.EpochWindowObserver;
 import io.github.jensrantil.tools.canary.FixedWindowObserver;
+import io.github.jensrantil.tools.canary.LatencyBudgetPolicy;
+import io.github.jensrantil.tools.canary.ManualTicker;
+import io.github.jensrantil.tools.canary.Observer;
+import io.github.jensrantil.tools.canary.RoutingPolicy;
 
 /**
  * Simulator runs a simulation of an experiment. Call {@link #simulate(Instant,
@@ -27,21 +30,21 @@ public class Simulator {
      */
     public List<Sample> simulate(final Instant start, SimulationParameters params) {
         final Random random = new Random(params.seed);
-        final SimulationClock simulationClock =
-                new SimulationClock(Clock.fixed(start, ZoneOffset.UTC));
+        // Nanoseconds since start.
+        final ManualTicker ticker = new ManualTicker();
 
         final TestImplementation origImpl =
-                new TestImplementation(random, false, params.phase1.origImpl.errorRatio);
+                new TestImplementation(random, false, ticker, params.phase1.origImpl);
         final TestImplementation newImpl =
-                new TestImplementation(random, true, params.phase1.newImpl.errorRatio);
+                new TestImplementation(random, true, ticker, params.phase1.newImpl);
 
         CircuitBreakerFallbackBuilder builder =
                 new CircuitBreakerFallbackBuilder()
                         .random(random)
-                        .clock(simulationClock)
-                        .observer(
-                                new FixedWindowObserver(
-                                        simulationClock, params.slots, params.slotDuration));
+                        .ticker(ticker)
+                        .observer(createObserver(ticker, params))
+                        .routingPolicy(createRoutingPolicy(ticker, params))
+                        .evaluationInterval(params.evaluationInterval);
         if (params.epsilon != null) {
             builder = builder.epsilon(params.epsilon);
         }
@@ -56,36 +59,73 @@ public class Simulator {
         final ArrayList<Sample> samples = Lists.newArrayListWithCapacity(params.steps);
         for (int i = 0; i < params.phaseShift; i++) {
             try {
-                samples.add(new Sample(simulationClock.instant(), proxy.execute(), false, false));
+                samples.add(
+                        new Sample(
+                                start.plusNanos(ticker.read()), proxy.execute(), false, false));
             } catch (TestException e) {
-                samples.add(new Sample(simulationClock.instant(), e.newImpl, false, true));
+                samples.add(new Sample(start.plusNanos(ticker.read()), e.newImpl, false, true));
             }
 
-            simulationClock.setClock(
-                    Clock.fixed(
-                            start.plus(Duration.ofNanos(i * params.durationPerStep.toNanos())),
-                            ZoneOffset.UTC));
+            advanceTo(ticker, i * params.durationPerStep.toNanos());
         }
 
         // Change the parameters:
-        origImpl.setErrorRatio(params.phase2.origImpl.errorRatio);
-        newImpl.setErrorRatio(params.phase2.newImpl.errorRatio);
+        origImpl.setParams(params.phase2.origImpl);
+        newImpl.setParams(params.phase2.newImpl);
 
         // Continue simulating:
 
         for (int i = params.phaseShift; i < params.steps; i++) {
             try {
-                samples.add(new Sample(simulationClock.instant(), proxy.execute(), true, false));
+                samples.add(
+                        new Sample(
+                                start.plusNanos(ticker.read()), proxy.execute(), true, false));
             } catch (TestException e) {
-                samples.add(new Sample(simulationClock.instant(), e.newImpl, true, true));
+                samples.add(new Sample(start.plusNanos(ticker.read()), e.newImpl, true, true));
             }
 
-            simulationClock.setClock(
-                    Clock.fixed(
-                            start.plus(Duration.ofNanos(i * params.durationPerStep.toNanos())),
-                            ZoneOffset.UTC));
+            advanceTo(ticker, i * params.durationPerStep.toNanos());
         }
 
         return samples;
     }
+
+    private static RoutingPolicy createRoutingPolicy(
+            ManualTicker ticker, SimulationParameters params) {
+        switch (params.routingPolicy) {
+            case SUCCESS_RATIO:
+                return RoutingPolicy.SUCCESS_RATIO;
+            case LATENCY_BUDGET:
+                return new LatencyBudgetPolicy(
+                        ticker,
+                        params.latencyPercentile,
+                        params.slowdownBudget,
+                        params.slotDuration,
+                        LatencyBudgetPolicy.DEFAULT_MIN_SAMPLES);
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown routing policy: " + params.routingPolicy);
+        }
+    }
+
+    /**
+     * Moves simulated time to a step, unless the calls made so far have already taken it past it.
+     * Calls take their latency, which may be longer than a step, and time must never go backwards.
+     */
+    private static void advanceTo(ManualTicker ticker, long nanos) {
+        ticker.set(Math.max(ticker.read(), nanos));
+    }
+
+    private static Observer createObserver(ManualTicker ticker, SimulationParameters params) {
+        switch (params.observer) {
+            case FIXED:
+                return new FixedWindowObserver(ticker, params.slots, params.slotDuration);
+            case EPOCH:
+                return new EpochWindowObserver(ticker, params.slots, params.slotDuration);
+            case DECAYING:
+                return new DecayingObserver(ticker, params.halfLife);
+            default:
+                throw new IllegalArgumentException("Unknown observer: " + params.observer);
+        }
+    }
 }
@@ -1,28 +1,40 @@
 package io.github.jensrantil.tools.canary.simulation;
 
+import io.github.jensrantil.tools.canary.ManualTicker;
+import java.time.Duration;
 import java.util.Random;
 
 class TestImplementation implements TestInterface {
     private final Random random;
     private final boolean newImpl;
+    private final ManualTicker ticker;
 
     private double errorRatio;
+    private Duration latency;
 
-    public TestImplementation(Random random, boolean newImpl, double errorRatio) {
+    public TestImplementation(
+            Random random,
+            boolean newImpl,
+            ManualTicker ticker,
+            ImplementationParam params) {
         this.random = random;
         this.newImpl = newImpl;
-        this.errorRatio = errorRatio;
+        this.ticker = ticker;
+        setParams(params);
     }
 
     @Override
     public boolean execute() {
+        // Simulated time only moves forward between steps, so make the call take its latency.
+        ticker.advance(latency);
         if (random.nextDouble() < errorRatio) {
             throw new TestException(newImpl);
         }
         return newImpl;
     }
 
-    public void setErrorRatio(double errorRatio) {
-        this.errorRatio = errorRatio;
+    public void setParams(ImplementationParam params) {
+        this.errorRatio = params.errorRatio;
+        this.latency = params.latency;
     }
 }